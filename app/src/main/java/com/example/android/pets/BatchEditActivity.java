@@ -0,0 +1,144 @@
+package com.example.android.pets;
+
+import android.content.ContentValues;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.Spinner;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Applies the same changes to several pets selected in the catalog, with one provider call.
+ * Fields left at "No change" keep their value in every pet.
+ */
+public class BatchEditActivity extends AppCompatActivity {
+
+    /**
+     * Intent extra with the ids of the pets to edit, as a long array
+     */
+    public static final String EXTRA_PET_IDS = "pet_ids";
+
+    /**
+     * Position of the "No change" option of the gender spinner. The other options
+     * follow in the order of the gender values.
+     */
+    private static final int GENDER_NO_CHANGE = 0;
+
+    /**
+     * Position of the "No change" option of the status spinner, followed by the statuses
+     */
+    private static final int STATUS_NO_CHANGE = 0;
+
+    /**
+     * Ids of the pets being edited
+     */
+    private long[] mPetIds;
+
+    private Spinner mGenderSpinner;
+    private Spinner mStatusSpinner;
+    private EditText mWeightEditText;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_batch_edit);
+
+        mPetIds = getIntent().getLongArrayExtra(EXTRA_PET_IDS);
+        if (mPetIds == null || mPetIds.length == 0) {
+            finish();
+            return;
+        }
+        setTitle(getResources().getQuantityString(R.plurals.batch_edit_title,
+                mPetIds.length, mPetIds.length));
+
+        mWeightEditText = findViewById(R.id.edit_pet_weight);
+        mGenderSpinner = findViewById(R.id.spinner_gender);
+
+        ArrayAdapter<CharSequence> genderSpinnerAdapter = ArrayAdapter.createFromResource(this,
+                R.array.array_batch_gender_options, android.R.layout.simple_spinner_item);
+        genderSpinnerAdapter.setDropDownViewResource(android.R.layout.simple_dropdown_item_1line);
+        mGenderSpinner.setAdapter(genderSpinnerAdapter);
+
+        mStatusSpinner = findViewById(R.id.spinner_status);
+        ArrayAdapter<CharSequence> statusSpinnerAdapter = ArrayAdapter.createFromResource(this,
+                R.array.array_batch_status_options, android.R.layout.simple_spinner_item);
+        statusSpinnerAdapter.setDropDownViewResource(android.R.layout.simple_dropdown_item_1line);
+        mStatusSpinner.setAdapter(statusSpinnerAdapter);
+    }
+
+    /**
+     * Applies the changed fields to all selected pets.
+     *
+     * @return whether the screen can be closed.
+     */
+    private boolean savePets() {
+        ContentValues values = new ContentValues();
+
+        int genderPosition = mGenderSpinner.getSelectedItemPosition();
+        if (genderPosition != GENDER_NO_CHANGE) {
+            values.put(PetEntry.COLUMN_PET_GENDER, genderPosition - 1);
+        }
+
+        int statusPosition = mStatusSpinner.getSelectedItemPosition();
+        if (statusPosition != STATUS_NO_CHANGE) {
+            values.put(PetEntry.COLUMN_PET_STATUS, statusPosition - 1);
+        }
+
+        String weightText = mWeightEditText.getText().toString().trim();
+        if (!TextUtils.isEmpty(weightText)) {
+            try {
+                values.put(PetEntry.COLUMN_PET_WEIGHT, Integer.parseInt(weightText));
+            } catch (NumberFormatException e) {
+                showToast(getString(R.string.batch_edit_invalid_weight));
+                return false;
+            }
+        }
+
+        if (values.size() == 0) {
+            showToast(getString(R.string.batch_edit_nothing_changed));
+            return false;
+        }
+
+        Bundle extras = new Bundle();
+        extras.putLongArray(PetEntry.EXTRA_IDS, mPetIds);
+        extras.putParcelable(PetEntry.EXTRA_VALUES, values);
+        Bundle result = getContentResolver().call(PetEntry.CONTENT_URI,
+                PetEntry.METHOD_BATCH_UPDATE, null, extras);
+        int rowsUpdated = (result == null) ? 0 : result.getInt(PetEntry.EXTRA_ROWS);
+
+        showToast((rowsUpdated == 0) ?
+                getString(R.string.editor_update_pet_failed) :
+                getResources().getQuantityString(R.plurals.batch_edit_successful,
+                        rowsUpdated, rowsUpdated));
+        return true;
+    }
+
+    private void showToast(String message) {
+        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        // Inflate the menu options from the res/menu/menu_batch_edit.xml file.
+        getMenuInflater().inflate(R.menu.menu_batch_edit, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_save) {
+            if (savePets()) {
+                finish();
+            }
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.widget.ArrayAdapter;
+import android.widget.Filter;
+
+import androidx.annotation.NonNull;
+
+import com.example.android.pets.data.BreedIndex;
+
+import java.util.List;
+
+/**
+ * {@link BreedSuggestionAdapter} suggests breeds for an AutoCompleteTextView.
+ * Suggestions come from the in-memory {@link BreedIndex}, so typing never queries the database.
+ */
+public class BreedSuggestionAdapter extends ArrayAdapter<String> {
+
+    /**
+     * Maximum number of suggestions shown in the drop-down
+     */
+    private static final int MAX_SUGGESTIONS = 5;
+
+    private final BreedIndex mBreedIndex;
+
+    private final Filter mFilter = new Filter() {
+        @Override
+        protected FilterResults performFiltering(CharSequence constraint) {
+            List<String> suggestions = mBreedIndex.suggest(constraint, MAX_SUGGESTIONS);
+            FilterResults results = new FilterResults();
+            results.values = suggestions;
+            results.count = suggestions.size();
+            return results;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void publishResults(CharSequence constraint, FilterResults results) {
+            clear();
+            if (results.values != null) {
+                addAll((List<String>) results.values);
+            }
+            notifyDataSetChanged();
+        }
+    };
+
+    /**
+     * Constructs a new {@link BreedSuggestionAdapter}.
+     *
+     * @param context    the context
+     * @param breedIndex the index to take suggestions from
+     */
+    public BreedSuggestionAdapter(Context context, BreedIndex breedIndex) {
+        super(context, android.R.layout.simple_dropdown_item_1line);
+        mBreedIndex = breedIndex;
+    }
+
+    @NonNull
+    @Override
+    public Filter getFilter() {
+        return mFilter;
+    }
+}
@@ -21,32 +21,68 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+import android.view.ActionMode;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
+import android.widget.AbsListView;
 import android.widget.ListView;
 import android.widget.Toast;
 
-import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.loader.app.LoaderManager;
-import androidx.loader.content.CursorLoader;
-import androidx.loader.content.Loader;
+import androidx.appcompat.widget.SearchView;
 
+import com.example.android.pets.data.CatalogSnapshot;
+import com.example.android.pets.data.ObservableQuery;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.StartupMetrics;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
 /**
  * Displays list of pets that were entered and stored in the app.
  */
 public class CatalogActivity extends AppCompatActivity
-        implements LoaderManager.LoaderCallbacks<Cursor> {
+        implements ObservableQuery.Callback {
+
+    /**
+     * Time the search text must stay unchanged before the list is filtered
+     */
+    private static final long SEARCH_DEBOUNCE_MILLIS = 300;
 
     private PetCursorAdapter petCursorAdapter;
-    public static final int PETS_LOADER_ID = 0;
+
+    /**
+     * Query for the list of pets, kept up to date while the activity exists
+     */
+    private ObservableQuery mPetsQuery;
+
+    /**
+     * Stored first screen of the list, drawn until the live query delivers
+     */
+    private CatalogSnapshot mCatalogSnapshot;
+    private Cursor mSnapshotCursor;
+
+    /**
+     * Search text typed so far, and the one the list is filtered by
+     */
+    private String mTypedFilter = "";
+    private String mAppliedFilter = "";
+
+    private ListView mPetsListView;
+
+    /**
+     * Whether the first live result was delivered yet
+     */
+    private boolean mLiveResultShown;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mApplyFilter = this::applyFilter;
 
     @Override
     protected void onStart() {
@@ -66,19 +102,26 @@ public class CatalogActivity extends AppCompatActivity
         });
 
         // Find listView to populate
-        ListView petsListView = findViewById(R.id.pets_list);
+        mPetsListView = findViewById(R.id.pets_list);
 
         //Find and set empty view on the listView,
         // so that it only shows when the list has 0 items
         View emptyView = findViewById(R.id.empty_view);
-        petsListView.setEmptyView(emptyView);
+        mPetsListView.setEmptyView(emptyView);
 
-        // Setup cursor adapter using cursor
-        petCursorAdapter = new PetCursorAdapter(this, null);
+        // Setup cursor adapter using the snapshot of the last session, so the first
+        // screen is drawn without waiting for the database
+        mCatalogSnapshot = new CatalogSnapshot(this);
+        mSnapshotCursor = mCatalogSnapshot.load();
+        petCursorAdapter = new PetCursorAdapter(this, mSnapshotCursor);
         // Attach cursor adapter to the ListView
-        petsListView.setAdapter(petCursorAdapter);
+        mPetsListView.setAdapter(petCursorAdapter);
+        // There is no snapshot before the first session has seen its pets
+        if (mSnapshotCursor != null && mSnapshotCursor.getCount() > 0) {
+            runOnNextFrame(StartupMetrics::onFirstListFrame);
+        }
 
-        petsListView.setOnItemClickListener((adapterView, itemView, position, itemId) -> {
+        mPetsListView.setOnItemClickListener((adapterView, itemView, position, itemId) -> {
             Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
 
             Uri currentPetUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, itemId);
@@ -87,8 +130,61 @@ public class CatalogActivity extends AppCompatActivity
             startActivity(intent);
         });
 
-        // Initialize new loader
-        LoaderManager.getInstance(this).initLoader(PETS_LOADER_ID, null, this);
+        // Long press selects pets to edit together
+        mPetsListView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+        mPetsListView.setMultiChoiceModeListener(new AbsListView.MultiChoiceModeListener() {
+            @Override
+            public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
+                                                  boolean checked) {
+                int count = mPetsListView.getCheckedItemCount();
+                mode.setTitle(getResources().getQuantityString(R.plurals.selected_pets,
+                        count, count));
+            }
+
+            @Override
+            public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+                mode.getMenuInflater().inflate(R.menu.menu_catalog_selection, menu);
+                return true;
+            }
+
+            @Override
+            public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+                return false;
+            }
+
+            @Override
+            public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+                if (item.getItemId() != R.id.action_batch_edit) return false;
+                Intent intent = new Intent(CatalogActivity.this, BatchEditActivity.class);
+                intent.putExtra(BatchEditActivity.EXTRA_PET_IDS,
+                        mPetsListView.getCheckedItemIds());
+                startActivity(intent);
+                mode.finish();
+                return true;
+            }
+
+            @Override
+            public void onDestroyActionMode(ActionMode mode) {
+            }
+        });
+
+        // Start the query for the list of pets, the same one the database was warmed up with
+        mPetsQuery = new ObservableQuery(getContentResolver(), PetEntry.CONTENT_URI,
+                PetEntry.CATALOG_PROJECTION, null, null, null, this);
+        mPetsQuery.start();
+    }
+
+    @Override
+    protected void onDestroy() {
+        mHandler.removeCallbacks(mApplyFilter);
+        mPetsQuery.stop();
+        // The snapshot is still shown when no live result replaced it
+        if (mSnapshotCursor != null) {
+            petCursorAdapter.swapCursor(null);
+            mSnapshotCursor.close();
+            mSnapshotCursor = null;
+        }
+        super.onDestroy();
     }
 
     /**
@@ -111,9 +207,56 @@ public class CatalogActivity extends AppCompatActivity
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+
+        SearchView searchView = (SearchView) menu.findItem(R.id.action_search).getActionView();
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                onFilterTyped(query);
+                // Filter right away, there is nothing more to wait for
+                mHandler.removeCallbacks(mApplyFilter);
+                applyFilter();
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                onFilterTyped(newText);
+                return true;
+            }
+        });
         return true;
     }
 
+    /**
+     * Called on every keystroke. The running query is for outdated text, so it is cancelled
+     * right away, and the list is filtered once typing pauses.
+     */
+    private void onFilterTyped(String text) {
+        String filter = text.trim();
+        if (filter.equals(mTypedFilter)) return;
+        mTypedFilter = filter;
+        mPetsQuery.cancel();
+        mHandler.removeCallbacks(mApplyFilter);
+        mHandler.postDelayed(mApplyFilter, SEARCH_DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Shows the pets whose name or breed contains the typed text.
+     */
+    private void applyFilter() {
+        mAppliedFilter = mTypedFilter;
+        if (mAppliedFilter.isEmpty()) {
+            mPetsQuery.setSelection(null, null);
+            return;
+        }
+        String pattern = "%" + mAppliedFilter.replace("\\", "\\\\")
+                .replace("%", "\\%").replace("_", "\\_") + "%";
+        mPetsQuery.setSelection(PetEntry.COLUMN_PET_NAME + " LIKE ? ESCAPE '\\' OR "
+                        + PetEntry.COLUMN_PET_BREED + " LIKE ? ESCAPE '\\'",
+                new String[]{pattern, pattern});
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
@@ -130,40 +273,51 @@ public class CatalogActivity extends AppCompatActivity
         return super.onOptionsItemSelected(item);
     }
 
-    @NonNull
     @Override
-    public Loader<Cursor> onCreateLoader(int loaderId, @Nullable Bundle args) {
-        if (loaderId == PETS_LOADER_ID) {
-            String[] projection = {
-                    PetEntry._ID,
-                    PetEntry.COLUMN_PET_NAME,
-                    PetEntry.COLUMN_PET_BREED
-            };
-            // Returns a new cursor loader
-            return new CursorLoader(
-                    this,
-                    PetEntry.CONTENT_URI,
-                    projection,
-                    null,
-                    null,
-                    null
-            );
+    public void onQueryResult(@Nullable Cursor data) {
+        // Moves the query results into the adapter, causing the
+        // ListView fronting this adapter to re-display.
+        // A null cursor clears out the adapter's reference to the old one.
+        Cursor oldCursor = petCursorAdapter.swapCursor(data);
+
+        // The snapshot is replaced by the first live result
+        if (oldCursor != null && oldCursor == mSnapshotCursor) {
+            mSnapshotCursor.close();
+            mSnapshotCursor = null;
+        }
+        // Keep the snapshot of the unfiltered list up to date for the next cold start
+        if (data != null && mAppliedFilter.isEmpty()) {
+            mCatalogSnapshot.save(data);
         }
-        // An invalid id was passed on
-        return null;
-    }
 
-    @Override
-    public void onLoadFinished(@NonNull Loader<Cursor> loader, Cursor data) {
-        // Moves the query results into the adapter, causing the
-        // ListView fronting this adapter to re-display
-        petCursorAdapter.swapCursor(data);
+        if (data != null && !mLiveResultShown) {
+            mLiveResultShown = true;
+            // The list is complete once the first live result is drawn
+            runOnNextFrame(() -> {
+                StartupMetrics.onFirstListFrame();
+                StartupMetrics.onFullyDrawn();
+                reportFullyDrawn();
+            });
+        }
     }
 
-    @Override
-    public void onLoaderReset(@NonNull Loader<Cursor> loader) {
-        // Clears out the adapter's reference to the Cursor.
-        petCursorAdapter.swapCursor(null);
+    /**
+     * Runs the given action right before the next frame of the list is drawn.
+     */
+    private void runOnNextFrame(final Runnable action) {
+        final ViewTreeObserver observer = mPetsListView.getViewTreeObserver();
+        observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                if (observer.isAlive()) {
+                    observer.removeOnPreDrawListener(this);
+                } else {
+                    mPetsListView.getViewTreeObserver().removeOnPreDrawListener(this);
+                }
+                action.run();
+                return true;
+            }
+        });
     }
 
     private void showDeletePetsConfirmationDialog() {
@@ -26,26 +26,25 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.AutoCompleteTextView;
 import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.Toast;
 
-import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.NavUtils;
-import androidx.loader.app.LoaderManager;
-import androidx.loader.content.CursorLoader;
-import androidx.loader.content.Loader;
 
+import com.example.android.pets.data.BreedIndex;
+import com.example.android.pets.data.ObservableQuery;
 import com.example.android.pets.data.PetContract.PetEntry;
 
 /**
  * Allows user to create a new pet or edit an existing one.
  */
 public class EditorActivity extends AppCompatActivity
-        implements LoaderManager.LoaderCallbacks<Cursor> {
+        implements ObservableQuery.Callback {
 
     /**
      * EditText field to enter the pet's name
@@ -60,7 +59,12 @@ public class EditorActivity extends AppCompatActivity
     /**
      * EditText field to enter the pet's breed
      */
-    private EditText mBreedEditText;
+    private AutoCompleteTextView mBreedEditText;
+
+    /**
+     * Breeds already in use, suggested while typing the breed
+     */
+    private BreedIndex mBreedIndex;
 
     /**
      * Pet's breed value from database for editing mode
@@ -88,9 +92,9 @@ public class EditorActivity extends AppCompatActivity
     private int mPetGender = 0;
 
     /**
-     * Identifier for the pet data loader
+     * Query for the pet being edited, null for a new pet
      */
-    private static final int EXISTING_PET_LOADER = 0;
+    private ObservableQuery mPetQuery;
 
     private Uri mCurrentPetUri;
 
@@ -122,14 +126,33 @@ public class EditorActivity extends AppCompatActivity
         mWeightEditText = findViewById(R.id.edit_pet_weight);
         mGenderSpinner = findViewById(R.id.spinner_gender);
 
+        // Suggest existing breeds so the same breed isn't spelled in different ways
+        mBreedIndex = BreedIndex.acquire(this);
+        mBreedEditText.setAdapter(new BreedSuggestionAdapter(this, mBreedIndex));
+
         if (!mIsNewPet) {
-            LoaderManager.getInstance(this)
-                    .initLoader(EXISTING_PET_LOADER, null, this);
+            String[] projection = {
+                    PetEntry._ID,
+                    PetEntry.COLUMN_PET_NAME,
+                    PetEntry.COLUMN_PET_BREED,
+                    PetEntry.COLUMN_PET_GENDER,
+                    PetEntry.COLUMN_PET_WEIGHT
+            };
+            mPetQuery = new ObservableQuery(getContentResolver(), mCurrentPetUri,
+                    projection, null, null, null, this);
+            mPetQuery.start();
         }
 
         setupSpinner();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mPetQuery != null) mPetQuery.stop();
+        BreedIndex.release();
+        super.onDestroy();
+    }
+
     /**
      * Setup the dropdown spinner that allows the user to select the gender of the pet.
      */
@@ -306,32 +329,10 @@ public class EditorActivity extends AppCompatActivity
         return super.onOptionsItemSelected(item);
     }
 
-    @NonNull
     @Override
-    public Loader<Cursor> onCreateLoader(int id, @Nullable Bundle args) {
-        if (id == EXISTING_PET_LOADER) {
-            String[] projection = {
-                    PetEntry._ID,
-                    PetEntry.COLUMN_PET_NAME,
-                    PetEntry.COLUMN_PET_BREED,
-                    PetEntry.COLUMN_PET_GENDER,
-                    PetEntry.COLUMN_PET_WEIGHT
-            };
-            return new CursorLoader(
-                    this,
-                    mCurrentPetUri,
-                    projection,
-                    null,
-                    null,
-                    null
-            );
-        }
-        return null;
-    }
-
-    @Override
-    public void onLoadFinished(@NonNull Loader<Cursor> loader, Cursor data) {
-        // Bail early if the cursor is null or there is less than 1 row in the cursor
+    public void onQueryResult(@Nullable Cursor data) {
+        // Bail early if the cursor is null (the query was stopped)
+        // or there is less than 1 row in the cursor
         if (data == null || data.getCount() < 1) {
             return;
         }
@@ -353,15 +354,6 @@ public class EditorActivity extends AppCompatActivity
         }
     }
 
-    @Override
-    public void onLoaderReset(@NonNull Loader<Cursor> loader) {
-        // Clear all fields
-        mNameEditText.setText("");
-        mBreedEditText.setText("");
-        mWeightEditText.setText("");
-        mGenderSpinner.setSelection(0);
-    }
-
     private void showUnsavedChangesDialog(
             DialogInterface.OnClickListener discardButtonClickListener) {
         // Create an AlertDialog.Builder and set the message, and click listeners
@@ -18,6 +18,27 @@ import com.example.android.pets.data.PetContract.PetEntry;
  */
 public class PetCursorAdapter extends CursorAdapter {
 
+    /**
+     * Views of a list item, found once when the item is created
+     */
+    private static final class ViewHolder {
+        final TextView petName;
+        final TextView petSummary;
+
+        ViewHolder(View view) {
+            petName = view.findViewById(R.id.pet_name);
+            petSummary = view.findViewById(R.id.pet_summary);
+        }
+    }
+
+    /**
+     * Text shown for pets without a breed, read once instead of on every bind
+     */
+    private final String mUnknownBreed;
+
+    // Column indices in the current cursor, looked up on the first bind after a cursor change
+    private int mNameColumn = -1;
+    private int mBreedColumn = -1;
 
     /**
      * Constructs a new {@link PetCursorAdapter}.
@@ -27,6 +48,15 @@ public class PetCursorAdapter extends CursorAdapter {
      */
     public PetCursorAdapter(Context context, Cursor c) {
         super(context, c, 0);
+        mUnknownBreed = context.getString(R.string.unknown_breed);
+    }
+
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        // The new cursor may have another projection
+        mNameColumn = -1;
+        mBreedColumn = -1;
+        return super.swapCursor(newCursor);
     }
 
     /**
@@ -40,8 +70,10 @@ public class PetCursorAdapter extends CursorAdapter {
      */
     @Override
     public View newView(Context context, Cursor cursor, ViewGroup viewGroup) {
-        return LayoutInflater.from(context)
+        View view = LayoutInflater.from(context)
                 .inflate(R.layout.list_item, viewGroup, false);
+        view.setTag(new ViewHolder(view));
+        return view;
     }
 
     /**
@@ -56,23 +88,27 @@ public class PetCursorAdapter extends CursorAdapter {
      */
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
-        // Find fields to populate in inflated template
-        TextView tvPetName = view.findViewById(R.id.pet_name);
-        TextView tvPetSummary = view.findViewById(R.id.pet_summary);
+        // Fields to populate in the inflated template
+        ViewHolder holder = (ViewHolder) view.getTag();
+
+        // Binding runs for every row scrolled into view, so the column lookups by name are
+        // done once per cursor
+        if (mNameColumn < 0) {
+            mNameColumn = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME);
+            mBreedColumn = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED);
+        }
 
         // Extract properties from cursor
-        String petName = cursor.getString(
-                cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME));
-        String petBreed = cursor.getString(
-                cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED));
+        String petName = cursor.getString(mNameColumn);
+        String petBreed = cursor.getString(mBreedColumn);
         if (TextUtils.isEmpty(petBreed)) {
             // If the pet breed is empty string or null, then use some default text
             // that says "Unknown breed", so the TextView isn't blank
-            petBreed = context.getString(R.string.unknown_breed);
+            petBreed = mUnknownBreed;
         }
 
         // Populate fields with extracted properties
-        tvPetName.setText(petName);
-        tvPetSummary.setText(petBreed);
+        holder.petName.setText(petName);
+        holder.petSummary.setText(petBreed);
     }
 }
@@ -0,0 +1,153 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * The number of pets of every breed, kept in its own table by triggers on the pets table.
+ * <p>
+ * Every insert, delete and breed change of a pet adds or removes one pet from its breed, so
+ * the breeds are read from a table with one row per breed instead of a GROUP BY over every
+ * pet. Breeds without pets are deleted.
+ * <p>
+ * New databases start with the empty table. Upgraded ones count their pets once on the
+ * migration thread, see {@link #seed}; until then the provider groups the pets itself.
+ */
+final class BreedCounts {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = BreedCounts.class.getSimpleName();
+
+    /**
+     * One row per breed with at least one pet
+     */
+    static final String TABLE_NAME = "breed_counts";
+
+    /**
+     * Version 9: counts the pets of the existing breeds, see {@link PetMigrationRunner}
+     */
+    static final String SEED_MIGRATION = "v9_breed_counts";
+
+    private static final String BREED = BreedEntry.COLUMN_BREED;
+    private static final String COUNT = BreedEntry.COLUMN_COUNT;
+
+    static final String SQL_CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " ("
+                    + BREED + " TEXT PRIMARY KEY, "
+                    + COUNT + " INTEGER NOT NULL)";
+
+    /**
+     * Adds the NEW pet to its breed, creating the breed if needed. Conflict clauses aren't
+     * used in the triggers, the OR REPLACE of an outer statement would override them.
+     */
+    private static final String SQL_ADD_NEW =
+            "INSERT INTO " + TABLE_NAME + " (" + BREED + ", " + COUNT + ")"
+                    + " SELECT NEW." + PetEntry.COLUMN_PET_BREED + ", 0"
+                    + " WHERE NOT EXISTS (SELECT 1 FROM " + TABLE_NAME
+                    + " WHERE " + BREED + " = NEW." + PetEntry.COLUMN_PET_BREED + "); "
+                    + "UPDATE " + TABLE_NAME + " SET " + COUNT + " = " + COUNT + " + 1"
+                    + " WHERE " + BREED + " = NEW." + PetEntry.COLUMN_PET_BREED + "; ";
+
+    /**
+     * Removes the OLD pet from its breed, and the breed once it has no pets
+     */
+    private static final String SQL_REMOVE_OLD =
+            "UPDATE " + TABLE_NAME + " SET " + COUNT + " = " + COUNT + " - 1"
+                    + " WHERE " + BREED + " = OLD." + PetEntry.COLUMN_PET_BREED + "; "
+                    + "DELETE FROM " + TABLE_NAME
+                    + " WHERE " + BREED + " = OLD." + PetEntry.COLUMN_PET_BREED
+                    + " AND " + COUNT + " <= 0; ";
+
+    static final String[] SQL_CREATE_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS " + PetEntry.TABLE_NAME + "_breed_insert"
+                    + " AFTER INSERT ON " + PetEntry.TABLE_NAME + " BEGIN "
+                    + SQL_ADD_NEW + "END",
+            "CREATE TRIGGER IF NOT EXISTS " + PetEntry.TABLE_NAME + "_breed_update"
+                    + " AFTER UPDATE OF " + PetEntry.COLUMN_PET_BREED
+                    + " ON " + PetEntry.TABLE_NAME
+                    + " WHEN NEW." + PetEntry.COLUMN_PET_BREED
+                    + " IS NOT OLD." + PetEntry.COLUMN_PET_BREED + " BEGIN "
+                    + SQL_REMOVE_OLD + SQL_ADD_NEW + "END",
+            "CREATE TRIGGER IF NOT EXISTS " + PetEntry.TABLE_NAME + "_breed_delete"
+                    + " AFTER DELETE ON " + PetEntry.TABLE_NAME + " BEGIN "
+                    + SQL_REMOVE_OLD + "END",
+    };
+
+    private BreedCounts() {
+    }
+
+    /**
+     * Creates the table and its triggers. New databases don't need {@link #seed}.
+     */
+    static void create(SQLiteDatabase database) {
+        database.execSQL(SQL_CREATE_TABLE);
+        for (String trigger : SQL_CREATE_TRIGGERS) {
+            database.execSQL(trigger);
+        }
+    }
+
+    /**
+     * Returns whether the table holds the counts of every pet, so it can be read instead of
+     * grouping the pets.
+     */
+    static boolean isSeeded(SQLiteDatabase database) {
+        return PetMigrationRunner.readCheckpoint(database, SEED_MIGRATION) < 0;
+    }
+
+    /**
+     * Counts the pets of every breed into the table if {@link #SEED_MIGRATION} is pending.
+     * The count and the end of the migration commit in one transaction, so the triggers
+     * take over from exact counts. This is a single GROUP BY over the pets, once per
+     * upgraded database.
+     */
+    static void seed(SQLiteDatabase database) {
+        if (isSeeded(database)) return;
+        PetTrace trace = PetTrace.begin("migration " + SEED_MIGRATION, null);
+        database.beginTransactionNonExclusive();
+        try {
+            database.execSQL("DELETE FROM " + TABLE_NAME);
+            database.execSQL("INSERT INTO " + TABLE_NAME + " (" + BREED + ", " + COUNT + ")"
+                    + " SELECT " + PetEntry.COLUMN_PET_BREED + ", COUNT(*)"
+                    + " FROM " + PetEntry.TABLE_NAME
+                    + " GROUP BY " + PetEntry.COLUMN_PET_BREED);
+            PetMigrationRunner.markDone(database, SEED_MIGRATION);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            trace.end(PetTrace.UNKNOWN_ROWS);
+        }
+        Log.i(LOG_TAG, "Counted the breeds of " + database.getPath());
+    }
+
+    /**
+     * Returns the breed and count columns of {@link BreedEntry}, from the table once it is
+     * seeded and from a GROUP BY over the pets before.
+     */
+    static Cursor query(SQLiteDatabase database, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+        if (!isSeeded(database)) {
+            String[] projection = {
+                    PetEntry.COLUMN_PET_BREED + " AS " + BREED,
+                    "COUNT(*) AS " + COUNT
+            };
+            return PetProvider.queryTable(database, projection, selection, selectionArgs,
+                    PetEntry.COLUMN_PET_BREED, sortOrder, cancellationSignal);
+        }
+        String[] projection = {BREED, COUNT};
+        if (cancellationSignal == null
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return database.query(TABLE_NAME, projection, selection, selectionArgs,
+                    null, null, sortOrder);
+        }
+        return database.query(false, TABLE_NAME, projection, selection, selectionArgs,
+                null, null, sortOrder, null, cancellationSignal);
+    }
+}
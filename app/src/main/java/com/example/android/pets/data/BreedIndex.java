@@ -0,0 +1,249 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-memory index of the distinct breeds and how many pets use each of them, used to
+ * suggest breeds while the user types.
+ * <p>
+ * Breeds are kept in a sorted array of lower-case keys, so a prefix is a binary search
+ * away and suggestions never touch SQLite. Keys are lower-cased with the root locale, so
+ * the index does not depend on the device language (a Turkish locale would not match "I"
+ * with "i").
+ * <p>
+ * The index is reloaded on a background thread whenever the provider reports a change to
+ * the pets table. The provider reads the breeds from a table of counts that triggers keep
+ * up to date with every insert, update and delete, so a reload reads one row per distinct
+ * breed, however many pets there are; DataLayerBenchmark reports its cost as
+ * breed_index_rebuild. A burst of notifications is conflated into a single reload.
+ * <p>
+ * There is one index per process, shared by its users through {@link #acquire} and
+ * {@link #release}. It stops listening while nobody uses it and keeps its last snapshot,
+ * so the next user gets suggestions right away while it is brought up to date.
+ */
+public final class BreedIndex {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = BreedIndex.class.getSimpleName();
+
+    /**
+     * Immutable state of the index. Readers grab the current snapshot and never lock.
+     */
+    private static final class Snapshot {
+        // Lower-case breed keys in ascending order
+        final String[] keys;
+        // Most used spelling of each key
+        final String[] breeds;
+        // Number of pets of each key
+        final int[] counts;
+
+        Snapshot(String[] keys, String[] breeds, int[] counts) {
+            this.keys = keys;
+            this.breeds = breeds;
+            this.counts = counts;
+        }
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(new String[0], new String[0], new int[0]);
+
+    private final ContentResolver mContentResolver;
+    private final ExecutorService mExecutor;
+    private final ContentObserver mObserver;
+
+    /**
+     * Set while a refresh is queued but not started, so a burst of change
+     * notifications only causes one reload.
+     */
+    private final AtomicBoolean mRefreshPending = new AtomicBoolean();
+
+    private volatile Snapshot mSnapshot = EMPTY;
+
+    // The index of the process and the number of its users, guarded by the class
+    private static BreedIndex sInstance;
+    private static int sUsers;
+
+    private BreedIndex(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+        mExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "breed-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                refresh();
+            }
+        };
+    }
+
+    /**
+     * Returns the index of the process, loaded and kept up to date until every caller
+     * called {@link #release}. Must be called on the main thread.
+     */
+    public static synchronized BreedIndex acquire(Context context) {
+        if (sInstance == null) {
+            sInstance = new BreedIndex(context.getApplicationContext().getContentResolver());
+        }
+        if (sUsers++ == 0) sInstance.start();
+        return sInstance;
+    }
+
+    /**
+     * Gives back an index of {@link #acquire}. The last release stops listening for changes.
+     */
+    public static synchronized void release() {
+        if (sUsers == 0) return;
+        if (--sUsers == 0) sInstance.stop();
+    }
+
+    private void start() {
+        mContentResolver.registerContentObserver(PetEntry.CONTENT_URI, true, mObserver);
+        refresh();
+    }
+
+    private void stop() {
+        mContentResolver.unregisterContentObserver(mObserver);
+    }
+
+    /**
+     * Schedules a reload of the index unless one is already waiting.
+     */
+    private void refresh() {
+        if (!mRefreshPending.compareAndSet(false, true)) return;
+        mExecutor.execute(() -> {
+            mRefreshPending.set(false);
+            Cursor cursor = null;
+            try {
+                cursor = mContentResolver.query(BreedEntry.CONTENT_URI,
+                        new String[]{BreedEntry.COLUMN_BREED, BreedEntry.COLUMN_COUNT},
+                        null, null, null);
+                if (cursor != null) mSnapshot = build(cursor);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Failed to load breeds", e);
+            } finally {
+                if (cursor != null) cursor.close();
+            }
+        });
+    }
+
+    /**
+     * Builds a snapshot from rows of breed and count. Spellings that only differ in case
+     * share one key, shown with the spelling used by the most pets.
+     */
+    private static Snapshot build(Cursor cursor) {
+        HashMap<String, Integer> positions = new HashMap<>();
+        List<String> keys = new ArrayList<>();
+        List<String> breeds = new ArrayList<>();
+        List<int[]> counts = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            String breed = cursor.getString(0);
+            if (breed == null) continue;
+            breed = breed.trim();
+            if (breed.isEmpty()) continue;
+            int count = cursor.getInt(1);
+
+            String key = breed.toLowerCase(Locale.ROOT);
+            Integer position = positions.get(key);
+            if (position == null) {
+                positions.put(key, keys.size());
+                keys.add(key);
+                breeds.add(breed);
+                counts.add(new int[]{count, count});
+            } else {
+                // counts[0] is the total, counts[1] the count of the shown spelling
+                int[] keyCounts = counts.get(position);
+                keyCounts[0] += count;
+                if (count > keyCounts[1]) {
+                    keyCounts[1] = count;
+                    breeds.set(position, breed);
+                }
+            }
+        }
+
+        String[] sortedKeys = keys.toArray(new String[0]);
+        Arrays.sort(sortedKeys);
+        String[] sortedBreeds = new String[sortedKeys.length];
+        int[] sortedCounts = new int[sortedKeys.length];
+        for (int i = 0; i < sortedKeys.length; i++) {
+            int position = positions.get(sortedKeys[i]);
+            sortedBreeds[i] = breeds.get(position);
+            sortedCounts[i] = counts.get(position)[0];
+        }
+        return new Snapshot(sortedKeys, sortedBreeds, sortedCounts);
+    }
+
+    /**
+     * Returns up to {@code limit} breeds starting with the given prefix (ignoring case),
+     * most used first.
+     */
+    public List<String> suggest(CharSequence prefix, int limit) {
+        Snapshot snapshot = mSnapshot;
+        if (prefix == null || limit <= 0) return Collections.emptyList();
+        String key = prefix.toString().trim().toLowerCase(Locale.ROOT);
+        if (key.isEmpty()) return Collections.emptyList();
+
+        // All keys with the prefix form one contiguous range of the sorted array
+        int from = lowerBound(snapshot.keys, key);
+        int to = from;
+        while (to < snapshot.keys.length && snapshot.keys[to].startsWith(key)) {
+            to++;
+        }
+
+        // Keep the positions of the top counts, in descending order of count
+        int[] top = new int[Math.min(limit, to - from)];
+        int size = 0;
+        for (int i = from; i < to; i++) {
+            int count = snapshot.counts[i];
+            if (size == top.length && count <= snapshot.counts[top[size - 1]]) continue;
+            int j = (size == top.length) ? size - 1 : size++;
+            while (j > 0 && snapshot.counts[top[j - 1]] < count) {
+                top[j] = top[j - 1];
+                j--;
+            }
+            top[j] = i;
+        }
+
+        List<String> suggestions = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            suggestions.add(snapshot.breeds[top[i]]);
+        }
+        return suggestions;
+    }
+
+    /**
+     * Index of the first key that is not less than the given key.
+     */
+    private static int lowerBound(String[] keys, String key) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
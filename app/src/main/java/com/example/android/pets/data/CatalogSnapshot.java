@@ -0,0 +1,188 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Small binary copy of the first screenful of the catalog list (_id, name and breed),
+ * kept in a file so the list can be drawn on a cold start before the database is open.
+ * <p>
+ * The snapshot is rewritten in the background whenever the live query delivers
+ * different first rows.
+ */
+public final class CatalogSnapshot {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = CatalogSnapshot.class.getSimpleName();
+
+    static final String FILE_NAME = "catalog_snapshot.bin";
+
+    // File header, a snapshot with another header is ignored
+    private static final int MAGIC = 0x50455453;
+    private static final int VERSION = 1;
+
+    /**
+     * Number of rows kept, enough to fill the first screen
+     */
+    public static final int MAX_ROWS = 30;
+
+    /**
+     * Columns of the cursor returned by {@link #load()}
+     */
+    public static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED
+    };
+
+    /**
+     * Writes snapshots one at a time, in the order they were saved
+     */
+    private static final ExecutorService sExecutor =
+            Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "catalog-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final File mFile;
+
+    // Rows that are in the file (or about to be), only touched on the main thread
+    private long[] mIds;
+    private String[] mNames;
+    private String[] mBreeds;
+
+    public CatalogSnapshot(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Reads the snapshot. The file is only a few kilobytes, so this is cheap enough
+     * to call while the activity is created.
+     *
+     * @return a cursor with the {@link #COLUMNS} or null if there is no valid snapshot.
+     */
+    @Nullable
+    public Cursor load() {
+        if (!mFile.exists()) return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            int count = in.readInt();
+            if (count < 0 || count > MAX_ROWS) return null;
+
+            long[] ids = new long[count];
+            String[] names = new String[count];
+            String[] breeds = new String[count];
+            MatrixCursor cursor = new MatrixCursor(COLUMNS, count);
+            for (int i = 0; i < count; i++) {
+                ids[i] = in.readLong();
+                names[i] = in.readUTF();
+                breeds[i] = in.readUTF();
+                cursor.newRow().add(ids[i]).add(names[i]).add(breeds[i]);
+            }
+            mIds = ids;
+            mNames = names;
+            mBreeds = breeds;
+            return cursor;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Ignoring unreadable catalog snapshot", e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Copies the first rows of the live catalog cursor and writes them in the background
+     * if they differ from the stored snapshot. Must be called on the main thread.
+     */
+    public void save(Cursor cursor) {
+        int count = Math.min(cursor.getCount(), MAX_ROWS);
+        int idColumn = cursor.getColumnIndexOrThrow(PetEntry._ID);
+        int nameColumn = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME);
+        int breedColumn = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED);
+
+        final long[] ids = new long[count];
+        final String[] names = new String[count];
+        final String[] breeds = new String[count];
+        for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+            ids[i] = cursor.getLong(idColumn);
+            names[i] = nonNull(cursor.getString(nameColumn));
+            breeds[i] = nonNull(cursor.getString(breedColumn));
+        }
+
+        // Nothing to write if the first screen did not change
+        if (Arrays.equals(ids, mIds) && Arrays.equals(names, mNames)
+                && Arrays.equals(breeds, mBreeds)) {
+            return;
+        }
+        mIds = ids;
+        mNames = names;
+        mBreeds = breeds;
+        sExecutor.execute(() -> write(ids, names, breeds));
+    }
+
+    /**
+     * Writes to a temporary file first so a crash never leaves a half written snapshot.
+     */
+    private void write(long[] ids, String[] names, String[] breeds) {
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                out.writeLong(ids[i]);
+                out.writeUTF(names[i]);
+                out.writeUTF(breeds[i]);
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(mFile)) {
+                Log.w(LOG_TAG, "Failed to replace catalog snapshot");
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to write catalog snapshot", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static String nonNull(String value) {
+        return (value == null) ? "" : value;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // Nothing left to do with this stream
+        }
+    }
+}
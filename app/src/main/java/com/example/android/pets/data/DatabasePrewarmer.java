@@ -0,0 +1,66 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Opens the database on a background thread at startup, so the schema check and file open
+ * are done before the catalog asks for its first query, and runs the catalog query once.
+ * <p>
+ * Running the query compiles its statement into the statement cache of a pooled connection,
+ * and the connection pool hands that connection to the same SQL first. Filling the cursor
+ * window pages in the first screens of the table.
+ */
+final class DatabasePrewarmer implements Runnable {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = DatabasePrewarmer.class.getSimpleName();
+
+    private final PetDbHelper mDbHelper;
+    private final Runnable mThen;
+
+    /**
+     * @param then runs on the warm-up thread once the database is warm, even if
+     *             warming up failed
+     */
+    DatabasePrewarmer(PetDbHelper dbHelper, Runnable then) {
+        mDbHelper = dbHelper;
+        mThen = then;
+    }
+
+    /**
+     * Starts warming up on a new thread.
+     */
+    void start() {
+        // Normal priority, the first frame of the catalog waits for this
+        new Thread(this, "database-prewarm").start();
+    }
+
+    @Override
+    public void run() {
+        PetTrace trace = PetTrace.begin("prewarm", PetEntry.CONTENT_URI);
+        int rows = 0;
+        try {
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            Cursor cursor = database.query(PetEntry.TABLE_NAME, PetEntry.CATALOG_PROJECTION,
+                    null, null, null, null, null);
+            try {
+                rows = cursor.getCount();
+            } finally {
+                cursor.close();
+            }
+            StartupMetrics.onDatabaseWarm();
+        } catch (RuntimeException e) {
+            // The first query opens the database itself then
+            Log.e(LOG_TAG, "Failed to warm up the database", e);
+        } finally {
+            trace.end(rows);
+        }
+        mThen.run();
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.android.pets.data;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Records data layer work that runs on the main thread, with the app code that called it
+ * and how long it took. Enabled by {@link PetProvider} in debuggable builds only.
+ */
+public final class MainThreadAccessDetector {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = MainThreadAccessDetector.class.getSimpleName();
+
+    /**
+     * Number of violations kept, the oldest are dropped first
+     */
+    private static final int MAX_VIOLATIONS = 50;
+
+    /**
+     * One piece of data layer work that ran on the main thread.
+     */
+    public static final class Violation {
+        /**
+         * Operation, for example "query" or "PetDbHelper.open"
+         */
+        public final String operation;
+        /**
+         * URI of the operation, null for work that isn't tied to a URI
+         */
+        public final Uri uri;
+        /**
+         * Rows touched, or -1 if unknown
+         */
+        public final int rows;
+        /**
+         * First stack frame in app code outside of the data layer
+         */
+        public final String caller;
+        /**
+         * Time the work took on the main thread
+         */
+        public final long durationMillis;
+
+        Violation(String operation, Uri uri, int rows, String caller, long durationMillis) {
+            this.operation = operation;
+            this.uri = uri;
+            this.rows = rows;
+            this.caller = caller;
+            this.durationMillis = durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return operation + " " + (uri == null ? "" : uri + " ") + "rows=" + rows
+                    + " took " + durationMillis + " ms on the main thread, called from " + caller;
+        }
+    }
+
+    private static volatile boolean sEnabled;
+
+    // Guarded by itself
+    private static final LinkedList<Violation> sViolations = new LinkedList<>();
+
+    private MainThreadAccessDetector() {
+    }
+
+    /**
+     * Turns the detector on or off.
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Returns the recorded violations, oldest first.
+     */
+    public static List<Violation> getViolations() {
+        synchronized (sViolations) {
+            return new ArrayList<>(sViolations);
+        }
+    }
+
+    /**
+     * Forgets the recorded violations.
+     */
+    public static void clear() {
+        synchronized (sViolations) {
+            sViolations.clear();
+        }
+    }
+
+    static void record(String operation, Uri uri, int rows, long durationMillis) {
+        Violation violation = new Violation(operation, uri, rows, findCaller(), durationMillis);
+        Log.w(LOG_TAG, violation.toString());
+        synchronized (sViolations) {
+            if (sViolations.size() == MAX_VIOLATIONS) sViolations.removeFirst();
+            sViolations.addLast(violation);
+        }
+    }
+
+    /**
+     * Walks up the stack to the first frame that is neither the data layer nor the
+     * framework, for example CatalogActivity.deleteAllPets.
+     */
+    private static String findCaller() {
+        String dataPackage = MainThreadAccessDetector.class.getPackage().getName() + ".";
+        for (StackTraceElement frame : new Throwable().getStackTrace()) {
+            String className = frame.getClassName();
+            if (className.startsWith(dataPackage)
+                    || className.startsWith("android.")
+                    || className.startsWith("androidx.")
+                    || className.startsWith("com.android.")
+                    || className.startsWith("java.")
+                    || className.startsWith("dalvik.")) {
+                continue;
+            }
+            return frame.toString();
+        }
+        return "unknown";
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.core.content.ContentResolverCompat;
+import androidx.core.os.CancellationSignal;
+import androidx.core.os.OperationCanceledException;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link ContentResolver} query in the background and runs it again whenever the
+ * data at its URI changes, delivering every new {@link Cursor} on the main thread.
+ * <p>
+ * Change notifications are conflated: at most one query is running and at most one is
+ * pending, however many notifications arrive meanwhile. A query whose parameters were
+ * replaced, or whose owner stopped listening, is cancelled and its result dropped.
+ */
+public final class ObservableQuery {
+
+    /**
+     * Receives the results of an {@link ObservableQuery} on the main thread.
+     */
+    public interface Callback {
+        /**
+         * Called with every new result. The previous cursor is closed right after this
+         * returns. Called with null when the query is stopped.
+         */
+        void onQueryResult(@Nullable Cursor cursor);
+    }
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = ObservableQuery.class.getSimpleName();
+
+    private static final int THREAD_COUNT = 2;
+
+    /**
+     * Shared pool for all queries. Each query has at most one task queued or running,
+     * so the queue never grows past the number of live queries.
+     */
+    private static final ExecutorService sExecutor;
+
+    static {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "observable-query");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        sExecutor = executor;
+    }
+
+    private final ContentResolver mContentResolver;
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String mSortOrder;
+    private final Callback mCallback;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            requery();
+        }
+    };
+
+    private final Runnable mQueryTask = this::runQuery;
+
+    // State shared with the background thread, guarded by mLock
+    private final Object mLock = new Object();
+    private String mSelection;
+    private String[] mSelectionArgs;
+    private boolean mStarted;
+    private boolean mRunning;
+    private boolean mPending;
+    private int mGeneration;
+    private CancellationSignal mCancellationSignal;
+
+    // Last delivered cursor, only touched on the main thread
+    private Cursor mCursor;
+
+    public ObservableQuery(ContentResolver contentResolver, Uri uri, String[] projection,
+                           String selection, String[] selectionArgs, String sortOrder,
+                           Callback callback) {
+        mContentResolver = contentResolver;
+        mUri = uri;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mSortOrder = sortOrder;
+        mCallback = callback;
+    }
+
+    /**
+     * Runs the query and keeps it up to date until {@link #stop()} is called.
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mStarted) return;
+            mStarted = true;
+        }
+        mContentResolver.registerContentObserver(mUri, true, mObserver);
+        requery();
+    }
+
+    /**
+     * Stops listening for changes, cancels a running query and closes the last cursor.
+     * Must be called on the main thread.
+     */
+    public void stop() {
+        mContentResolver.unregisterContentObserver(mObserver);
+        synchronized (mLock) {
+            mStarted = false;
+            mPending = false;
+            mGeneration++;
+            if (mCancellationSignal != null) mCancellationSignal.cancel();
+        }
+        if (mCursor != null) {
+            mCallback.onQueryResult(null);
+            mCursor.close();
+            mCursor = null;
+        }
+    }
+
+    /**
+     * Replaces the selection and runs the query again. A query still running with the
+     * old selection is cancelled and its result dropped.
+     */
+    public void setSelection(String selection, String[] selectionArgs) {
+        synchronized (mLock) {
+            mSelection = selection;
+            mSelectionArgs = selectionArgs;
+            mGeneration++;
+            if (mCancellationSignal != null) mCancellationSignal.cancel();
+        }
+        requery();
+    }
+
+    /**
+     * Cancels a running query and drops its result, without running it again. The last
+     * delivered cursor stays. Use when the selection is about to be replaced.
+     */
+    public void cancel() {
+        synchronized (mLock) {
+            mPending = false;
+            mGeneration++;
+            if (mCancellationSignal != null) mCancellationSignal.cancel();
+        }
+    }
+
+    /**
+     * Asks for the query to run again. If it is already running, one more run is
+     * scheduled after it finishes.
+     */
+    public void requery() {
+        synchronized (mLock) {
+            if (!mStarted) return;
+            if (mRunning) {
+                mPending = true;
+                return;
+            }
+            mRunning = true;
+        }
+        sExecutor.execute(mQueryTask);
+    }
+
+    private void runQuery() {
+        final int generation;
+        final String selection;
+        final String[] selectionArgs;
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        synchronized (mLock) {
+            mPending = false;
+            generation = mGeneration;
+            selection = mSelection;
+            selectionArgs = mSelectionArgs;
+            mCancellationSignal = cancellationSignal;
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = ContentResolverCompat.query(mContentResolver, mUri, mProjection,
+                    selection, selectionArgs, mSortOrder, cancellationSignal);
+            if (cursor != null) {
+                // Fill the cursor window here rather than on the main thread
+                cursor.getCount();
+            }
+        } catch (OperationCanceledException e) {
+            // The query was superseded, a newer one is pending if still needed
+            if (cursor != null) cursor.close();
+            cursor = null;
+        } catch (RuntimeException e) {
+            // Filling the window of a cancelled query throws the framework's
+            // OperationCanceledException, which is expected too
+            if (!cancellationSignal.isCanceled()) {
+                Log.e(LOG_TAG, "Failed to query " + mUri, e);
+            }
+            if (cursor != null) cursor.close();
+            cursor = null;
+        }
+
+        boolean runAgain;
+        synchronized (mLock) {
+            mCancellationSignal = null;
+            runAgain = mStarted && mPending;
+            mRunning = runAgain;
+        }
+
+        if (cursor != null) deliver(cursor, generation);
+        if (runAgain) sExecutor.execute(mQueryTask);
+    }
+
+    private void deliver(final Cursor cursor, final int generation) {
+        mMainHandler.post(() -> {
+            boolean stale;
+            synchronized (mLock) {
+                stale = !mStarted || generation != mGeneration;
+            }
+            if (stale) {
+                cursor.close();
+                return;
+            }
+            Cursor oldCursor = mCursor;
+            mCursor = cursor;
+            mCallback.onQueryResult(cursor);
+            if (oldCursor != null && oldCursor != cursor) oldCursor.close();
+        });
+    }
+}
@@ -0,0 +1,387 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.ArchiveEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.ShelterEntry;
+import com.example.android.pets.data.PetContract.WeighInEntry;
+
+/**
+ * The archive of the default shelter: pets adopted more than
+ * {@link ArchiveEntry#ARCHIVE_AFTER_MILLIS} ago, with their weigh-ins and rollups, kept in a
+ * database file of their own.
+ * <p>
+ * Adopted pets are rarely looked at again, yet they make up most of the pets table over the
+ * years, and every catalog query and index lookup pays for their pages. Moving them out
+ * keeps the pets table, and so the page cache, filled with the pets the app works with.
+ * <p>
+ * Cold pets are moved in batches of {@link #BATCH_SIZE}. The shelter database is attached
+ * to the archive's own connection only while moving, so the provider's connections keep
+ * their write-ahead log, which the platform turns off on a connection that attaches
+ * anything. A transaction over two files in write-ahead log mode is atomic per file only,
+ * so every batch is moved in steps that each commit to one file:
+ * <ol>
+ * <li>The pets and their history are copied into the archive, together with a record of
+ * the pending move and its range of ids.</li>
+ * <li>The pets of that range whose archived copy is identical are deleted from the shelter;
+ * the delete triggers drop their history there and log them for the next incremental
+ * backup.</li>
+ * <li>Archived copies of pets that are still in the shelter, because they changed after
+ * the copy, are dropped again together with the record of the move.</li>
+ * </ol>
+ * Each step can be repeated: the copy uses INSERT OR REPLACE, and a pending move left over
+ * by a killed process is finished first on the next run. A pet is always in at least one
+ * of the two files.
+ */
+final class PetArchive {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = PetArchive.class.getSimpleName();
+
+    static final String DATABASE_NAME = "shelter_archive.db";
+    private static final int DATABASE_VERSION = 2;
+
+    /**
+     * Number of pets moved per transaction, which holds off the shelter's writers
+     */
+    static final int BATCH_SIZE = 500;
+
+    /**
+     * Schema name of the shelter database while it is attached
+     */
+    private static final String HOT = "hot";
+
+    /**
+     * Sets the adoption time when a pet is inserted as adopted or its status changes, and
+     * clears it when the pet becomes available again. Created in the shelter database.
+     */
+    static final String[] SQL_CREATE_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS " + PetEntry.TABLE_NAME + "_adopted_insert"
+                    + " AFTER INSERT ON " + PetEntry.TABLE_NAME
+                    + " WHEN NEW." + PetEntry.COLUMN_PET_STATUS + " = " + PetEntry.STATUS_ADOPTED
+                    + " AND NEW." + PetEntry.COLUMN_PET_ADOPTED_AT + " IS NULL BEGIN "
+                    + "UPDATE " + PetEntry.TABLE_NAME
+                    + " SET " + PetEntry.COLUMN_PET_ADOPTED_AT + " = " + WeighInHistory.SQL_NOW
+                    + " WHERE " + PetEntry._ID + " = NEW." + PetEntry._ID + "; END",
+            "CREATE TRIGGER IF NOT EXISTS " + PetEntry.TABLE_NAME + "_adopted_update"
+                    + " AFTER UPDATE OF " + PetEntry.COLUMN_PET_STATUS
+                    + " ON " + PetEntry.TABLE_NAME
+                    + " WHEN NEW." + PetEntry.COLUMN_PET_STATUS
+                    + " != OLD." + PetEntry.COLUMN_PET_STATUS + " BEGIN "
+                    + "UPDATE " + PetEntry.TABLE_NAME
+                    + " SET " + PetEntry.COLUMN_PET_ADOPTED_AT + " = CASE WHEN NEW."
+                    + PetEntry.COLUMN_PET_STATUS + " = " + PetEntry.STATUS_ADOPTED
+                    + " THEN " + WeighInHistory.SQL_NOW + " END"
+                    + " WHERE " + PetEntry._ID + " = NEW." + PetEntry._ID + "; END"
+    };
+
+    // Every column, in the order of the pets table
+    private static final String PET_COLUMNS = PetEntry._ID + ", "
+            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ", "
+            + PetEntry.COLUMN_PET_INTAKE_ID + ", " + PetEntry.COLUMN_PET_STATUS + ", "
+            + PetEntry.COLUMN_PET_ADOPTED_AT;
+
+    private static final String WEIGH_IN_COLUMNS = WeighInEntry.COLUMN_PET_ID + ", "
+            + WeighInEntry.COLUMN_TIMESTAMP + ", " + WeighInEntry.COLUMN_WEIGHT;
+
+    private static final String ROLLUP_COLUMNS = WeighInEntry.COLUMN_PET_ID + ", "
+            + WeighInHistory.COLUMN_PERIOD + ", " + WeighInEntry.COLUMN_BUCKET_START + ", "
+            + WeighInEntry.COLUMN_COUNT + ", " + WeighInHistory.COLUMN_TOTAL + ", "
+            + WeighInHistory.COLUMN_MIN_WEIGHT + ", " + WeighInHistory.COLUMN_MAX_WEIGHT;
+
+    // The cold pets of the shelter up to the last id of the batch, both bound
+    private static final String COLD_PETS = HOT + "." + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry.COLUMN_PET_STATUS + " = " + PetEntry.STATUS_ADOPTED
+            + " AND " + PetEntry.COLUMN_PET_ADOPTED_AT + " <= ?"
+            + " AND " + PetEntry._ID + " <= ?";
+
+    private static final String COLD_PET_IDS =
+            "(SELECT " + PetEntry._ID + " FROM " + COLD_PETS + ")";
+
+    // The batch that was copied but not yet deleted from the shelter, at most one row
+    private static final String PENDING_MOVE_TABLE_NAME = "pending_move";
+    private static final String COLUMN_FIRST_ID = "first_id";
+    private static final String COLUMN_LAST_ID = "last_id";
+
+    private static final String SQL_CREATE_PENDING_MOVE_TABLE = "CREATE TABLE IF NOT EXISTS "
+            + PENDING_MOVE_TABLE_NAME + " ("
+            + COLUMN_FIRST_ID + " INTEGER NOT NULL, "
+            + COLUMN_LAST_ID + " INTEGER NOT NULL)";
+
+    private static final String SQL_BATCH_END = "SELECT MIN(" + PetEntry._ID + "), "
+            + "MAX(" + PetEntry._ID + "), COUNT(*)"
+            + " FROM (SELECT " + PetEntry._ID + " FROM " + HOT + "." + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry.COLUMN_PET_STATUS + " = " + PetEntry.STATUS_ADOPTED
+            + " AND " + PetEntry.COLUMN_PET_ADOPTED_AT + " <= ?"
+            + " ORDER BY " + PetEntry._ID + " LIMIT " + BATCH_SIZE + ")";
+
+    private static final String SQL_COPY_PETS = "INSERT OR REPLACE INTO main."
+            + PetEntry.TABLE_NAME + " (" + PET_COLUMNS + ")"
+            + " SELECT " + PET_COLUMNS + " FROM " + COLD_PETS;
+
+    private static final String SQL_COPY_WEIGH_INS = "INSERT OR REPLACE INTO main."
+            + WeighInHistory.TABLE_NAME + " (" + WEIGH_IN_COLUMNS + ")"
+            + " SELECT " + WEIGH_IN_COLUMNS + " FROM " + HOT + "." + WeighInHistory.TABLE_NAME
+            + " WHERE " + WeighInEntry.COLUMN_PET_ID + " IN " + COLD_PET_IDS;
+
+    private static final String SQL_COPY_ROLLUPS = "INSERT OR REPLACE INTO main."
+            + WeighInHistory.ROLLUPS_TABLE_NAME + " (" + ROLLUP_COLUMNS + ")"
+            + " SELECT " + ROLLUP_COLUMNS
+            + " FROM " + HOT + "." + WeighInHistory.ROLLUPS_TABLE_NAME
+            + " WHERE " + WeighInEntry.COLUMN_PET_ID + " IN " + COLD_PET_IDS;
+
+    // The shelter's pets of a range of ids, both bound, whose archived copy is identical
+    private static final String SQL_DELETE_MOVED_PETS = "DELETE FROM " + HOT + "."
+            + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " BETWEEN ? AND ?"
+            + " AND EXISTS (SELECT 1 FROM main." + PetEntry.TABLE_NAME + " AS archived"
+            + " WHERE archived." + PetEntry._ID + " = " + PetEntry.TABLE_NAME + "." + PetEntry._ID
+            + " AND " + sameColumns("archived", PetEntry.TABLE_NAME, PET_COLUMNS) + ")";
+
+    // Ids of a range, both bound, that are still in the shelter after the delete
+    private static final String PETS_LEFT = "(SELECT " + PetEntry._ID
+            + " FROM " + HOT + "." + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry._ID + " BETWEEN ? AND ?)";
+
+    private static final String[] SQL_DROP_STALE_COPIES = {
+            "DELETE FROM main." + WeighInHistory.TABLE_NAME
+                    + " WHERE " + WeighInEntry.COLUMN_PET_ID + " IN " + PETS_LEFT,
+            "DELETE FROM main." + WeighInHistory.ROLLUPS_TABLE_NAME
+                    + " WHERE " + WeighInEntry.COLUMN_PET_ID + " IN " + PETS_LEFT,
+            "DELETE FROM main." + PetEntry.TABLE_NAME
+                    + " WHERE " + PetEntry._ID + " IN " + PETS_LEFT
+    };
+
+    /**
+     * SQL that is true when every given column but the joined _id of the two tables holds
+     * the same value, NULLs included.
+     */
+    private static String sameColumns(String table, String otherTable, String columns) {
+        StringBuilder sql = new StringBuilder();
+        for (String column : columns.split(", ")) {
+            if (column.equals(PetEntry._ID)) continue;
+            if (sql.length() > 0) sql.append(" AND ");
+            sql.append(table).append('.').append(column)
+                    .append(" IS ").append(otherTable).append('.').append(column);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Result of a run.
+     */
+    static final class Result {
+        final int rowsMoved;
+        // Whether no cold pets are left
+        final boolean finished;
+
+        Result(int rowsMoved, boolean finished) {
+            this.rowsMoved = rowsMoved;
+            this.finished = finished;
+        }
+    }
+
+    /**
+     * The archive database. It holds the pets table and the history tables without their
+     * triggers, rows only come in through {@link #archive(long)}. Version 2 adds the record
+     * of the pending move.
+     */
+    private static final class ArchiveDbHelper extends SQLiteOpenHelper {
+
+        ArchiveDbHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL(PetDbHelper.SQL_CREATE_ENTRIES);
+            sqLiteDatabase.execSQL(WeighInHistory.sqlCreateTable());
+            sqLiteDatabase.execSQL(WeighInHistory.sqlCreateRollupsTable());
+            sqLiteDatabase.execSQL(SQL_CREATE_PENDING_MOVE_TABLE);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+            if (oldVersion < 2) {
+                sqLiteDatabase.execSQL(SQL_CREATE_PENDING_MOVE_TABLE);
+            }
+        }
+    }
+
+    private final PetDbHelper mDbHelper;
+    private final ArchiveDbHelper mArchiveHelper;
+    private final ContentResolver mContentResolver;
+
+    PetArchive(Context context, PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+        mArchiveHelper = new ArchiveDbHelper(context);
+        mContentResolver = context.getContentResolver();
+    }
+
+    /**
+     * Returns the archive database, for queries.
+     */
+    SQLiteDatabase getReadableDatabase() {
+        return mArchiveHelper.getReadableDatabase();
+    }
+
+    /**
+     * Closes the archive database, it is opened again on the next use.
+     */
+    void close() {
+        mArchiveHelper.close();
+    }
+
+    /**
+     * Moves the pets adopted more than {@link ArchiveEntry#ARCHIVE_AFTER_MILLIS} ago to the
+     * archive, batch by batch, until there are none left or the deadline passes. Must not
+     * be called on the main thread.
+     *
+     * @param deadline uptime after which no new batch is started
+     */
+    synchronized Result archive(long deadline) {
+        String[] cutoff = {
+                String.valueOf(System.currentTimeMillis() - ArchiveEntry.ARCHIVE_AFTER_MILLIS)};
+        SQLiteDatabase archive = attach();
+
+        int rowsMoved = 0;
+        boolean finished = false;
+        try {
+            // A move a killed process left half done
+            rowsMoved += finishMove(archive);
+            while (!finished && SystemClock.uptimeMillis() < deadline) {
+                int batchRows = copyBatch(archive, cutoff);
+                rowsMoved += finishMove(archive);
+                finished = (batchRows < BATCH_SIZE);
+            }
+        } finally {
+            archive.execSQL("DETACH DATABASE " + HOT);
+        }
+
+        if (rowsMoved > 0) {
+            Log.i(LOG_TAG, "Archived " + rowsMoved + " pets" + (finished ? "" : ", more left"));
+            mContentResolver.notifyChange(PetEntry.CONTENT_URI, null);
+            mContentResolver.notifyChange(
+                    ShelterEntry.buildPetsUri(ShelterEntry.DEFAULT_SHELTER_ID), null);
+            mContentResolver.notifyChange(ArchiveEntry.CONTENT_URI, null);
+        }
+        return new Result(rowsMoved, finished);
+    }
+
+    /**
+     * Only copies the next batch into the archive, like a run killed right after its first
+     * step. For tests.
+     *
+     * @return the number of pets copied.
+     */
+    synchronized int copyNextBatch() {
+        String[] cutoff = {
+                String.valueOf(System.currentTimeMillis() - ArchiveEntry.ARCHIVE_AFTER_MILLIS)};
+        SQLiteDatabase archive = attach();
+        try {
+            return copyBatch(archive, cutoff);
+        } finally {
+            archive.execSQL("DETACH DATABASE " + HOT);
+        }
+    }
+
+    /**
+     * Returns the archive database with the shelter database attached as {@link #HOT}.
+     */
+    private SQLiteDatabase attach() {
+        String hotPath = mDbHelper.getWritableDatabase().getPath();
+        SQLiteDatabase archive = mArchiveHelper.getWritableDatabase();
+        archive.execSQL("ATTACH DATABASE ? AS " + HOT, new Object[]{hotPath});
+        return archive;
+    }
+
+    /**
+     * First step: copies the next batch of cold pets with their history into the archive
+     * and records the pending move, in one transaction of the archive.
+     *
+     * @return the number of pets copied.
+     */
+    private static int copyBatch(SQLiteDatabase archive, String[] cutoff) {
+        archive.beginTransactionNonExclusive();
+        try {
+            int batchRows = 0;
+            Cursor cursor = archive.rawQuery(SQL_BATCH_END, cutoff);
+            try {
+                if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                    Object[] batch = {cutoff[0], cursor.getLong(1)};
+                    batchRows = cursor.getInt(2);
+                    archive.execSQL(SQL_COPY_PETS, batch);
+                    archive.execSQL(SQL_COPY_WEIGH_INS, batch);
+                    archive.execSQL(SQL_COPY_ROLLUPS, batch);
+
+                    ContentValues values = new ContentValues();
+                    values.put(COLUMN_FIRST_ID, cursor.getLong(0));
+                    values.put(COLUMN_LAST_ID, cursor.getLong(1));
+                    archive.delete(PENDING_MOVE_TABLE_NAME, null, null);
+                    archive.insert(PENDING_MOVE_TABLE_NAME, null, values);
+                }
+            } finally {
+                cursor.close();
+            }
+            archive.setTransactionSuccessful();
+            return batchRows;
+        } finally {
+            archive.endTransaction();
+        }
+    }
+
+    /**
+     * Second and third step of the pending move, if there is one: deletes the copied pets
+     * from the shelter in one transaction of the shelter database, then drops the copies of
+     * pets that changed meanwhile and the record of the move in one transaction of the
+     * archive.
+     *
+     * @return the number of pets deleted from the shelter.
+     */
+    private static int finishMove(SQLiteDatabase archive) {
+        long firstId;
+        long lastId;
+        Cursor cursor = archive.query(PENDING_MOVE_TABLE_NAME,
+                new String[]{COLUMN_FIRST_ID, COLUMN_LAST_ID}, null, null, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) return 0;
+            firstId = cursor.getLong(0);
+            lastId = cursor.getLong(1);
+        } finally {
+            cursor.close();
+        }
+
+        int rowsDeleted;
+        SQLiteStatement delete = archive.compileStatement(SQL_DELETE_MOVED_PETS);
+        try {
+            delete.bindLong(1, firstId);
+            delete.bindLong(2, lastId);
+            rowsDeleted = delete.executeUpdateDelete();
+        } finally {
+            delete.close();
+        }
+
+        archive.beginTransactionNonExclusive();
+        try {
+            for (String sql : SQL_DROP_STALE_COPIES) {
+                archive.execSQL(sql, new Object[]{firstId, lastId});
+            }
+            archive.delete(PENDING_MOVE_TABLE_NAME, null, null);
+            archive.setTransactionSuccessful();
+        } finally {
+            archive.endTransaction();
+        }
+        return rowsDeleted;
+    }
+}
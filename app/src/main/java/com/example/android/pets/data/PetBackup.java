@@ -0,0 +1,499 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+
+/**
+ * Online backups of the pets table into a separate database file, and restores from them.
+ * <p>
+ * A full backup copies the pets table in {@link #BATCH_SIZE} row batches, each read as its own
+ * statement, so {@link PetProvider} writers are never held up by the copy. Triggers log the
+ * ids of pets written meanwhile to the changes table. Those are copied again in catch-up
+ * passes, and the last pass runs inside a write transaction so the backup ends up as a
+ * consistent snapshot. Later backups to the same file only copy the pets in the changes
+ * table, that is the incremental backup.
+ * <p>
+ * The platform doesn't expose the SQLite online backup API, and VACUUM INTO needs
+ * SQLite 3.27 (API 30), so the copy is done row by row.
+ */
+final class PetBackup {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = PetBackup.class.getSimpleName();
+
+    /**
+     * The ids of pets written since the oldest backup, in the app's database
+     */
+    static final String CHANGES_TABLE_NAME = "pet_changes";
+    static final String COLUMN_SEQ = "seq";
+    static final String COLUMN_PET_ID = "pet_id";
+
+    /**
+     * The backup files with the last change each of them contains, in the app's database.
+     * Changes are only logged while there is at least one backup.
+     */
+    static final String BACKUPS_TABLE_NAME = "backups";
+    static final String COLUMN_PATH = "path";
+
+    /**
+     * The last change contained in a backup file, in the backup file itself
+     */
+    private static final String INFO_TABLE_NAME = "backup_info";
+
+    static final String SQL_CREATE_CHANGES_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + CHANGES_TABLE_NAME + " ("
+                    + COLUMN_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + COLUMN_PET_ID + " INTEGER NOT NULL)";
+
+    static final String SQL_CREATE_BACKUPS_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + BACKUPS_TABLE_NAME + " ("
+                    + COLUMN_PATH + " TEXT PRIMARY KEY, "
+                    + COLUMN_SEQ + " INTEGER NOT NULL)";
+
+    private static final String LOG_CHANGES_WHEN =
+            " WHEN EXISTS (SELECT 1 FROM " + BACKUPS_TABLE_NAME + ") BEGIN ";
+
+    static final String[] SQL_CREATE_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS " + PetEntry.TABLE_NAME + "_backup_insert"
+                    + " AFTER INSERT ON " + PetEntry.TABLE_NAME + LOG_CHANGES_WHEN
+                    + "INSERT INTO " + CHANGES_TABLE_NAME + " (" + COLUMN_PET_ID + ")"
+                    + " VALUES (NEW." + PetEntry._ID + "); END",
+            "CREATE TRIGGER IF NOT EXISTS " + PetEntry.TABLE_NAME + "_backup_update"
+                    + " AFTER UPDATE ON " + PetEntry.TABLE_NAME + LOG_CHANGES_WHEN
+                    + "INSERT INTO " + CHANGES_TABLE_NAME + " (" + COLUMN_PET_ID + ")"
+                    + " VALUES (OLD." + PetEntry._ID + "); "
+                    + "INSERT INTO " + CHANGES_TABLE_NAME + " (" + COLUMN_PET_ID + ")"
+                    + " SELECT NEW." + PetEntry._ID
+                    + " WHERE NEW." + PetEntry._ID + " != OLD." + PetEntry._ID + "; END",
+            "CREATE TRIGGER IF NOT EXISTS " + PetEntry.TABLE_NAME + "_backup_delete"
+                    + " AFTER DELETE ON " + PetEntry.TABLE_NAME + LOG_CHANGES_WHEN
+                    + "INSERT INTO " + CHANGES_TABLE_NAME + " (" + COLUMN_PET_ID + ")"
+                    + " VALUES (OLD." + PetEntry._ID + "); END"
+    };
+
+    /**
+     * Number of rows copied per statement and per transaction on the backup file
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * Catch-up passes run without locking until no more than this many pets changed
+     */
+    private static final int FINAL_PASS_ROWS = 100;
+
+    /**
+     * Catch-up passes run without locking before giving up on the writers settling down
+     */
+    private static final int MAX_CATCH_UP_PASSES = 10;
+
+    private static final String COLUMNS = PetEntry._ID + ", " + PetEntry.COLUMN_PET_NAME + ", "
+            + PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT + ", " + PetEntry.COLUMN_PET_INTAKE_ID + ", "
+            + PetEntry.COLUMN_PET_STATUS + ", " + PetEntry.COLUMN_PET_ADOPTED_AT;
+    private static final int COLUMN_COUNT = 8;
+
+    /**
+     * The columns read from backups made before the adoption status, as available pets
+     */
+    private static final String LEGACY_COLUMNS = PetEntry._ID + ", "
+            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ", "
+            + PetEntry.COLUMN_PET_INTAKE_ID + ", " + PetEntry.STATUS_AVAILABLE + ", NULL";
+
+    private static final String SQL_SELECT_BATCH = "SELECT " + COLUMNS
+            + " FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " > ?"
+            + " ORDER BY " + PetEntry._ID + " LIMIT " + BATCH_SIZE;
+
+    private static final String SQL_SELECT_BY_ID = "SELECT " + COLUMNS
+            + " FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " = ?";
+
+    private static final String SQL_INSERT = "INSERT OR REPLACE INTO " + PetEntry.TABLE_NAME
+            + " (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * Result of a backup.
+     */
+    static final class Result {
+        final boolean incremental;
+        final int rowsCopied;
+        final long bytes;
+        final long durationMillis;
+
+        Result(boolean incremental, int rowsCopied, long bytes, long durationMillis) {
+            this.incremental = incremental;
+            this.rowsCopied = rowsCopied;
+            this.bytes = bytes;
+            this.durationMillis = durationMillis;
+        }
+    }
+
+    private final SQLiteDatabase mDatabase;
+
+    PetBackup(SQLiteDatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * Backs the pets table up into the given file. If the file holds an earlier backup made
+     * from this database, only the pets written since are copied. Must not be called on the
+     * main thread.
+     */
+    Result backup(File file) {
+        long start = SystemClock.uptimeMillis();
+        String path = file.getAbsolutePath();
+
+        long seq = backedUpSeq(file);
+        boolean incremental = (seq >= 0);
+        File target = incremental ? file : new File(path + ".tmp");
+        if (!incremental) {
+            deleteDatabaseFile(target);
+            seq = register(path);
+        }
+
+        int rowsCopied = 0;
+        SQLiteDatabase backup = openBackup(target);
+        try {
+            if (!incremental) {
+                rowsCopied += copyAll(backup);
+            }
+
+            // Copy the pets written meanwhile until only a few are left
+            for (int pass = 0; pass < MAX_CATCH_UP_PASSES
+                    && countChanges(seq) > FINAL_PASS_ROWS; pass++) {
+                long toSeq = lastSeq(seq);
+                rowsCopied += copyChanges(backup, seq, toSeq);
+                seq = toSeq;
+            }
+
+            // Copy the last few holding off the writers, so the backup is a consistent snapshot
+            mDatabase.beginTransactionNonExclusive();
+            try {
+                long toSeq = lastSeq(seq);
+                rowsCopied += copyChanges(backup, seq, toSeq);
+                seq = toSeq;
+                backup.execSQL("UPDATE " + INFO_TABLE_NAME + " SET " + COLUMN_SEQ + " = ?",
+                        new Object[]{seq});
+                mDatabase.execSQL("INSERT OR REPLACE INTO " + BACKUPS_TABLE_NAME
+                        + " (" + COLUMN_PATH + ", " + COLUMN_SEQ + ") VALUES (?, ?)",
+                        new Object[]{path, seq});
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        } finally {
+            backup.close();
+        }
+
+        if (!incremental) {
+            deleteDatabaseFile(file);
+            if (!target.renameTo(file)) {
+                throw new IllegalStateException("Can't rename the backup to " + file);
+            }
+        }
+        trimChanges();
+
+        long duration = SystemClock.uptimeMillis() - start;
+        Log.i(LOG_TAG, (incremental ? "Incremental" : "Full") + " backup to " + path
+                + ": " + rowsCopied + " rows, " + file.length() + " bytes in " + duration + " ms");
+        return new Result(incremental, rowsCopied, file.length(), duration);
+    }
+
+    /**
+     * Replaces all pets with the ones in the given backup file, in one transaction, so
+     * readers see either the old or the restored pets. Returns the number of restored pets.
+     * Earlier backups are forgotten, the next backup of each file is a full one.
+     */
+    int restore(File file) {
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("No backup at " + file);
+        }
+        SQLiteDatabase backup = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            if (readSeq(backup) < 0) {
+                throw new IllegalArgumentException(file + " is not a pets backup");
+            }
+
+            int rowsRestored = 0;
+            mDatabase.beginTransaction();
+            try {
+                // With no backups left the triggers don't log the restored pets
+                mDatabase.execSQL("DELETE FROM " + BACKUPS_TABLE_NAME);
+                mDatabase.execSQL("DELETE FROM " + CHANGES_TABLE_NAME);
+                mDatabase.execSQL("DELETE FROM " + PetEntry.TABLE_NAME);
+
+                SQLiteStatement insert = mDatabase.compileStatement(SQL_INSERT);
+                try {
+                    Cursor cursor = backup.rawQuery("SELECT "
+                            + (hasStatus(backup) ? COLUMNS : LEGACY_COLUMNS)
+                            + " FROM " + PetEntry.TABLE_NAME, null);
+                    try {
+                        while (cursor.moveToNext()) {
+                            bindRow(insert, cursor);
+                            insert.executeInsert();
+                            rowsRestored++;
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                } finally {
+                    insert.close();
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+            return rowsRestored;
+        } finally {
+            backup.close();
+        }
+    }
+
+    /**
+     * Returns the last change contained in the given backup file, or -1 if the file is
+     * missing, isn't a backup, predates the adoption status, or doesn't match this database
+     * and needs a full backup.
+     */
+    private long backedUpSeq(File file) {
+        if (!file.isFile()) return -1;
+
+        long fileSeq;
+        try {
+            SQLiteDatabase backup = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null,
+                    SQLiteDatabase.OPEN_READONLY);
+            try {
+                fileSeq = hasStatus(backup) ? readSeq(backup) : -1;
+            } finally {
+                backup.close();
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Can't read the backup at " + file + ", making a full one", e);
+            return -1;
+        }
+
+        Cursor cursor = mDatabase.query(BACKUPS_TABLE_NAME, new String[]{COLUMN_SEQ},
+                COLUMN_PATH + "=?", new String[]{file.getAbsolutePath()},
+                null, null, null);
+        try {
+            if (cursor.moveToFirst() && cursor.getLong(0) == fileSeq) return fileSeq;
+        } finally {
+            cursor.close();
+        }
+        return -1;
+    }
+
+    /**
+     * Registers a full backup to the given path, so the triggers log the pets written from
+     * now on. Returns the last change that happened before.
+     */
+    private long register(String path) {
+        mDatabase.beginTransactionNonExclusive();
+        try {
+            long seq = lastSeq(0);
+            mDatabase.execSQL("INSERT OR REPLACE INTO " + BACKUPS_TABLE_NAME
+                    + " (" + COLUMN_PATH + ", " + COLUMN_SEQ + ") VALUES (?, ?)",
+                    new Object[]{path, seq});
+            mDatabase.setTransactionSuccessful();
+            return seq;
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    private static SQLiteDatabase openBackup(File file) {
+        SQLiteDatabase backup = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY);
+        if (readSeq(backup) < 0) {
+            backup.execSQL(PetDbHelper.SQL_CREATE_ENTRIES);
+            backup.execSQL(PetDbHelper.SQL_CREATE_INTAKE_ID_INDEX);
+            backup.execSQL("CREATE TABLE " + INFO_TABLE_NAME
+                    + " (" + COLUMN_SEQ + " INTEGER NOT NULL)");
+            backup.execSQL("INSERT INTO " + INFO_TABLE_NAME + " VALUES (0)");
+        }
+        return backup;
+    }
+
+    /**
+     * Returns the last change contained in a backup, or -1 if it isn't a backup.
+     */
+    private static long readSeq(SQLiteDatabase backup) {
+        Cursor cursor = backup.rawQuery("SELECT name FROM sqlite_master"
+                + " WHERE type='table' AND name=?", new String[]{INFO_TABLE_NAME});
+        try {
+            if (!cursor.moveToFirst()) return -1;
+        } finally {
+            cursor.close();
+        }
+        cursor = backup.rawQuery("SELECT " + COLUMN_SEQ + " FROM " + INFO_TABLE_NAME, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns whether the pets of a backup have the adoption status, added in version 7.
+     */
+    private static boolean hasStatus(SQLiteDatabase backup) {
+        Cursor cursor = backup.rawQuery("PRAGMA table_info(" + PetEntry.TABLE_NAME + ")", null);
+        try {
+            int nameColumn = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                if (PetEntry.COLUMN_PET_STATUS.equals(cursor.getString(nameColumn))) return true;
+            }
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Copies the whole pets table in batches of {@link #BATCH_SIZE} rows.
+     */
+    private int copyAll(SQLiteDatabase backup) {
+        int rowsCopied = 0;
+        long lastId = 0;
+        SQLiteStatement insert = backup.compileStatement(SQL_INSERT);
+        try {
+            while (true) {
+                int batchRows = 0;
+                Cursor cursor = mDatabase.rawQuery(SQL_SELECT_BATCH,
+                        new String[]{String.valueOf(lastId)});
+                backup.beginTransaction();
+                try {
+                    while (cursor.moveToNext()) {
+                        bindRow(insert, cursor);
+                        insert.executeInsert();
+                        lastId = cursor.getLong(0);
+                        batchRows++;
+                    }
+                    backup.setTransactionSuccessful();
+                } finally {
+                    backup.endTransaction();
+                    cursor.close();
+                }
+                rowsCopied += batchRows;
+                if (batchRows < BATCH_SIZE) return rowsCopied;
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    /**
+     * Copies the pets changed after fromSeq up to toSeq again, or deletes them from the
+     * backup if they are gone. Returns the number of pets copied or deleted.
+     */
+    private int copyChanges(SQLiteDatabase backup, long fromSeq, long toSeq) {
+        if (toSeq <= fromSeq) return 0;
+
+        int rowsCopied = 0;
+        SQLiteStatement insert = backup.compileStatement(SQL_INSERT);
+        SQLiteStatement delete = backup.compileStatement("DELETE FROM " + PetEntry.TABLE_NAME
+                + " WHERE " + PetEntry._ID + " = ?");
+        Cursor changes = mDatabase.rawQuery("SELECT DISTINCT " + COLUMN_PET_ID
+                + " FROM " + CHANGES_TABLE_NAME
+                + " WHERE " + COLUMN_SEQ + " > ? AND " + COLUMN_SEQ + " <= ?",
+                new String[]{String.valueOf(fromSeq), String.valueOf(toSeq)});
+        try {
+            backup.beginTransaction();
+            try {
+                while (changes.moveToNext()) {
+                    long id = changes.getLong(0);
+                    Cursor cursor = mDatabase.rawQuery(SQL_SELECT_BY_ID,
+                            new String[]{String.valueOf(id)});
+                    try {
+                        if (cursor.moveToFirst()) {
+                            bindRow(insert, cursor);
+                            insert.executeInsert();
+                        } else {
+                            delete.bindLong(1, id);
+                            delete.executeUpdateDelete();
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    if (++rowsCopied % BATCH_SIZE == 0) {
+                        backup.setTransactionSuccessful();
+                        backup.endTransaction();
+                        backup.beginTransaction();
+                    }
+                }
+                backup.setTransactionSuccessful();
+            } finally {
+                backup.endTransaction();
+            }
+        } finally {
+            changes.close();
+            insert.close();
+            delete.close();
+        }
+        return rowsCopied;
+    }
+
+    private long countChanges(long fromSeq) {
+        Cursor cursor = mDatabase.rawQuery("SELECT COUNT(*) FROM " + CHANGES_TABLE_NAME
+                + " WHERE " + COLUMN_SEQ + " > ?", new String[]{String.valueOf(fromSeq)});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the last logged change, or fromSeq if there is none after it.
+     */
+    private long lastSeq(long fromSeq) {
+        Cursor cursor = mDatabase.rawQuery("SELECT MAX(" + COLUMN_SEQ + ") FROM "
+                + CHANGES_TABLE_NAME, null);
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                return Math.max(fromSeq, cursor.getLong(0));
+            }
+            return fromSeq;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Forgets the changes every backup already contains.
+     */
+    private void trimChanges() {
+        mDatabase.execSQL("DELETE FROM " + CHANGES_TABLE_NAME + " WHERE " + COLUMN_SEQ
+                + " <= (SELECT MIN(" + COLUMN_SEQ + ") FROM " + BACKUPS_TABLE_NAME + ")");
+    }
+
+    private static void bindRow(SQLiteStatement statement, Cursor cursor) {
+        statement.clearBindings();
+        for (int column = 0; column < COLUMN_COUNT; column++) {
+            if (cursor.isNull(column)) {
+                statement.bindNull(column + 1);
+            } else if (column == 1 || column == 2 || column == 5) {
+                statement.bindString(column + 1, cursor.getString(column));
+            } else {
+                statement.bindLong(column + 1, cursor.getLong(column));
+            }
+        }
+    }
+
+    private static void deleteDatabaseFile(File file) {
+        for (String suffix : new String[]{"", "-journal", "-wal", "-shm"}) {
+            File part = new File(file.getPath() + suffix);
+            if (part.exists() && !part.delete()) {
+                Log.e(LOG_TAG, "Can't delete " + part);
+            }
+        }
+    }
+}
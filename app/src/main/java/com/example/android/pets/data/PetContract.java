@@ -29,6 +29,31 @@ public final class PetContract {
      * as the ContentProvider hasn't been given any information on what to do with "staff".
      */
     public static final String PATH_PETS = "pets";
+    /**
+     * Paths for the read-only weight analytics of the pets table.
+     */
+    public static final String PATH_WEIGHT_STATS = "weight_stats";
+    public static final String PATH_WEIGHT_HISTOGRAM = "weight_histogram";
+    public static final String PATH_WEIGHT_OUTLIERS = "weight_outliers";
+    /**
+     * Path for the read-only list of distinct breeds.
+     */
+    public static final String PATH_BREEDS = "breeds";
+    /**
+     * Path for the pets of one shelter, content://com.example.android.pets/shelters/2/pets,
+     * or of all shelters, content://com.example.android.pets/shelters/all/pets
+     */
+    public static final String PATH_SHELTERS = "shelters";
+    /**
+     * Path for the weigh-in history of one pet, appended to the pet's URI:
+     * content://com.example.android.pets/pets/3/weigh_ins
+     */
+    public static final String PATH_WEIGH_INS = "weigh_ins";
+    /**
+     * Path for the read-only archive of the pets adopted long ago,
+     * content://com.example.android.pets/archive/pets
+     */
+    public static final String PATH_ARCHIVE = "archive";
 
 
     /* Inner class that defines the "pets" table contents */
@@ -63,6 +88,52 @@ public final class PetContract {
         public static final String COLUMN_PET_GENDER = "gender";
         // Column for the pet's weight
         public static final String COLUMN_PET_WEIGHT = "weight";
+        // Optional column for the id the pet was given by an external intake system.
+        // Unique when set, so it can be used to recognize a pet on re-import.
+        public static final String COLUMN_PET_INTAKE_ID = "intake_id";
+        // Column for the pet's adoption status
+        public static final String COLUMN_PET_STATUS = "status";
+        // Column for the time the pet was adopted, in milliseconds since the epoch.
+        // Set by the database when the status changes to adopted, unless given on insert,
+        // and NULL for available pets.
+        public static final String COLUMN_PET_ADOPTED_AT = "adopted_at";
+
+        /**
+         * Query parameter of the {@link #CONTENT_URI} that turns an insert into an upsert:
+         * a pet whose {@link #COLUMN_PET_INTAKE_ID} already exists is updated instead of
+         * inserted again, and left untouched if nothing changed.
+         */
+        public static final String QUERY_PARAM_UPSERT = "upsert";
+
+        /**
+         * The content URI to insert or bulk insert pets in upsert mode
+         */
+        public static final Uri UPSERT_URI = CONTENT_URI.buildUpon()
+                .appendQueryParameter(QUERY_PARAM_UPSERT, "true")
+                .build();
+
+        /**
+         * Provider call that applies the same values to several pets with one statement.
+         * The ids go in {@link #EXTRA_IDS} as a long array and the values in
+         * {@link #EXTRA_VALUES} as ContentValues. The argument is the shelter id, or null
+         * for the default shelter. The number of updated pets is returned in
+         * {@link #EXTRA_ROWS}. Call it with
+         * resolver.call(PetEntry.CONTENT_URI, PetEntry.METHOD_BATCH_UPDATE, null, extras)
+         */
+        public static final String METHOD_BATCH_UPDATE = "batch_update";
+        public static final String EXTRA_IDS = "ids";
+        public static final String EXTRA_VALUES = "values";
+        public static final String EXTRA_ROWS = "rows";
+
+        /**
+         * Projection of the catalog list. The database is warmed up at startup with this
+         * exact query, so keep it the one the catalog runs. Don't modify the array.
+         */
+        public static final String[] CATALOG_PROJECTION = {
+                _ID,
+                COLUMN_PET_NAME,
+                COLUMN_PET_BREED
+        };
 
         /**
          * Possible values for the pet's gender
@@ -85,5 +156,344 @@ public final class PetContract {
          * Default weight for the pet
          */
         public static final int WEIGHT_DEFAULT = 0;
+
+        /**
+         * Possible values for the pet's adoption status
+         */
+        public static final int STATUS_AVAILABLE = 0;
+        public static final int STATUS_ADOPTED = 1;
+
+        /**
+         * Returns whether or not the given status is {@link #STATUS_AVAILABLE} or
+         * {@link #STATUS_ADOPTED}.
+         */
+        public static boolean isValidStatus(int status) {
+            return status == STATUS_AVAILABLE ||
+                    status == STATUS_ADOPTED;
+        }
+    }
+
+    /* Inner class that defines the weight analytics results. They are computed on query and
+     * are never stored, so these URIs are read-only. */
+    public static final class WeightStatsEntry implements BaseColumns {
+        /**
+         * One row per breed and gender with count, min, max, mean, standard deviation
+         * and percentiles of the weight
+         */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_WEIGHT_STATS);
+
+        /**
+         * One row per non-empty weight bucket, in ascending order. The bucket width can be
+         * set with {@link #QUERY_PARAM_BUCKET_WIDTH}.
+         */
+        public static final Uri HISTOGRAM_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_WEIGHT_HISTOGRAM);
+
+        /**
+         * Pets whose weight is unusual for their breed and gender. The z-score threshold
+         * can be set with {@link #QUERY_PARAM_THRESHOLD}.
+         */
+        public static final Uri OUTLIERS_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_WEIGHT_OUTLIERS);
+
+        /**
+         * The MIME type of the weight analytics URIs.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE +
+                "/" + CONTENT_AUTHORITY + "/" + PATH_WEIGHT_STATS;
+
+        // Query parameter for the histogram bucket width in kg
+        public static final String QUERY_PARAM_BUCKET_WIDTH = "bucket_width";
+        public static final int BUCKET_WIDTH_DEFAULT = 1;
+        // Query parameter for the absolute z-score above which a pet is an outlier
+        public static final String QUERY_PARAM_THRESHOLD = "threshold";
+        public static final double THRESHOLD_DEFAULT = 3.0;
+
+        // Columns of the statistics rows
+        public static final String COLUMN_BREED = PetEntry.COLUMN_PET_BREED;
+        public static final String COLUMN_GENDER = PetEntry.COLUMN_PET_GENDER;
+        public static final String COLUMN_COUNT = "count";
+        public static final String COLUMN_MIN = "min";
+        public static final String COLUMN_MAX = "max";
+        public static final String COLUMN_MEAN = "mean";
+        public static final String COLUMN_STD_DEV = "std_dev";
+        public static final String COLUMN_P25 = "p25";
+        public static final String COLUMN_P50 = "p50";
+        public static final String COLUMN_P75 = "p75";
+        public static final String COLUMN_P90 = "p90";
+        public static final String COLUMN_P99 = "p99";
+
+        // Columns of the histogram rows
+        public static final String COLUMN_BUCKET_START = "bucket_start";
+        public static final String COLUMN_BUCKET_END = "bucket_end";
+
+        // Columns of the outlier rows, _id is the pet's id
+        public static final String COLUMN_WEIGHT = PetEntry.COLUMN_PET_WEIGHT;
+        public static final String COLUMN_Z_SCORE = "z_score";
+
+        static final String[] STATS_COLUMNS = {
+                _ID, COLUMN_BREED, COLUMN_GENDER, COLUMN_COUNT, COLUMN_MIN, COLUMN_MAX,
+                COLUMN_MEAN, COLUMN_STD_DEV,
+                COLUMN_P25, COLUMN_P50, COLUMN_P75, COLUMN_P90, COLUMN_P99
+        };
+
+        static final String[] HISTOGRAM_COLUMNS = {
+                _ID, COLUMN_BUCKET_START, COLUMN_BUCKET_END, COLUMN_COUNT
+        };
+
+        static final String[] OUTLIER_COLUMNS = {
+                _ID, COLUMN_BREED, COLUMN_GENDER, COLUMN_WEIGHT, COLUMN_Z_SCORE
+        };
+    }
+
+    /* Inner class that defines the distinct breeds of the pets table, with the number
+     * of pets of each breed. Read-only. */
+    public static final class BreedEntry {
+        /**
+         * The content URI to access the distinct breeds
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_BREEDS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of breeds.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE +
+                "/" + CONTENT_AUTHORITY + "/" + PATH_BREEDS;
+
+        // Column for the breed
+        public static final String COLUMN_BREED = PetEntry.COLUMN_PET_BREED;
+        // Column for the number of pets of the breed
+        public static final String COLUMN_COUNT = "count";
+    }
+
+    /* Inner class that defines the shelter-qualified pet URIs. Every shelter has its own
+     * database, the pets URIs of PetEntry are those of the default shelter. */
+    public static final class ShelterEntry {
+        /**
+         * The base URI of all shelters. Observers of this URI are notified of the changes
+         * in every shelter.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SHELTERS);
+
+        /**
+         * Id of the default shelter, whose pets are also at {@link PetEntry#CONTENT_URI}
+         */
+        public static final long DEFAULT_SHELTER_ID = 0;
+
+        /**
+         * Path segment used instead of a shelter id to query the pets of all shelters
+         */
+        public static final String ALL_SHELTERS = "all";
+
+        /**
+         * The pets of all shelters, read-only. Each shelter is queried in parallel and the
+         * results are merged. Only plain column names can be sorted by.
+         */
+        public static final Uri ALL_PETS_URI = CONTENT_URI.buildUpon()
+                .appendPath(ALL_SHELTERS).appendPath(PATH_PETS).build();
+
+        /**
+         * Column added to the rows of {@link #ALL_PETS_URI} with the shelter of each pet
+         */
+        public static final String COLUMN_SHELTER_ID = "shelter_id";
+
+        /**
+         * Returns the URI of the pets of the given shelter. Append a pet id for a single pet.
+         */
+        public static Uri buildPetsUri(long shelterId) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(shelterId)).appendPath(PATH_PETS).build();
+        }
+    }
+
+    /* Inner class that defines the weigh-in history of a pet. Every change of a pet's weight
+     * appends a weigh-in, the history is read-only. Daily and weekly summaries are kept up to
+     * date as weigh-ins are added, so reading them doesn't scan the history. */
+    public static final class WeighInEntry {
+        /**
+         * The MIME type of the weigh-ins and of the daily and weekly summaries
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE +
+                "/" + CONTENT_AUTHORITY + "/" + PATH_WEIGH_INS;
+
+        /**
+         * Path segments appended to the weigh-ins URI for the summaries
+         */
+        public static final String PATH_DAILY = "daily";
+        public static final String PATH_WEEKLY = "weekly";
+
+        /**
+         * Time range of the weigh-ins, in milliseconds since the epoch. From is inclusive
+         * and to is exclusive, both are optional. Summaries are returned for the days or
+         * weeks that overlap the range.
+         */
+        public static final String QUERY_PARAM_FROM = "from";
+        public static final String QUERY_PARAM_TO = "to";
+
+        // Columns of the weigh-ins, in ascending timestamp order
+        public static final String COLUMN_PET_ID = "pet_id";
+        public static final String COLUMN_TIMESTAMP = "timestamp";
+        public static final String COLUMN_WEIGHT = PetEntry.COLUMN_PET_WEIGHT;
+
+        // Columns of the summaries, in ascending bucket order. Days and weeks are in UTC,
+        // weeks start on Monday.
+        public static final String COLUMN_BUCKET_START = "bucket_start";
+        public static final String COLUMN_COUNT = "count";
+        public static final String COLUMN_MIN = "min";
+        public static final String COLUMN_AVG = "avg";
+        public static final String COLUMN_MAX = "max";
+
+        /**
+         * Returns the weigh-ins URI of the pet, which can be in any shelter.
+         */
+        public static Uri buildWeighInsUri(Uri petUri) {
+            return Uri.withAppendedPath(petUri, PATH_WEIGH_INS);
+        }
+
+        /**
+         * Returns the daily or weekly summary URI of the pet.
+         */
+        public static Uri buildSummaryUri(Uri petUri, boolean weekly) {
+            return Uri.withAppendedPath(buildWeighInsUri(petUri),
+                    weekly ? PATH_WEEKLY : PATH_DAILY);
+        }
+    }
+
+    /* Inner class that defines the archive of the default shelter. Pets adopted long ago are
+     * moved there in the background, with their weigh-in history, so the pets table only
+     * holds the ones the app works with. The archive is read-only. */
+    public static final class ArchiveEntry {
+        /**
+         * The archived pets, with the columns of {@link PetEntry}. Append a pet id for a
+         * single pet, and {@link #PATH_WEIGH_INS} to that for its history.
+         */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_ARCHIVE).appendPath(PATH_PETS).build();
+
+        /**
+         * Provider call that moves the pets adopted long enough ago to the archive now,
+         * instead of waiting for the next idle maintenance. Must not be called on the main
+         * thread. The number of moved pets is returned in {@link #EXTRA_ROWS}. Call it with
+         * resolver.call(PetEntry.CONTENT_URI, ArchiveEntry.METHOD_ARCHIVE, null, null)
+         */
+        public static final String METHOD_ARCHIVE = "archive";
+        public static final String EXTRA_ROWS = "rows";
+
+        /**
+         * Time after its adoption from which a pet is archived
+         */
+        public static final long ARCHIVE_AFTER_MILLIS = 30 * 24 * 60 * 60 * 1000L;
+    }
+
+    /* Builder of typed pet queries. The filters and the sort order are encoded in the query
+     * URI instead of a selection string, and the provider compiles them into parameterized
+     * SQL whose text only depends on the columns and operators used. Queries that differ
+     * only in their values then share one prepared statement. For example
+     * Uri uri = new PetQuery(PetEntry.CONTENT_URI)
+     *         .where(PetEntry.COLUMN_PET_WEIGHT, PetQuery.GREATER_THAN, 10)
+     *         .orderBy(PetEntry.COLUMN_PET_NAME, false)
+     *         .build();
+     * Works on the pets URIs of any shelter and on ShelterEntry.ALL_PETS_URI, with no
+     * selection or sort order passed to the query. */
+    public static final class PetQuery {
+        /**
+         * Comparison operators of {@link #where(String, String, Object)}
+         */
+        public static final String EQUALS = "eq";
+        public static final String NOT_EQUALS = "ne";
+        public static final String LESS_THAN = "lt";
+        public static final String AT_MOST = "le";
+        public static final String GREATER_THAN = "gt";
+        public static final String AT_LEAST = "ge";
+        // The value is a LIKE pattern, with '\' as the escape character
+        public static final String LIKE = "like";
+
+        // One "column:operator" parameter per filter, and its value in the matching arg
+        public static final String QUERY_PARAM_WHERE = "where";
+        public static final String QUERY_PARAM_ARG = "arg";
+        // One "column:asc" or "column:desc" parameter per sort column
+        public static final String QUERY_PARAM_ORDER = "order";
+
+        public static final String ASCENDING = "asc";
+        public static final String DESCENDING = "desc";
+
+        private final Uri.Builder mBuilder;
+
+        /**
+         * Starts a query of the given pets URI, with no filter and in no particular order.
+         */
+        public PetQuery(Uri petsUri) {
+            mBuilder = petsUri.buildUpon();
+        }
+
+        /**
+         * Only keeps the pets whose column compares to the value with the operator.
+         * All filters must match.
+         */
+        public PetQuery where(String column, String operator, Object value) {
+            if (value == null) {
+                throw new IllegalArgumentException("Pet query values can't be null " + column);
+            }
+            mBuilder.appendQueryParameter(QUERY_PARAM_WHERE, column + ":" + operator)
+                    .appendQueryParameter(QUERY_PARAM_ARG, value.toString());
+            return this;
+        }
+
+        /**
+         * Sorts the pets by the column, after the columns given before.
+         */
+        public PetQuery orderBy(String column, boolean descending) {
+            mBuilder.appendQueryParameter(QUERY_PARAM_ORDER,
+                    column + ":" + (descending ? DESCENDING : ASCENDING));
+            return this;
+        }
+
+        public Uri build() {
+            return mBuilder.build();
+        }
+    }
+
+    /* Inner class that defines the storage profiles of the shelter database: the page cache
+     * size, memory-mapped I/O and the page size of the file. Without a selection, low-RAM devices
+     * get PROFILE_LOW_MEMORY and the others PROFILE_BALANCED. The StorageProfiles benchmark
+     * test recommends a profile for a number of pets. */
+    public static final class StorageEntry {
+        public static final String PROFILE_LOW_MEMORY = "low_memory";
+        public static final String PROFILE_BALANCED = "balanced";
+        public static final String PROFILE_READ_HEAVY = "read_heavy";
+
+        /**
+         * Provider call that selects the profile given as the argument, or the automatic
+         * choice for null. Used from the next start of the app process; a changed page size
+         * rebuilds the database once, the next time the device is idle. Call it with
+         * resolver.call(PetEntry.CONTENT_URI, StorageEntry.METHOD_SET_PROFILE, name, null)
+         */
+        public static final String METHOD_SET_PROFILE = "set_storage_profile";
+    }
+
+    /* Inner class that defines the backup and restore calls of the provider. Both take the
+     * absolute path of the backup file as the argument and must not be called on the
+     * main thread, for example
+     * resolver.call(PetEntry.CONTENT_URI, BackupEntry.METHOD_BACKUP, file.getPath(), null) */
+    public static final class BackupEntry {
+        /**
+         * Backs the pets up into the file. Later backups into the same file are incremental.
+         */
+        public static final String METHOD_BACKUP = "backup";
+
+        /**
+         * Replaces all pets with the ones in the backup file.
+         */
+        public static final String METHOD_RESTORE = "restore";
+
+        // Result of a backup: whether only changed pets were copied
+        public static final String EXTRA_INCREMENTAL = "incremental";
+        // Result of a backup or restore: the number of pets copied
+        public static final String EXTRA_ROWS = "rows";
+        // Result of a backup: the size of the backup file
+        public static final String EXTRA_BYTES = "bytes";
+        // Result of a backup: the time the backup took
+        public static final String EXTRA_DURATION_MILLIS = "duration_ms";
     }
 }
@@ -3,36 +3,227 @@ package com.example.android.pets.data;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
 import com.example.android.pets.data.PetContract.PetEntry;
 
 public class PetDbHelper extends SQLiteOpenHelper {
     // If you change the database schema, you must increment the database version.
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 9;
     public static final String DATABASE_NAME = "shelter.db";
 
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + PetEntry.TABLE_NAME;
 
+    // The pets table, also created in backup files by PetBackup
+    static final String SQL_CREATE_ENTRIES =
+            "CREATE TABLE " + PetEntry.TABLE_NAME + " ("
+                    + PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, "
+                    + PetEntry.COLUMN_PET_BREED + " TEXT NOT NULL, "
+                    + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, "
+                    + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL, "
+                    + PetEntry.COLUMN_PET_INTAKE_ID + " TEXT, "
+                    + PetEntry.COLUMN_PET_STATUS + " INTEGER NOT NULL DEFAULT "
+                    + PetEntry.STATUS_AVAILABLE + ", "
+                    + PetEntry.COLUMN_PET_ADOPTED_AT + " INTEGER);";
+
+    // Intake ids are unique, several pets may have none (NULL)
+    static final String SQL_CREATE_INTAKE_ID_INDEX =
+            "CREATE UNIQUE INDEX IF NOT EXISTS " + PetEntry.TABLE_NAME + "_"
+                    + PetEntry.COLUMN_PET_INTAKE_ID + "_idx ON " + PetEntry.TABLE_NAME
+                    + " (" + PetEntry.COLUMN_PET_INTAKE_ID + ")";
+
+    private final StorageProfile mStorageProfile;
+
+    // The database handed to onOpen, to tell an open from a lookup of the open database
+    private volatile SQLiteDatabase mOpenDatabase;
+
+    /**
+     * Helper for the default shelter's database with the balanced storage profile.
+     */
     public PetDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME, StorageProfile.BALANCED);
+    }
+
+    /**
+     * Helper for the database with the given name and the balanced storage profile.
+     */
+    PetDbHelper(Context context, String name) {
+        this(context, name, StorageProfile.BALANCED);
+    }
+
+    /**
+     * Helper for the database with the given name, every shelter has its own.
+     */
+    PetDbHelper(Context context, String name, StorageProfile storageProfile) {
+        super(context, name, null, DATABASE_VERSION);
+        mStorageProfile = storageProfile;
+        // Let readers go on while a writer (like a migration backfill) holds the database,
+        // unless the profile wants the reads on the connection it configures
+        if (storageProfile.readConnections
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * Sets the cache sizes of the storage profile before anything else runs on the database.
+     * Only called from API 16 on, older versions keep SQLite's defaults. A different page
+     * size is left to {@link PetMigrationRunner}, as it rewrites the whole file.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase sqLiteDatabase) {
+        mStorageProfile.configure(sqLiteDatabase);
+    }
+
+    StorageProfile getStorageProfile() {
+        return mStorageProfile;
+    }
+
+    /**
+     * Opening may create or upgrade the database, so it is traced. Once the database is
+     * open these only hand it out and aren't traced, or every query would report them.
+     */
+    @Override
+    public SQLiteDatabase getReadableDatabase() {
+        if (isOpen(false)) return super.getReadableDatabase();
+        PetTrace trace = PetTrace.begin("PetDbHelper.openReadable", null);
+        try {
+            return super.getReadableDatabase();
+        } finally {
+            trace.end(PetTrace.UNKNOWN_ROWS);
+        }
+    }
+
+    @Override
+    public SQLiteDatabase getWritableDatabase() {
+        if (isOpen(true)) return super.getWritableDatabase();
+        PetTrace trace = PetTrace.begin("PetDbHelper.openWritable", null);
+        try {
+            return super.getWritableDatabase();
+        } finally {
+            trace.end(PetTrace.UNKNOWN_ROWS);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase sqLiteDatabase) {
+        mOpenDatabase = sqLiteDatabase;
+    }
+
+    /**
+     * Returns whether the database was opened, writable if asked for, and not closed since.
+     */
+    private boolean isOpen(boolean writable) {
+        SQLiteDatabase database = mOpenDatabase;
+        return database != null && database.isOpen() && (!writable || !database.isReadOnly());
     }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
-        final String SQL_CREATE_ENTRIES =
-                "CREATE TABLE " + PetEntry.TABLE_NAME + " ("
-                        + PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-                        + PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, "
-                        + PetEntry.COLUMN_PET_BREED + " TEXT NOT NULL, "
-                        + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, "
-                        + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL);";
+        PetTrace trace = PetTrace.begin("PetDbHelper.onCreate", null);
+        try {
+            createTables(sqLiteDatabase);
+        } finally {
+            trace.end(PetTrace.UNKNOWN_ROWS);
+        }
+    }
 
+    private void createTables(SQLiteDatabase sqLiteDatabase) {
         sqLiteDatabase.execSQL(SQL_CREATE_ENTRIES);
+        sqLiteDatabase.execSQL(SQL_CREATE_INTAKE_ID_INDEX);
+        sqLiteDatabase.execSQL(PetMigrationRunner.SQL_CREATE_TABLE);
+        sqLiteDatabase.execSQL(PetMaintenance.SQL_CREATE_TABLE);
+        createBackupTables(sqLiteDatabase);
+        createWeighInTables(sqLiteDatabase);
+        createAdoptionTriggers(sqLiteDatabase);
+        BreedCounts.create(sqLiteDatabase);
+        PetMigrationRunner.schedule(sqLiteDatabase, PetMigrationRunner.INCREMENTAL_VACUUM);
+    }
+
+    private static void createAdoptionTriggers(SQLiteDatabase sqLiteDatabase) {
+        for (String trigger : PetArchive.SQL_CREATE_TRIGGERS) {
+            sqLiteDatabase.execSQL(trigger);
+        }
+    }
+
+    private static void createWeighInTables(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL(WeighInHistory.sqlCreateTable());
+        sqLiteDatabase.execSQL(WeighInHistory.sqlCreateRollupsTable());
+        for (String trigger : WeighInHistory.SQL_CREATE_TRIGGERS) {
+            sqLiteDatabase.execSQL(trigger);
+        }
+    }
+
+    private static void createBackupTables(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL(PetBackup.SQL_CREATE_CHANGES_TABLE);
+        sqLiteDatabase.execSQL(PetBackup.SQL_CREATE_BACKUPS_TABLE);
+        for (String trigger : PetBackup.SQL_CREATE_TRIGGERS) {
+            sqLiteDatabase.execSQL(trigger);
+        }
     }
 
+    /**
+     * Upgrades only make schema changes here, so opening the database stays fast.
+     * Rewrites of existing rows are scheduled and done later by {@link PetMigrationRunner}.
+     */
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        PetTrace trace = PetTrace.begin(
+                "PetDbHelper.onUpgrade " + oldVersion + "->" + newVersion, null);
+        try {
+            upgradeTables(sqLiteDatabase, oldVersion);
+        } finally {
+            trace.end(PetTrace.UNKNOWN_ROWS);
+        }
+    }
 
+    private void upgradeTables(SQLiteDatabase sqLiteDatabase, int oldVersion) {
+        if (oldVersion < 2) {
+            // Version 2 adds the optional intake id with its unique index
+            sqLiteDatabase.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME
+                    + " ADD COLUMN " + PetEntry.COLUMN_PET_INTAKE_ID + " TEXT");
+            sqLiteDatabase.execSQL(SQL_CREATE_INTAKE_ID_INDEX);
+        }
+        if (oldVersion < 3) {
+            // Version 3 adds the migrations table and trims names and breeds in the background
+            sqLiteDatabase.execSQL(PetMigrationRunner.SQL_CREATE_TABLE);
+            PetMigrationRunner.schedule(sqLiteDatabase,
+                    PetMigrationRunner.TRIM_NAMES_AND_BREEDS);
+        }
+        if (oldVersion < 4) {
+            // Version 4 adds the maintenance log
+            sqLiteDatabase.execSQL(PetMaintenance.SQL_CREATE_TABLE);
+        }
+        if (oldVersion < 5) {
+            // Version 5 logs changed pets for incremental backups
+            createBackupTables(sqLiteDatabase);
+        }
+        if (oldVersion < 6) {
+            // Version 6 adds the weigh-in history, seeded with the current weights
+            // in the background
+            createWeighInTables(sqLiteDatabase);
+            PetMigrationRunner.schedule(sqLiteDatabase, PetMigrationRunner.SEED_WEIGH_INS);
+        }
+        if (oldVersion < 7) {
+            // Version 7 adds the adoption status, every existing pet is available
+            sqLiteDatabase.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME
+                    + " ADD COLUMN " + PetEntry.COLUMN_PET_STATUS + " INTEGER NOT NULL DEFAULT "
+                    + PetEntry.STATUS_AVAILABLE);
+            sqLiteDatabase.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME
+                    + " ADD COLUMN " + PetEntry.COLUMN_PET_ADOPTED_AT + " INTEGER");
+            createAdoptionTriggers(sqLiteDatabase);
+        }
+        if (oldVersion < 8) {
+            // Version 8 rebuilds the file in incremental auto-vacuum mode in the background
+            PetMigrationRunner.schedule(sqLiteDatabase, PetMigrationRunner.INCREMENTAL_VACUUM);
+        }
+        if (oldVersion < 9) {
+            // Version 9 keeps the number of pets per breed in a table, the existing pets
+            // are counted in the background
+            BreedCounts.create(sqLiteDatabase);
+            PetMigrationRunner.schedule(sqLiteDatabase, BreedCounts.SEED_MIGRATION);
+        }
     }
 }
@@ -0,0 +1,356 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Keeps the database healthy as pets are added, changed and removed.
+ * <p>
+ * The provider reports every write. Once enough rows have been written, and the app has
+ * seen no writes for a while with the screen off, the maintenance tasks run on a background
+ * thread: moving pets adopted long ago to the archive, rebuilding the file when a migration
+ * asks for it, refreshing planner statistics, checkpointing the write-ahead log and
+ * reclaiming free pages. Every task but the rebuild works in slices and stops at a time
+ * budget; what is left over runs in the next idle window. Each run is recorded in the
+ * maintenance log table.
+ * <p>
+ * The rebuild is a single VACUUM that blocks every writer until the whole file is copied,
+ * so it only runs here, while nobody uses the app. A pending rebuild schedules a window of
+ * its own, without waiting for writes.
+ */
+final class PetMaintenance {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = PetMaintenance.class.getSimpleName();
+
+    // Table that records every maintenance task that ran
+    static final String TABLE_NAME = "maintenance_log";
+    // Name of the task
+    static final String COLUMN_TASK = "task";
+    // Wall clock time the task started, in milliseconds
+    static final String COLUMN_STARTED_AT = "started_at";
+    // How long the task took, in milliseconds
+    static final String COLUMN_DURATION = "duration_ms";
+    // What the task did, for example the pages it freed
+    static final String COLUMN_DETAIL = "detail";
+
+    static final String SQL_CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " ("
+                    + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + COLUMN_TASK + " TEXT NOT NULL, "
+                    + COLUMN_STARTED_AT + " INTEGER NOT NULL, "
+                    + COLUMN_DURATION + " INTEGER NOT NULL, "
+                    + COLUMN_DETAIL + " TEXT);";
+
+    /**
+     * Number of rows written before maintenance is due
+     */
+    private static final int WRITE_THRESHOLD = 1000;
+
+    /**
+     * Time without writes after which the database is considered idle
+     */
+    private static final long IDLE_DELAY_MILLIS = 60 * 1000;
+
+    /**
+     * Time budget of one maintenance window
+     */
+    private static final long TIME_BUDGET_MILLIS = 200;
+
+    /**
+     * Free pages reclaimed per incremental vacuum slice
+     */
+    private static final int VACUUM_PAGES_PER_SLICE = 64;
+
+    /**
+     * Number of log entries kept
+     */
+    private static final int MAX_LOG_ENTRIES = 100;
+
+    // Maintenance tasks, run in this order. Archiving comes first, the others then see the
+    // smaller pets table and reclaim the pages it freed.
+    private static final int TASK_ARCHIVE = 0;
+    private static final int TASK_REBUILD = 1;
+    private static final int TASK_OPTIMIZE = 2;
+    private static final int TASK_CHECKPOINT = 3;
+    private static final int TASK_VACUUM = 4;
+    private static final int TASK_COUNT = 5;
+    private static final String[] TASK_NAMES =
+            {"archive", "rebuild", "optimize", "checkpoint", "incremental_vacuum"};
+
+    private final Context mContext;
+    private final PetDbHelper mDbHelper;
+    private final PetArchive mArchive;
+    private final PetMigrationRunner mMigrationRunner;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Write tracking, guarded by this
+    private int mRowsWritten;
+    private long mLastWriteTime;
+    private boolean mScheduled;
+
+    // Next task to run, only touched on the maintenance thread
+    private int mNextTask = TASK_COUNT;
+
+    private final Runnable mCheck = this::checkIdle;
+
+    PetMaintenance(Context context, PetDbHelper dbHelper, PetArchive archive) {
+        mContext = context;
+        mDbHelper = dbHelper;
+        mArchive = archive;
+        mMigrationRunner = new PetMigrationRunner(dbHelper, context.getContentResolver());
+        mThread = new HandlerThread("pet-maintenance", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Drops the scheduled checks and stops the maintenance thread, after the window in
+     * progress if there is one, so the databases can be closed. Later writes no longer
+     * schedule maintenance. Called by {@link PetProvider#shutdown}.
+     */
+    void quit() {
+        mHandler.removeCallbacks(mCheck);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            mThread.quitSafely();
+        } else {
+            mThread.quit();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "Interrupted while waiting for the maintenance thread", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Called by the provider after rows were inserted, updated or deleted.
+     */
+    void onRowsWritten(int rows) {
+        if (rows <= 0) return;
+        synchronized (this) {
+            mRowsWritten += rows;
+            mLastWriteTime = SystemClock.uptimeMillis();
+            if (mScheduled || mRowsWritten < WRITE_THRESHOLD) return;
+            mScheduled = true;
+        }
+        mHandler.postDelayed(mCheck, IDLE_DELAY_MILLIS);
+    }
+
+    /**
+     * Called once the pending migrations ran. Schedules a maintenance window for the rebuild
+     * of the file, if one is needed.
+     */
+    void onMigrationsDone() {
+        try {
+            if (!mMigrationRunner.needsRebuild()) return;
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to check for a rebuild", e);
+            return;
+        }
+        synchronized (this) {
+            if (mScheduled) return;
+            mScheduled = true;
+        }
+        mHandler.postDelayed(mCheck, IDLE_DELAY_MILLIS);
+    }
+
+    /**
+     * Runs the maintenance if the database and the device are idle, or checks again later.
+     */
+    private void checkIdle() {
+        long quietFor;
+        synchronized (this) {
+            quietFor = SystemClock.uptimeMillis() - mLastWriteTime;
+        }
+        if (quietFor < IDLE_DELAY_MILLIS || !isDeviceIdle()) {
+            mHandler.postDelayed(mCheck, IDLE_DELAY_MILLIS);
+            return;
+        }
+
+        // Start over with all tasks unless the last window ran out of time
+        if (mNextTask == TASK_COUNT) {
+            synchronized (this) {
+                mRowsWritten = 0;
+            }
+            mNextTask = TASK_ARCHIVE;
+        }
+        try {
+            runTasks();
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Maintenance failed", e);
+            mNextTask = TASK_COUNT;
+        }
+
+        synchronized (this) {
+            // Come back for the remaining tasks, or when enough new writes piled up
+            mScheduled = (mNextTask < TASK_COUNT) || (mRowsWritten >= WRITE_THRESHOLD);
+            if (mScheduled) mHandler.postDelayed(mCheck, IDLE_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Idle means nobody is looking at the screen.
+     */
+    @SuppressWarnings("deprecation")
+    private boolean isDeviceIdle() {
+        PowerManager powerManager =
+                (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        if (powerManager == null) return true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH) {
+            return !powerManager.isInteractive();
+        }
+        return !powerManager.isScreenOn();
+    }
+
+    /**
+     * Runs the tasks from {@link #mNextTask} until they are done or the time budget is used.
+     */
+    private void runTasks() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long deadline = SystemClock.uptimeMillis() + TIME_BUDGET_MILLIS;
+        while (mNextTask < TASK_COUNT && SystemClock.uptimeMillis() < deadline) {
+            long startedAt = System.currentTimeMillis();
+            long start = SystemClock.uptimeMillis();
+            String detail;
+            boolean finished = true;
+            switch (mNextTask) {
+                case TASK_ARCHIVE:
+                    PetArchive.Result archived = mArchive.archive(deadline);
+                    finished = archived.finished;
+                    detail = archived.rowsMoved + " pets moved"
+                            + (finished ? "" : ", more left");
+                    break;
+                case TASK_REBUILD:
+                    detail = mMigrationRunner.rebuildIfNeeded();
+                    break;
+                case TASK_OPTIMIZE:
+                    detail = optimize(database);
+                    break;
+                case TASK_CHECKPOINT:
+                    detail = checkpoint(database);
+                    break;
+                case TASK_VACUUM:
+                default:
+                    long freePages = vacuum(database, deadline);
+                    finished = (freePages <= 0);
+                    detail = (freePages < 0) ? "skipped, auto_vacuum is not incremental"
+                            : freePages + " free pages left";
+                    break;
+            }
+            record(database, TASK_NAMES[mNextTask], startedAt,
+                    SystemClock.uptimeMillis() - start, detail);
+            if (finished) mNextTask++;
+        }
+    }
+
+    /**
+     * Refreshes the query planner statistics. PRAGMA optimize only analyzes what changed,
+     * but needs SQLite 3.18; older versions fall back to ANALYZE of the pets table.
+     */
+    private static String optimize(SQLiteDatabase database) {
+        String version = pragma(database, "SELECT sqlite_version()");
+        if (compareVersions(version, "3.32.0") >= 0) {
+            // Limit the rows looked at per index so the analysis stays short
+            pragma(database, "PRAGMA analysis_limit=400");
+        }
+        if (compareVersions(version, "3.18.0") >= 0) {
+            pragma(database, "PRAGMA optimize");
+            return "PRAGMA optimize on SQLite " + version;
+        }
+        database.execSQL("ANALYZE " + PetEntry.TABLE_NAME);
+        return "ANALYZE on SQLite " + version;
+    }
+
+    /**
+     * Copies the write-ahead log back into the database without waiting for readers.
+     */
+    private static String checkpoint(SQLiteDatabase database) {
+        if (!"wal".equalsIgnoreCase(pragma(database, "PRAGMA journal_mode"))) {
+            return "skipped, no write-ahead log";
+        }
+        Cursor cursor = database.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        try {
+            if (!cursor.moveToFirst()) return "no result";
+            return "busy " + cursor.getInt(0) + ", log " + cursor.getInt(1)
+                    + ", checkpointed " + cursor.getInt(2);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Frees pages in slices until there are none left or the deadline passes.
+     *
+     * @return the number of free pages left, or -1 if the database can't be vacuumed
+     * incrementally, as before {@link PetMigrationRunner#INCREMENTAL_VACUUM} ran.
+     */
+    static long vacuum(SQLiteDatabase database, long deadline) {
+        // Incremental vacuum only works in auto_vacuum=INCREMENTAL (2) mode
+        if (!"2".equals(pragma(database, "PRAGMA auto_vacuum"))) return -1;
+        long freePages = Long.parseLong(pragma(database, "PRAGMA freelist_count"));
+        while (freePages > 0 && SystemClock.uptimeMillis() < deadline) {
+            pragma(database, "PRAGMA incremental_vacuum(" + VACUUM_PAGES_PER_SLICE + ")");
+            freePages = Long.parseLong(pragma(database, "PRAGMA freelist_count"));
+        }
+        return freePages;
+    }
+
+    /**
+     * Adds an entry to the maintenance log and drops the oldest ones.
+     */
+    private static void record(SQLiteDatabase database, String task, long startedAt,
+                               long duration, String detail) {
+        Log.i(LOG_TAG, task + " took " + duration + " ms: " + detail);
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_TASK, task);
+        values.put(COLUMN_STARTED_AT, startedAt);
+        values.put(COLUMN_DURATION, duration);
+        values.put(COLUMN_DETAIL, detail);
+        database.insert(TABLE_NAME, null, values);
+        database.delete(TABLE_NAME, "_id <= (SELECT MAX(_id) FROM " + TABLE_NAME + ") - ?",
+                new String[]{String.valueOf(MAX_LOG_ENTRIES)});
+    }
+
+    /**
+     * Runs a statement and returns the first column of its first row, or null.
+     * PRAGMAs are run as queries because some of them return a row.
+     */
+    private static String pragma(SQLiteDatabase database, String sql) {
+        Cursor cursor = database.rawQuery(sql, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Compares two dotted version strings such as "3.18.2".
+     */
+    private static int compareVersions(String version, String other) {
+        String[] parts = version.split("\\.");
+        String[] otherParts = other.split("\\.");
+        for (int i = 0; i < Math.max(parts.length, otherParts.length); i++) {
+            int part = (i < parts.length) ? Integer.parseInt(parts[i]) : 0;
+            int otherPart = (i < otherParts.length) ? Integer.parseInt(otherParts[i]) : 0;
+            if (part != otherPart) return (part < otherPart) ? -1 : 1;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,379 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.WeighInEntry;
+
+/**
+ * Runs data backfills of schema upgrades in the background, in small batches.
+ * <p>
+ * {@link PetDbHelper#onUpgrade} only makes the fast schema change and schedules the
+ * backfill in the migrations table. This runner then rewrites the rows batch by batch,
+ * each batch in its own short transaction together with its checkpoint, so the provider
+ * keeps serving queries meanwhile and a killed process resumes where it stopped.
+ */
+final class PetMigrationRunner {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = PetMigrationRunner.class.getSimpleName();
+
+    // Table that keeps the progress of every scheduled backfill
+    static final String TABLE_NAME = "migrations";
+    // Name of the backfill
+    static final String COLUMN_NAME = "name";
+    // Largest pet _id that has been backfilled
+    static final String COLUMN_LAST_ID = "last_id";
+    // 1 once every row has been backfilled
+    static final String COLUMN_DONE = "done";
+
+    static final String SQL_CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " ("
+                    + COLUMN_NAME + " TEXT PRIMARY KEY, "
+                    + COLUMN_LAST_ID + " INTEGER NOT NULL DEFAULT 0, "
+                    + COLUMN_DONE + " INTEGER NOT NULL DEFAULT 0);";
+
+    /**
+     * Number of pets rewritten per transaction
+     */
+    static final int BATCH_SIZE = 500;
+
+    /**
+     * Pause between batches, so other writers get the database in between
+     */
+    private static final long BATCH_PAUSE_MILLIS = 10;
+
+    /**
+     * A data rewrite of the pets table that can be applied to any range of rows.
+     */
+    interface Backfill {
+        /**
+         * Unique name, used as the checkpoint key
+         */
+        String getName();
+
+        /**
+         * Rewrites the pets with fromId < _id <= toId.
+         *
+         * @return the number of rows changed.
+         */
+        int apply(SQLiteDatabase database, long fromId, long toId);
+    }
+
+    /**
+     * Version 3: trims the pets' names and breeds, so the same breed isn't stored
+     * with stray whitespace.
+     */
+    static final Backfill TRIM_NAMES_AND_BREEDS = new Backfill() {
+        @Override
+        public String getName() {
+            return "v3_trim_names_and_breeds";
+        }
+
+        @Override
+        public int apply(SQLiteDatabase database, long fromId, long toId) {
+            String name = PetEntry.COLUMN_PET_NAME;
+            String breed = PetEntry.COLUMN_PET_BREED;
+            SQLiteStatement statement = database.compileStatement("UPDATE "
+                    + PetEntry.TABLE_NAME
+                    + " SET " + name + " = trim(" + name + "), "
+                    + breed + " = trim(" + breed + ")"
+                    + " WHERE " + PetEntry._ID + " > ? AND " + PetEntry._ID + " <= ?"
+                    + " AND (" + name + " != trim(" + name + ")"
+                    + " OR " + breed + " != trim(" + breed + "))");
+            try {
+                statement.bindLong(1, fromId);
+                statement.bindLong(2, toId);
+                return statement.executeUpdateDelete();
+            } finally {
+                statement.close();
+            }
+        }
+    };
+
+    /**
+     * Version 6: records the current weight of the existing pets as their first weigh-in.
+     */
+    static final Backfill SEED_WEIGH_INS = new Backfill() {
+        @Override
+        public String getName() {
+            return "v6_seed_weigh_ins";
+        }
+
+        @Override
+        public int apply(SQLiteDatabase database, long fromId, long toId) {
+            String petId = WeighInEntry.COLUMN_PET_ID;
+            SQLiteStatement statement = database.compileStatement("INSERT INTO "
+                    + WeighInHistory.TABLE_NAME + " (" + petId + ", "
+                    + WeighInEntry.COLUMN_TIMESTAMP + ", " + WeighInEntry.COLUMN_WEIGHT + ")"
+                    + " SELECT " + PetEntry._ID + ", " + WeighInHistory.SQL_NOW + ", "
+                    + PetEntry.COLUMN_PET_WEIGHT + " FROM " + PetEntry.TABLE_NAME
+                    + " WHERE " + PetEntry._ID + " > ? AND " + PetEntry._ID + " <= ?"
+                    + " AND NOT EXISTS (SELECT 1 FROM " + WeighInHistory.TABLE_NAME
+                    + " WHERE " + petId + " = " + PetEntry._ID + ")");
+            try {
+                statement.bindLong(1, fromId);
+                statement.bindLong(2, toId);
+                statement.executeUpdateDelete();
+                // Only the history changes, no pet
+                return 0;
+            } finally {
+                statement.close();
+            }
+        }
+    };
+
+    /**
+     * Every known backfill, in the order they are run
+     */
+    private static final Backfill[] BACKFILLS = {TRIM_NAMES_AND_BREEDS, SEED_WEIGH_INS};
+
+    /**
+     * Version 8: rebuilds the file once in auto_vacuum=INCREMENTAL mode, so
+     * {@link PetMaintenance} can hand the pages of deleted pets back to the file system.
+     * <p>
+     * The mode can only be set before the first table is created, and Android creates its
+     * own metadata table as soon as the file is opened, so new databases need the rebuild
+     * as well as upgraded ones. The rebuild copies the whole file and blocks every writer
+     * meanwhile, so it isn't run with the backfills but by {@link PetMaintenance} while the
+     * device is idle, see {@link #rebuildIfNeeded}.
+     */
+    static final String INCREMENTAL_VACUUM = "v8_incremental_vacuum";
+
+    /**
+     * Schedules a backfill. Called from {@link PetDbHelper#onUpgrade}, inside the
+     * upgrade transaction.
+     */
+    static void schedule(SQLiteDatabase database, Backfill backfill) {
+        schedule(database, backfill.getName());
+    }
+
+    /**
+     * Schedules the migration with the given name, like {@link #INCREMENTAL_VACUUM}.
+     */
+    static void schedule(SQLiteDatabase database, String name) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME, name);
+        values.put(COLUMN_LAST_ID, 0);
+        values.put(COLUMN_DONE, 0);
+        database.insertWithOnConflict(TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    private final PetDbHelper mDbHelper;
+    private final ContentResolver mContentResolver;
+    private final Backfill[] mBackfills;
+
+    PetMigrationRunner(PetDbHelper dbHelper, ContentResolver contentResolver) {
+        this(dbHelper, contentResolver, BACKFILLS);
+    }
+
+    /**
+     * Runner for the given backfills instead of the known ones, for tests.
+     */
+    PetMigrationRunner(PetDbHelper dbHelper, ContentResolver contentResolver,
+                       Backfill... backfills) {
+        mDbHelper = dbHelper;
+        mContentResolver = contentResolver;
+        mBackfills = backfills;
+    }
+
+    /**
+     * Runs the pending migrations on a background thread.
+     */
+    void start() {
+        start(null);
+    }
+
+    /**
+     * Runs the pending migrations on a background thread, then the given action, if any,
+     * on the same thread.
+     */
+    void start(final Runnable then) {
+        Thread thread = new Thread(() -> {
+            runPending();
+            if (then != null) then.run();
+        }, "pet-migrations");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Runs the pending backfills on the calling thread. The rebuild of the file is left to
+     * {@link #rebuildIfNeeded}.
+     */
+    void runPending() {
+        try {
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            for (Backfill backfill : mBackfills) {
+                long lastId = readCheckpoint(database, backfill);
+                if (lastId >= 0) run(database, backfill, lastId);
+            }
+            BreedCounts.seed(database);
+        } catch (RuntimeException e) {
+            // The checkpoint is kept, the backfill resumes on the next start
+            Log.e(LOG_TAG, "Migration interrupted", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run(SQLiteDatabase database, Backfill backfill, long lastId)
+            throws InterruptedException {
+        Log.i(LOG_TAG, "Running " + backfill.getName() + " from _id " + lastId);
+        int rowsChanged = 0;
+        while (true) {
+            boolean done;
+            int batchRowsChanged = 0;
+            PetTrace trace = PetTrace.begin("migration " + backfill.getName(), null);
+            database.beginTransactionNonExclusive();
+            try {
+                long toId = batchEnd(database, lastId);
+                done = (toId < 0);
+                if (!done) {
+                    batchRowsChanged = backfill.apply(database, lastId, toId);
+                    rowsChanged += batchRowsChanged;
+                    lastId = toId;
+                }
+                // The checkpoint commits together with the batch
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_LAST_ID, lastId);
+                values.put(COLUMN_DONE, done ? 1 : 0);
+                database.update(TABLE_NAME, values, COLUMN_NAME + "=?",
+                        new String[]{backfill.getName()});
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+                trace.end(batchRowsChanged);
+            }
+            if (done) break;
+            Thread.sleep(BATCH_PAUSE_MILLIS);
+        }
+        Log.i(LOG_TAG, "Finished " + backfill.getName() + ", " + rowsChanged + " rows changed");
+
+        if (rowsChanged > 0) {
+            mContentResolver.notifyChange(PetEntry.CONTENT_URI, null);
+        }
+    }
+
+    /**
+     * Rebuilds the file with VACUUM when {@link #INCREMENTAL_VACUUM} is pending or its page
+     * size isn't the one of the storage profile; one rebuild takes care of both.
+     * <p>
+     * The page size can't change in write-ahead log mode, so the log is turned off for the
+     * rebuild, which the platform only allows while no other thread uses the database. The
+     * VACUUM copies the whole file, so it may also fail for lack of space or a busy lock.
+     * In all these cases the file is left as it was and the rebuild is tried again later.
+     * <p>
+     * Every writer waits for the whole copy, so this only runs on a database nobody works in:
+     * from {@link PetMaintenance} while the device is idle, or on a shelter that was just
+     * created and is still empty.
+     *
+     * @return what was done, for the maintenance log.
+     */
+    String rebuildIfNeeded() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        if (!needsRebuild(database)) return "not needed";
+        boolean incrementalVacuum = readCheckpoint(database, INCREMENTAL_VACUUM) >= 0;
+        int pageSize = mDbHelper.getStorageProfile().pageSize;
+        boolean resize = database.getPageSize() != pageSize;
+
+        PetTrace trace = PetTrace.begin("migration rebuild", null);
+        boolean wal = resize && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                && database.isWriteAheadLoggingEnabled();
+        try {
+            if (wal) database.disableWriteAheadLogging();
+            if (incrementalVacuum) database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            if (resize) database.execSQL("PRAGMA page_size = " + pageSize);
+            database.execSQL("VACUUM");
+            if (incrementalVacuum) markDone(database, INCREMENTAL_VACUUM);
+            String detail = "rebuilt with " + database.getPageSize() + " byte pages"
+                    + (incrementalVacuum ? " and incremental auto-vacuum" : "");
+            Log.i(LOG_TAG, database.getPath() + " " + detail);
+            return detail;
+        } catch (SQLiteException | IllegalStateException e) {
+            Log.e(LOG_TAG, "Failed to rebuild " + database.getPath() + ", trying again later", e);
+            return "failed: " + e.getMessage();
+        } finally {
+            if (wal) enableWriteAheadLogging(database);
+            trace.end(PetTrace.UNKNOWN_ROWS);
+        }
+    }
+
+    /**
+     * Returns whether {@link #INCREMENTAL_VACUUM} is pending or the page size of the file
+     * isn't the one of the storage profile.
+     */
+    boolean needsRebuild() {
+        return needsRebuild(mDbHelper.getWritableDatabase());
+    }
+
+    private boolean needsRebuild(SQLiteDatabase database) {
+        return readCheckpoint(database, INCREMENTAL_VACUUM) >= 0
+                || database.getPageSize() != mDbHelper.getStorageProfile().pageSize;
+    }
+
+    private static void enableWriteAheadLogging(SQLiteDatabase database) {
+        try {
+            database.enableWriteAheadLogging();
+        } catch (IllegalStateException e) {
+            // Another thread took a connection meanwhile, the helper turns the log back on
+            // the next time the database is opened
+            Log.e(LOG_TAG, "Write-ahead log stays off until " + database.getPath()
+                    + " is opened again", e);
+        }
+    }
+
+    /**
+     * Marks the migration with the given name as done.
+     */
+    static void markDone(SQLiteDatabase database, String name) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_DONE, 1);
+        database.update(TABLE_NAME, values, COLUMN_NAME + "=?", new String[]{name});
+    }
+
+    /**
+     * Returns the largest _id of the next batch after lastId, or -1 if there are no more pets.
+     */
+    private static long batchEnd(SQLiteDatabase database, long lastId) {
+        Cursor cursor = database.rawQuery("SELECT MAX(" + PetEntry._ID + ") FROM"
+                        + " (SELECT " + PetEntry._ID + " FROM " + PetEntry.TABLE_NAME
+                        + " WHERE " + PetEntry._ID + " > ?"
+                        + " ORDER BY " + PetEntry._ID + " LIMIT " + BATCH_SIZE + ")",
+                new String[]{String.valueOf(lastId)});
+        try {
+            if (!cursor.moveToFirst() || cursor.isNull(0)) return -1;
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the _id the backfill should resume after, or -1 if it is done or not scheduled.
+     */
+    static long readCheckpoint(SQLiteDatabase database, Backfill backfill) {
+        return readCheckpoint(database, backfill.getName());
+    }
+
+    static long readCheckpoint(SQLiteDatabase database, String name) {
+        Cursor cursor = database.query(TABLE_NAME, new String[]{COLUMN_LAST_ID, COLUMN_DONE},
+                COLUMN_NAME + "=?", new String[]{name}, null, null, null);
+        try {
+            if (!cursor.moveToFirst() || cursor.getInt(1) != 0) return -1;
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -4,16 +4,30 @@ import android.content.ContentProvider;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.UriMatcher;
+import android.content.pm.ApplicationInfo;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.util.Log;
 
+import com.example.android.pets.data.PetContract.ArchiveEntry;
+import com.example.android.pets.data.PetContract.BackupEntry;
+import com.example.android.pets.data.PetContract.BreedEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.ShelterEntry;
+import com.example.android.pets.data.PetContract.StorageEntry;
+import com.example.android.pets.data.PetContract.WeighInEntry;
+import com.example.android.pets.data.PetContract.WeightStatsEntry;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.File;
+import java.util.List;
+
 public class PetProvider extends ContentProvider {
 
     /**
@@ -24,6 +38,44 @@ public class PetProvider extends ContentProvider {
      * URI matcher code for the content URI for a single pet in the pets table
      */
     private static final int PET_ID = 101;
+    /**
+     * URI matcher codes for the weight analytics of the pets table
+     */
+    private static final int WEIGHT_STATS = 200;
+    private static final int WEIGHT_HISTOGRAM = 201;
+    private static final int WEIGHT_OUTLIERS = 202;
+    /**
+     * URI matcher code for the distinct breeds of the pets table
+     */
+    private static final int BREEDS = 300;
+    /**
+     * URI matcher codes for the pets of one shelter, a single pet of one shelter,
+     * and the pets of all shelters
+     */
+    private static final int SHELTER_PETS = 400;
+    private static final int SHELTER_PET_ID = 401;
+    private static final int ALL_SHELTERS_PETS = 402;
+
+    /**
+     * URI matcher codes for the weigh-in history of a pet and its daily and weekly
+     * summaries, in the default shelter and in a given shelter
+     */
+    private static final int WEIGH_INS = 500;
+    private static final int WEIGH_INS_DAILY = 501;
+    private static final int WEIGH_INS_WEEKLY = 502;
+    private static final int SHELTER_WEIGH_INS = 503;
+    private static final int SHELTER_WEIGH_INS_DAILY = 504;
+    private static final int SHELTER_WEIGH_INS_WEEKLY = 505;
+
+    /**
+     * URI matcher codes for the archived pets, a single archived pet and its weigh-in
+     * history and summaries
+     */
+    private static final int ARCHIVE_PETS = 600;
+    private static final int ARCHIVE_PET_ID = 601;
+    private static final int ARCHIVE_WEIGH_INS = 602;
+    private static final int ARCHIVE_WEIGH_INS_DAILY = 603;
+    private static final int ARCHIVE_WEIGH_INS_WEEKLY = 604;
 
     /**
      * UriMatcher object to match a content URI to a corresponding code.
@@ -50,6 +102,56 @@ public class PetProvider extends ContentProvider {
         // For example, "content://com.example.android.pets/pets/3" matches, but
         // "content://com.example.android.pets/pets" (without a number at the end) doesn't match.
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+
+        // The weight analytics URIs are computed from the whole pets table on every query.
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_WEIGHT_STATS, WEIGHT_STATS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_WEIGHT_HISTOGRAM, WEIGHT_HISTOGRAM);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_WEIGHT_OUTLIERS, WEIGHT_OUTLIERS);
+
+        // The content URI of the form "content://com.example.android.pets/breeds" lists
+        // every distinct breed with the number of pets of that breed.
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_BREEDS, BREEDS);
+
+        // The content URIs of the form "content://com.example.android.pets/shelters/2/pets"
+        // and ".../shelters/2/pets/3" work like the pets URIs, on the database of shelter 2.
+        // ".../shelters/all/pets" queries the pets of every shelter.
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_SHELTERS + "/"
+                + ShelterEntry.ALL_SHELTERS + "/" + PetContract.PATH_PETS, ALL_SHELTERS_PETS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_SHELTERS + "/#/" + PetContract.PATH_PETS, SHELTER_PETS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_SHELTERS + "/#/" + PetContract.PATH_PETS + "/#", SHELTER_PET_ID);
+
+        // The content URIs of the form "content://com.example.android.pets/pets/3/weigh_ins"
+        // list the weigh-ins of pet 3, ".../pets/3/weigh_ins/daily" and ".../weekly" their
+        // summaries. The same paths work after a shelter pet URI.
+        String weighIns = PetContract.PATH_PETS + "/#/" + PetContract.PATH_WEIGH_INS;
+        String shelterWeighIns = PetContract.PATH_SHELTERS + "/#/" + weighIns;
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, weighIns, WEIGH_INS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                weighIns + "/" + WeighInEntry.PATH_DAILY, WEIGH_INS_DAILY);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                weighIns + "/" + WeighInEntry.PATH_WEEKLY, WEIGH_INS_WEEKLY);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, shelterWeighIns, SHELTER_WEIGH_INS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                shelterWeighIns + "/" + WeighInEntry.PATH_DAILY, SHELTER_WEIGH_INS_DAILY);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                shelterWeighIns + "/" + WeighInEntry.PATH_WEEKLY, SHELTER_WEIGH_INS_WEEKLY);
+
+        // The content URIs of the form "content://com.example.android.pets/archive/pets"
+        // work like the pets and weigh-ins URIs above, read-only, on the archive.
+        String archivePets = PetContract.PATH_ARCHIVE + "/" + PetContract.PATH_PETS;
+        String archiveWeighIns = archivePets + "/#/" + PetContract.PATH_WEIGH_INS;
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, archivePets, ARCHIVE_PETS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, archivePets + "/#", ARCHIVE_PET_ID);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, archiveWeighIns, ARCHIVE_WEIGH_INS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                archiveWeighIns + "/" + WeighInEntry.PATH_DAILY, ARCHIVE_WEIGH_INS_DAILY);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                archiveWeighIns + "/" + WeighInEntry.PATH_WEEKLY, ARCHIVE_WEIGH_INS_WEEKLY);
     }
 
 
@@ -59,19 +161,76 @@ public class PetProvider extends ContentProvider {
     public static final String LOG_TAG = PetProvider.class.getSimpleName();
 
     /**
-     * Database helper object
+     * Database helper object of the default shelter
      */
     private PetDbHelper mDbHelper;
 
+    /**
+     * Databases of the other shelters, opened on demand
+     */
+    private ShelterPartitions mPartitions;
+
+    /**
+     * Schedules database maintenance based on the volume of writes
+     */
+    private PetMaintenance mMaintenance;
+
+    /**
+     * The pets of the default shelter adopted long ago, moved out of its database
+     */
+    private PetArchive mArchive;
+
+    /**
+     * Lets only one backup or restore run at a time
+     */
+    private final Object mBackupLock = new Object();
+
+    /**
+     * Compiles the typed queries of PetQuery, with a cache of the compiled shapes
+     */
+    private final PetQueryCompiler mQueryCompiler = new PetQueryCompiler();
+
     /**
      * Initialize the provider and the database helper object.
      */
     @Override
     public boolean onCreate() {
-        mDbHelper = new PetDbHelper(getContext());
+        // Providers are created before the application, as early as it gets
+        StartupMetrics.onProcessStart();
+
+        // Report database work on the main thread in debuggable builds
+        MainThreadAccessDetector.setEnabled((getContext().getApplicationInfo().flags
+                & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+
+        // Read once per process, so every database opened from here on uses the same profile
+        mDbHelper = new PetDbHelper(getContext(), PetDbHelper.DATABASE_NAME,
+                StorageProfile.select(getContext()));
+        mPartitions = new ShelterPartitions(getContext(), mDbHelper);
+        mArchive = new PetArchive(getContext(), mDbHelper);
+        mMaintenance = new PetMaintenance(getContext(), mDbHelper, mArchive);
+        // Open and warm up the database in the background before the first query asks for
+        // it, then finish pending migration backfills. A rebuild of the file waits for the
+        // device to be idle.
+        final PetMigrationRunner migrationRunner =
+                new PetMigrationRunner(mDbHelper, getContext().getContentResolver());
+        new DatabasePrewarmer(mDbHelper,
+                () -> migrationRunner.start(mMaintenance::onMigrationsDone)).start();
         return true;
     }
 
+    /**
+     * Stops the maintenance thread and closes every database of the provider. The platform
+     * never calls this, it is for tests that start the provider again on a fresh or reopened
+     * database.
+     */
+    @Override
+    public void shutdown() {
+        mMaintenance.quit();
+        mPartitions.close();
+        mArchive.close();
+        mDbHelper.close();
+    }
+
     /**
      * Perform the query for the given URI. Use the given projection, selection,
      * selection arguments, and sort order.
@@ -81,21 +240,90 @@ public class PetProvider extends ContentProvider {
     public Cursor query(@NonNull Uri uri, @Nullable String[] projection,
                         @Nullable String selection, @Nullable String[] selectionArgs,
                         @Nullable String sortOrder) {
-        // Get readable database
-        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
 
-        // This cursor will hold the result of the query
-        Cursor cursor;
+    /**
+     * Same as the query above, and stops as soon as the given signal is cancelled, throwing
+     * {@link android.os.OperationCanceledException}. The signal also stops the cursor
+     * window from being filled later on. Only called from API 16 on.
+     */
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection,
+                        @Nullable String selection, @Nullable String[] selectionArgs,
+                        @Nullable String sortOrder,
+                        @Nullable CancellationSignal cancellationSignal) {
+        // The row count isn't traced, counting would fill the cursor window right here
+        PetTrace trace = PetTrace.begin("query", uri);
+        try {
+            return queryUri(uri, projection, selection, selectionArgs, sortOrder,
+                    cancellationSignal);
+        } finally {
+            trace.end(PetTrace.UNKNOWN_ROWS);
+        }
+    }
 
+    private Cursor queryUri(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder,
+                            CancellationSignal cancellationSignal) {
         // Figure out if the URI matcher can match the URI to a specific code
         int match = sUriMatcher.match(uri);
+        if (PetQueryCompiler.isTypedQuery(uri)) {
+            if (shelterMatch(archiveMatch(match)) != PETS && match != ALL_SHELTERS_PETS) {
+                throw new IllegalArgumentException("Typed queries only work on all pets " + uri);
+            }
+            if (selection != null || sortOrder != null) {
+                throw new IllegalArgumentException(
+                        "Typed queries take no selection or sort order " + uri);
+            }
+            PetQueryCompiler.Query typedQuery = mQueryCompiler.compile(uri);
+            selection = typedQuery.selection;
+            selectionArgs = typedQuery.selectionArgs;
+            sortOrder = typedQuery.sortOrder;
+        }
+        if (match == ALL_SHELTERS_PETS) {
+            Cursor cursor = mPartitions.queryAll(projection, selection, selectionArgs,
+                    sortOrder, cancellationSignal);
+            // Notified of the changes in every shelter
+            cursor.setNotificationUri(getContext().getContentResolver(),
+                    ShelterEntry.CONTENT_URI);
+            return cursor;
+        }
+
+        if (isArchiveMatch(match)) {
+            return queryDatabase(mArchive.getReadableDatabase(), uri, archiveMatch(match),
+                    projection, selection, selectionArgs, sortOrder, cancellationSignal);
+        }
+
+        long shelterId = parseShelterId(uri, match);
+        PetDbHelper dbHelper = mPartitions.acquire(shelterId);
+        Cursor cursor;
+        try {
+            cursor = queryDatabase(dbHelper.getReadableDatabase(), uri, shelterMatch(match),
+                    projection, selection, selectionArgs, sortOrder, cancellationSignal);
+        } catch (RuntimeException e) {
+            mPartitions.release(shelterId);
+            throw e;
+        }
+        // The shelter stays open as long as the cursor
+        return mPartitions.releaseOnClose(cursor, shelterId);
+    }
+
+    private Cursor queryDatabase(SQLiteDatabase database, Uri uri, int match,
+                                 String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder,
+                                 CancellationSignal cancellationSignal) {
+        // This cursor will hold the result of the query
+        Cursor cursor;
+
         switch (match) {
             case PETS:
                 // For the PETS code, query the pets table directly with given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the pets table.
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection,
-                        selectionArgs, null, null, sortOrder);
+                cursor = queryTable(database, projection, selection, selectionArgs,
+                        null, sortOrder, cancellationSignal);
                 break;
             case PET_ID:
                 // For the PET_ID code, extract out the ID from the URI.
@@ -111,8 +339,30 @@ public class PetProvider extends ContentProvider {
 
                 // This will perform a query on the pets table where the _id equals 3 to return
                 // a Cursor containing that row of the table.
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection,
-                        selectionArgs, null, null, sortOrder);
+                cursor = queryTable(database, projection, selection, selectionArgs,
+                        null, sortOrder, cancellationSignal);
+                break;
+            case WEIGHT_STATS:
+            case WEIGHT_HISTOGRAM:
+            case WEIGHT_OUTLIERS:
+                cursor = queryWeightAnalytics(database, uri, match, cancellationSignal);
+                // Analytics depend on every pet, so they are refreshed on any pet change
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        PetEntry.CONTENT_URI);
+                return cursor;
+            case BREEDS:
+                // Read from the counts the triggers keep. Only the breed and count columns
+                // are available, the projection is ignored.
+                cursor = BreedCounts.query(database, selection, selectionArgs, sortOrder,
+                        cancellationSignal);
+                // Breeds change whenever any pet changes
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        PetEntry.CONTENT_URI);
+                return cursor;
+            case WEIGH_INS:
+            case WEIGH_INS_DAILY:
+            case WEIGH_INS_WEEKLY:
+                cursor = queryWeighIns(database, uri, match, projection, cancellationSignal);
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
@@ -126,6 +376,144 @@ public class PetProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Returns the shelter of the given URI, the default shelter for the URIs that
+     * aren't shelter-qualified.
+     */
+    private static long parseShelterId(Uri uri, int match) {
+        if (isShelterMatch(match)) {
+            return Long.parseLong(uri.getPathSegments().get(1));
+        }
+        return ShelterEntry.DEFAULT_SHELTER_ID;
+    }
+
+    private static boolean isShelterMatch(int match) {
+        return shelterMatch(match) != match;
+    }
+
+    /**
+     * Maps the shelter-qualified matcher codes to those of the pets URIs.
+     */
+    private static int shelterMatch(int match) {
+        switch (match) {
+            case SHELTER_PETS:
+                return PETS;
+            case SHELTER_PET_ID:
+                return PET_ID;
+            case SHELTER_WEIGH_INS:
+                return WEIGH_INS;
+            case SHELTER_WEIGH_INS_DAILY:
+                return WEIGH_INS_DAILY;
+            case SHELTER_WEIGH_INS_WEEKLY:
+                return WEIGH_INS_WEEKLY;
+            default:
+                return match;
+        }
+    }
+
+    private static boolean isArchiveMatch(int match) {
+        return archiveMatch(match) != match;
+    }
+
+    /**
+     * Maps the archive matcher codes to those of the pets URIs.
+     */
+    private static int archiveMatch(int match) {
+        switch (match) {
+            case ARCHIVE_PETS:
+                return PETS;
+            case ARCHIVE_PET_ID:
+                return PET_ID;
+            case ARCHIVE_WEIGH_INS:
+                return WEIGH_INS;
+            case ARCHIVE_WEIGH_INS_DAILY:
+                return WEIGH_INS_DAILY;
+            case ARCHIVE_WEIGH_INS_WEEKLY:
+                return WEIGH_INS_WEEKLY;
+            default:
+                return match;
+        }
+    }
+
+    /**
+     * Returns the URI of all pets in the shelter of the given URI.
+     */
+    private static Uri petsUri(long shelterId, int match) {
+        if (isShelterMatch(match)) {
+            return ShelterEntry.buildPetsUri(shelterId);
+        }
+        return PetEntry.CONTENT_URI;
+    }
+
+    /**
+     * Computes the weight statistics, histogram or outliers for the given URI.
+     */
+    private Cursor queryWeightAnalytics(SQLiteDatabase database, Uri uri, int match,
+                                        CancellationSignal cancellationSignal) {
+        PetWeightAnalytics analytics = PetWeightAnalytics.load(database, cancellationSignal);
+        switch (match) {
+            case WEIGHT_HISTOGRAM:
+                String width = uri.getQueryParameter(WeightStatsEntry.QUERY_PARAM_BUCKET_WIDTH);
+                int bucketWidth = (width == null) ?
+                        WeightStatsEntry.BUCKET_WIDTH_DEFAULT : Integer.parseInt(width);
+                if (bucketWidth < 1) {
+                    throw new IllegalArgumentException("Bucket width must be positive " + uri);
+                }
+                return analytics.histogramCursor(bucketWidth);
+            case WEIGHT_OUTLIERS:
+                String threshold = uri.getQueryParameter(WeightStatsEntry.QUERY_PARAM_THRESHOLD);
+                return analytics.outliersCursor((threshold == null) ?
+                        WeightStatsEntry.THRESHOLD_DEFAULT : Double.parseDouble(threshold));
+            default:
+                return analytics.statsCursor();
+        }
+    }
+
+    /**
+     * Reads the weigh-ins or the daily or weekly summaries of the pet of the URI, within the
+     * optional time range of its query parameters. The projection only applies to the
+     * weigh-ins, summaries always have the summary columns.
+     */
+    private static Cursor queryWeighIns(SQLiteDatabase database, Uri uri, int match,
+                                        String[] projection,
+                                        CancellationSignal cancellationSignal) {
+        // The pet id is the path segment before weigh_ins
+        List<String> segments = uri.getPathSegments();
+        int petSegment = segments.size() - ((match == WEIGH_INS) ? 2 : 3);
+        long petId = Long.parseLong(segments.get(petSegment));
+
+        String from = uri.getQueryParameter(WeighInEntry.QUERY_PARAM_FROM);
+        String to = uri.getQueryParameter(WeighInEntry.QUERY_PARAM_TO);
+        long fromMillis = (from == null) ? 0 : Long.parseLong(from);
+        long toMillis = (to == null) ? Long.MAX_VALUE : Long.parseLong(to);
+        if (fromMillis < 0 || toMillis < fromMillis) {
+            throw new IllegalArgumentException("Invalid weigh-in time range " + uri);
+        }
+
+        if (match == WEIGH_INS) {
+            return WeighInHistory.queryHistory(database, petId, fromMillis, toMillis,
+                    projection, cancellationSignal);
+        }
+        return WeighInHistory.querySummary(database, petId, match == WEIGH_INS_WEEKLY,
+                fromMillis, toMillis, cancellationSignal);
+    }
+
+    /**
+     * Queries the pets table, passing the cancellation signal down to SQLite when there is
+     * one. The signal is only ever set from API 16 on, where SQLiteDatabase takes it.
+     */
+    static Cursor queryTable(SQLiteDatabase database, String[] projection, String selection,
+                             String[] selectionArgs, String groupBy, String sortOrder,
+                             CancellationSignal cancellationSignal) {
+        if (cancellationSignal == null
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return database.query(PetEntry.TABLE_NAME, projection, selection,
+                    selectionArgs, groupBy, null, sortOrder);
+        }
+        return database.query(false, PetEntry.TABLE_NAME, projection, selection,
+                selectionArgs, groupBy, null, sortOrder, null, cancellationSignal);
+    }
+
     /**
      * Returns the MIME type of data for the content URI.
      */
@@ -135,9 +523,30 @@ public class PetProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
+            case SHELTER_PETS:
+            case ALL_SHELTERS_PETS:
+            case ARCHIVE_PETS:
                 return PetEntry.CONTENT_LIST_TYPE;
             case PET_ID:
+            case SHELTER_PET_ID:
+            case ARCHIVE_PET_ID:
                 return PetEntry.CONTENT_ITEM_TYPE;
+            case WEIGHT_STATS:
+            case WEIGHT_HISTOGRAM:
+            case WEIGHT_OUTLIERS:
+                return WeightStatsEntry.CONTENT_LIST_TYPE;
+            case BREEDS:
+                return BreedEntry.CONTENT_LIST_TYPE;
+            case WEIGH_INS:
+            case WEIGH_INS_DAILY:
+            case WEIGH_INS_WEEKLY:
+            case SHELTER_WEIGH_INS:
+            case SHELTER_WEIGH_INS_DAILY:
+            case SHELTER_WEIGH_INS_WEEKLY:
+            case ARCHIVE_WEIGH_INS:
+            case ARCHIVE_WEIGH_INS_DAILY:
+            case ARCHIVE_WEIGH_INS_WEEKLY:
+                return WeighInEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
@@ -149,25 +558,217 @@ public class PetProvider extends ContentProvider {
     @Nullable
     @Override
     public Uri insert(@NonNull Uri uri, @Nullable ContentValues contentValues) {
+        PetTrace trace = PetTrace.begin("insert", uri);
+        Uri newUri = null;
+        try {
+            newUri = insertUri(uri, contentValues);
+            return newUri;
+        } finally {
+            trace.end(newUri == null ? 0 : 1);
+        }
+    }
+
+    private Uri insertUri(Uri uri, ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PETS:
-                return insertPet(uri, contentValues);
-            default:
-                throw new IllegalArgumentException("Insertion is not suppported for " + uri);
+        if (shelterMatch(match) != PETS) {
+            throw new IllegalArgumentException("Insertion is not suppported for " + uri);
+        }
+        long shelterId = parseShelterId(uri, match);
+        PetDbHelper dbHelper = mPartitions.acquire(shelterId);
+        try {
+            if (isUpsert(uri)) {
+                return upsertPet(dbHelper, petsUri(shelterId, match), contentValues);
+            }
+            return insertPet(dbHelper, uri, contentValues);
+        } finally {
+            mPartitions.release(shelterId);
         }
     }
 
+    /**
+     * Insert all the given pets in one transaction and notify listeners once.
+     * In upsert mode pets that are already stored unchanged cost only an index lookup.
+     *
+     * @return the number of pets that were inserted, updated or found unchanged.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        PetTrace trace = PetTrace.begin("bulkInsert", uri);
+        int rowsStored = 0;
+        try {
+            rowsStored = bulkInsertUri(uri, values);
+            return rowsStored;
+        } finally {
+            trace.end(rowsStored);
+        }
+    }
+
+    private int bulkInsertUri(Uri uri, ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        if (shelterMatch(match) != PETS) {
+            throw new IllegalArgumentException("Insertion is not suppported for " + uri);
+        }
+        long shelterId = parseShelterId(uri, match);
+        PetDbHelper dbHelper = mPartitions.acquire(shelterId);
+        try {
+            return bulkInsertPets(dbHelper, petsUri(shelterId, match), isUpsert(uri), values);
+        } finally {
+            mPartitions.release(shelterId);
+        }
+    }
+
+    private int bulkInsertPets(PetDbHelper dbHelper, Uri petsUri, boolean upsert,
+                               ContentValues[] values) {
+        int rowsStored = 0;
+        int rowsWritten = 0;
+        SQLiteDatabase database = dbHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            for (ContentValues contentValues : values) {
+                sanityCheck(contentValues);
+                if (upsert) {
+                    UpsertResult result = upsertPet(database, contentValues);
+                    if (result.id != -1) rowsStored++;
+                    if (result.changed) rowsWritten++;
+                } else if (database.insert(PetEntry.TABLE_NAME, null, contentValues) != -1) {
+                    rowsStored++;
+                    rowsWritten++;
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsWritten > 0) {
+            onRowsWritten(dbHelper, rowsWritten);
+            notifyUriChanged(petsUri);
+        }
+        return rowsStored;
+    }
+
+    /**
+     * Returns whether the given URI asks for {@link PetEntry#QUERY_PARAM_UPSERT} mode.
+     */
+    private static boolean isUpsert(Uri uri) {
+        return uri.getBooleanQueryParameter(PetEntry.QUERY_PARAM_UPSERT, false);
+    }
+
+    /**
+     * Result of an upsert: the id of the pet (-1 if it failed) and whether
+     * anything was written.
+     */
+    private static final class UpsertResult {
+        final long id;
+        final boolean changed;
+
+        UpsertResult(long id, boolean changed) {
+            this.id = id;
+            this.changed = changed;
+        }
+    }
+
+    /**
+     * Insert a pet, or update the pet with the same intake id if its values differ.
+     *
+     * @return the content URI of the pet.
+     */
+    private Uri upsertPet(PetDbHelper dbHelper, Uri petsUri, ContentValues contentValues) {
+        sanityCheck(contentValues);
+
+        // The lookup and the write take the write lock together, so a concurrent upsert of
+        // the same intake id can't insert in between and make this insert fail
+        SQLiteDatabase database = dbHelper.getWritableDatabase();
+        UpsertResult result;
+        database.beginTransactionNonExclusive();
+        try {
+            result = upsertPet(database, contentValues);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        if (result.id == -1) {
+            Log.e(LOG_TAG, "Failed to upsert row for " + contentValues);
+            return null;
+        }
+
+        // Only notify listeners if a row was actually written
+        if (result.changed) {
+            onRowsWritten(dbHelper, 1);
+            notifyUriChanged(petsUri);
+        }
+
+        return ContentUris.withAppendedId(petsUri, result.id);
+    }
+
+    /**
+     * Runs in the caller's transaction, which holds the write lock from the lookup on.
+     */
+    private UpsertResult upsertPet(SQLiteDatabase database, ContentValues contentValues) {
+        String intakeId = contentValues.getAsString(PetEntry.COLUMN_PET_INTAKE_ID);
+        if (intakeId == null) {
+            // Without a natural key there is nothing to match, so this is a plain insert
+            long id = database.insert(PetEntry.TABLE_NAME, null, contentValues);
+            return new UpsertResult(id, id != -1);
+        }
+
+        // Look the pet up through the unique intake id index, reading only the
+        // columns that are about to be written
+        String[] projection = new String[contentValues.size() + 1];
+        projection[0] = PetEntry._ID;
+        int i = 1;
+        for (String column : contentValues.keySet()) {
+            projection[i++] = column;
+        }
+        long id;
+        Cursor cursor = database.query(PetEntry.TABLE_NAME, projection,
+                PetEntry.COLUMN_PET_INTAKE_ID + "=?", new String[]{intakeId},
+                null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                id = database.insert(PetEntry.TABLE_NAME, null, contentValues);
+                return new UpsertResult(id, id != -1);
+            }
+            id = cursor.getLong(0);
+            if (hasSameValues(cursor, projection, contentValues)) {
+                // Re-import of an unchanged pet, don't rewrite the row
+                return new UpsertResult(id, false);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        database.update(PetEntry.TABLE_NAME, contentValues,
+                PetEntry._ID + "=?", new String[]{String.valueOf(id)});
+        return new UpsertResult(id, true);
+    }
+
+    /**
+     * Checks if the current row of the cursor already holds the given values.
+     * The cursor columns are in the order of the projection, starting at 1.
+     */
+    private static boolean hasSameValues(Cursor cursor, String[] projection,
+                                         ContentValues contentValues) {
+        for (int i = 1; i < projection.length; i++) {
+            String stored = cursor.getString(i);
+            String value = contentValues.getAsString(projection[i]);
+            if (stored == null ? value != null : !stored.equals(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Insert a pet info into the database with the given content values.
      *
      * @return the new content URI for that specific row in the database.
      */
-    private Uri insertPet(Uri uri, ContentValues contentValues) {
+    private Uri insertPet(PetDbHelper dbHelper, Uri uri, ContentValues contentValues) {
         sanityCheck(contentValues);
 
         // Get writable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        SQLiteDatabase database = dbHelper.getWritableDatabase();
         // Insert a new pet into the pets database table with the given ContentValues
         long id = database.insert(PetEntry.TABLE_NAME, null, contentValues);
 
@@ -178,6 +779,7 @@ public class PetProvider extends ContentProvider {
         }
 
         // Notify all listeners that the data has changed for the pet content URI
+        onRowsWritten(dbHelper, 1);
         notifyUriChanged(uri);
 
         // Return the new URI with the ID (of the newly inserted row) appended at the end
@@ -190,9 +792,20 @@ public class PetProvider extends ContentProvider {
     @Override
     public int delete(@NonNull Uri uri, @Nullable String selection,
                       @Nullable String[] selectionArgs) {
+        PetTrace trace = PetTrace.begin("delete", uri);
+        int rowsDeleted = 0;
+        try {
+            rowsDeleted = deleteUri(uri, selection, selectionArgs);
+            return rowsDeleted;
+        } finally {
+            trace.end(rowsDeleted);
+        }
+    }
+
+    private int deleteUri(Uri uri, String selection, String[] selectionArgs) {
 
         final int match = sUriMatcher.match(uri);
-        switch (match) {
+        switch (shelterMatch(match)) {
             case PETS:
                 // Delete all rows that match the selection and selection args
                 break;
@@ -204,7 +817,15 @@ public class PetProvider extends ContentProvider {
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
-        int rowsDeleted = deletePet(selection, selectionArgs);
+        long shelterId = parseShelterId(uri, match);
+        PetDbHelper dbHelper = mPartitions.acquire(shelterId);
+        int rowsDeleted;
+        try {
+            rowsDeleted = deletePet(dbHelper, selection, selectionArgs);
+        } finally {
+            mPartitions.release(shelterId);
+        }
+        onRowsWritten(dbHelper, rowsDeleted);
 
         // If 1 or more rows were deleted, then notify all listeners
         // that the data at the given URI has changed.
@@ -213,9 +834,9 @@ public class PetProvider extends ContentProvider {
         return rowsDeleted;
     }
 
-    private int deletePet(String selection, String[] selectionArgs) {
+    private int deletePet(PetDbHelper dbHelper, String selection, String[] selectionArgs) {
         // Get writeable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        SQLiteDatabase database = dbHelper.getWritableDatabase();
         return database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
     }
 
@@ -225,44 +846,73 @@ public class PetProvider extends ContentProvider {
     @Override
     public int update(@NonNull Uri uri, @Nullable ContentValues contentValues,
                       @Nullable String selection, @Nullable String[] selectionArgs) {
+        PetTrace trace = PetTrace.begin("update", uri);
+        int rowsUpdated = 0;
+        try {
+            rowsUpdated = updateUri(uri, contentValues, selection, selectionArgs);
+            return rowsUpdated;
+        } finally {
+            trace.end(rowsUpdated);
+        }
+    }
+
+    private int updateUri(Uri uri, ContentValues contentValues, String selection,
+                          String[] selectionArgs) {
         // If there are no values to update, then don't try to update the database
         if (contentValues == null || contentValues.size() == 0) {
             return 0;
         }
         final int match = sUriMatcher.match(uri);
-        switch (match) {
+        switch (shelterMatch(match)) {
             case PETS:
-                return updatePet(uri, contentValues, selection, selectionArgs);
+                break;
             case PET_ID:
                 selection = PetEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return updatePet(uri, contentValues, selection, selectionArgs);
+                break;
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
+        long shelterId = parseShelterId(uri, match);
+        PetDbHelper dbHelper = mPartitions.acquire(shelterId);
+        try {
+            return updatePet(dbHelper, uri, contentValues, selection, selectionArgs);
+        } finally {
+            mPartitions.release(shelterId);
+        }
     }
 
-    private int updatePet(Uri uri, ContentValues contentValues, String selection,
-                          String[] selectionArgs) {
+    private int updatePet(PetDbHelper dbHelper, Uri uri, ContentValues contentValues,
+                          String selection, String[] selectionArgs) {
         sanityCheck(contentValues);
 
         // Defines a variable to contain the number of updated rows
         int rowsUpdated = 0;
 
         // Get writable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        SQLiteDatabase database = dbHelper.getWritableDatabase();
         // Update pet in the pets database table with the given ContentValues
         rowsUpdated = database.update(PetEntry.TABLE_NAME, contentValues,
                 selection, selectionArgs);
 
         // If 1 or more rows were updated, then notify all listeners
         // that the data at the given URI has changed
-        if (rowsUpdated > 0) notifyUriChanged(uri);
+        if (rowsUpdated > 0) {
+            onRowsWritten(dbHelper, rowsUpdated);
+            notifyUriChanged(uri);
+        }
 
         // Return the number of rows that were affected
         return rowsUpdated;
     }
 
+    /**
+     * Counts the written rows towards maintenance, which only runs on the default shelter.
+     */
+    private void onRowsWritten(PetDbHelper dbHelper, int rows) {
+        if (dbHelper == mDbHelper) mMaintenance.onRowsWritten(rows);
+    }
+
     /**
      * Checks if data is valid. Throws exception if not.
      */
@@ -287,6 +937,151 @@ public class PetProvider extends ContentProvider {
                 throw new IllegalArgumentException("Pet requires valid weight.");
             }
         }
+
+        if (contentValues.containsKey(PetEntry.COLUMN_PET_STATUS)) {
+            Integer status = contentValues.getAsInteger(PetEntry.COLUMN_PET_STATUS);
+            if (status == null || !PetEntry.isValidStatus(status)) {
+                throw new IllegalArgumentException("Pet requires valid status.");
+            }
+        }
+
+        if (contentValues.containsKey(PetEntry.COLUMN_PET_ADOPTED_AT)) {
+            Long adoptedAt = contentValues.getAsLong(PetEntry.COLUMN_PET_ADOPTED_AT);
+            if (adoptedAt != null && adoptedAt < 0) {
+                throw new IllegalArgumentException("Pet requires valid adoption time.");
+            }
+        }
+
+        if (contentValues.containsKey(PetEntry.COLUMN_PET_INTAKE_ID)) {
+            String intakeId = contentValues.getAsString(PetEntry.COLUMN_PET_INTAKE_ID);
+            if (intakeId != null && intakeId.trim().isEmpty()) {
+                throw new IllegalArgumentException("Pet intake id can't be empty.");
+            }
+        }
+    }
+
+    /**
+     * Updates several pets at once, see {@link PetEntry#METHOD_BATCH_UPDATE}, or backs the
+     * pets up into, or restores them from, the file passed as the argument, see
+     * {@link BackupEntry}.
+     */
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        if (PetEntry.METHOD_BATCH_UPDATE.equals(method)) {
+            return batchUpdate(arg, extras);
+        }
+        if (ArchiveEntry.METHOD_ARCHIVE.equals(method)) {
+            return archive();
+        }
+        if (StorageEntry.METHOD_SET_PROFILE.equals(method)) {
+            StorageProfile.setSelected(getContext(), arg);
+            return null;
+        }
+        if (!BackupEntry.METHOD_BACKUP.equals(method)
+                && !BackupEntry.METHOD_RESTORE.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        if (arg == null) {
+            throw new IllegalArgumentException("Backup file required for " + method);
+        }
+
+        File file = new File(arg);
+        PetTrace trace = PetTrace.begin(method + " " + file.getName(), null);
+        int rows = 0;
+        try {
+            synchronized (mBackupLock) {
+                PetBackup backup = new PetBackup(mDbHelper.getWritableDatabase());
+                Bundle result = new Bundle();
+                if (BackupEntry.METHOD_BACKUP.equals(method)) {
+                    PetBackup.Result backupResult = backup.backup(file);
+                    rows = backupResult.rowsCopied;
+                    result.putBoolean(BackupEntry.EXTRA_INCREMENTAL, backupResult.incremental);
+                    result.putLong(BackupEntry.EXTRA_BYTES, backupResult.bytes);
+                    result.putLong(BackupEntry.EXTRA_DURATION_MILLIS,
+                            backupResult.durationMillis);
+                } else {
+                    rows = backup.restore(file);
+                    mMaintenance.onRowsWritten(rows);
+                    // Every pet may have changed
+                    notifyUriChanged(PetEntry.CONTENT_URI);
+                }
+                result.putInt(BackupEntry.EXTRA_ROWS, rows);
+                return result;
+            }
+        } finally {
+            trace.end(rows);
+        }
+    }
+
+    /**
+     * Moves the pets adopted long enough ago to the archive, all at once.
+     */
+    private Bundle archive() {
+        PetTrace trace = PetTrace.begin(ArchiveEntry.METHOD_ARCHIVE, ArchiveEntry.CONTENT_URI);
+        int rows = 0;
+        try {
+            rows = mArchive.archive(Long.MAX_VALUE).rowsMoved;
+            Bundle result = new Bundle();
+            result.putInt(ArchiveEntry.EXTRA_ROWS, rows);
+            return result;
+        } finally {
+            trace.end(rows);
+        }
+    }
+
+    /**
+     * Applies the same values to all the given pets of a shelter, with one statement and
+     * one notification.
+     */
+    private Bundle batchUpdate(String arg, Bundle extras) {
+        long[] ids = (extras == null) ? null : extras.getLongArray(PetEntry.EXTRA_IDS);
+        ContentValues contentValues =
+                (extras == null) ? null : extras.getParcelable(PetEntry.EXTRA_VALUES);
+        if (ids == null || contentValues == null) {
+            throw new IllegalArgumentException("Batch update requires ids and values");
+        }
+        sanityCheck(contentValues);
+
+        long shelterId = (arg == null) ? ShelterEntry.DEFAULT_SHELTER_ID : Long.parseLong(arg);
+        Uri petsUri = (arg == null) ?
+                PetEntry.CONTENT_URI : ShelterEntry.buildPetsUri(shelterId);
+        PetTrace trace = PetTrace.begin(PetEntry.METHOD_BATCH_UPDATE, petsUri);
+        int rowsUpdated = 0;
+        PetDbHelper dbHelper = mPartitions.acquire(shelterId);
+        try {
+            rowsUpdated = updatePetsById(dbHelper.getWritableDatabase(), contentValues, ids);
+        } finally {
+            mPartitions.release(shelterId);
+            trace.end(rowsUpdated);
+        }
+
+        if (rowsUpdated > 0) {
+            onRowsWritten(dbHelper, rowsUpdated);
+            notifyUriChanged(petsUri);
+        }
+        Bundle result = new Bundle();
+        result.putInt(PetEntry.EXTRA_ROWS, rowsUpdated);
+        return result;
+    }
+
+    /**
+     * Updates the given pets with a single UPDATE ... WHERE _id IN (...), which SQLite runs
+     * as one transaction. The ids are inlined as integer literals, so their number isn't
+     * limited by the maximum number of bound parameters.
+     */
+    private static int updatePetsById(SQLiteDatabase database, ContentValues contentValues,
+                                      long[] ids) {
+        if (ids.length == 0 || contentValues.size() == 0) return 0;
+
+        StringBuilder selection = new StringBuilder(PetEntry._ID.length() + 5 + ids.length * 8);
+        selection.append(PetEntry._ID).append(" IN (");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) selection.append(',');
+            selection.append(ids[i]);
+        }
+        selection.append(')');
+        return database.update(PetEntry.TABLE_NAME, contentValues, selection.toString(), null);
     }
 
     /**
@@ -295,5 +1090,15 @@ public class PetProvider extends ContentProvider {
      */
     private void notifyUriChanged(Uri uri) {
         getContext().getContentResolver().notifyChange(uri, null);
+        // The default shelter is at both the pets and the shelter URIs. The shelter URI
+        // also reaches the observers of all shelters.
+        int match = sUriMatcher.match(uri);
+        if (match == PETS || match == PET_ID) {
+            getContext().getContentResolver().notifyChange(
+                    ShelterEntry.buildPetsUri(ShelterEntry.DEFAULT_SHELTER_ID), null);
+        } else if ((match == SHELTER_PETS || match == SHELTER_PET_ID)
+                && parseShelterId(uri, match) == ShelterEntry.DEFAULT_SHELTER_ID) {
+            getContext().getContentResolver().notifyChange(PetEntry.CONTENT_URI, null);
+        }
     }
 }
@@ -0,0 +1,206 @@
+package com.example.android.pets.data;
+
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetQuery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles the typed queries of {@link PetQuery} into a parameterized selection and sort
+ * order.
+ * <p>
+ * The SQL only depends on the shape of the query: the filtered columns with their operators
+ * and the sort columns. Filters are put in a canonical order, so every query of one shape
+ * runs the exact same statement text and SQLite finds it in the prepared statement cache of
+ * the connection, whatever the values. Compiled shapes are kept in a small LRU cache, which
+ * spares the validation and string building as well.
+ */
+final class PetQueryCompiler {
+
+    /**
+     * Number of compiled shapes kept. Matches the default prepared statement cache of a
+     * database connection, a larger cache would only hold statements SQLite re-prepares.
+     */
+    static final int MAX_CACHED_QUERIES = 25;
+
+    /**
+     * Columns that can be filtered and sorted by
+     */
+    private static final List<String> COLUMNS = Arrays.asList(
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_INTAKE_ID,
+            PetEntry.COLUMN_PET_STATUS,
+            PetEntry.COLUMN_PET_ADOPTED_AT);
+
+    /**
+     * SQL of each operator of PetQuery
+     */
+    private static final Map<String, String> OPERATORS = new HashMap<>();
+
+    static {
+        OPERATORS.put(PetQuery.EQUALS, " = ?");
+        OPERATORS.put(PetQuery.NOT_EQUALS, " != ?");
+        OPERATORS.put(PetQuery.LESS_THAN, " < ?");
+        OPERATORS.put(PetQuery.AT_MOST, " <= ?");
+        OPERATORS.put(PetQuery.GREATER_THAN, " > ?");
+        OPERATORS.put(PetQuery.AT_LEAST, " >= ?");
+        OPERATORS.put(PetQuery.LIKE, " LIKE ? ESCAPE '\\'");
+    }
+
+    /**
+     * The SQL of one query shape, either part is null when the query has none
+     */
+    private static final class CompiledQuery {
+        final String selection;
+        final String sortOrder;
+
+        CompiledQuery(String selection, String sortOrder) {
+            this.selection = selection;
+            this.sortOrder = sortOrder;
+        }
+    }
+
+    /**
+     * A typed query read from a URI: the compiled selection and sort order, and the values
+     * of the filters in the canonical order
+     */
+    static final class Query {
+        final String selection;
+        final String[] selectionArgs;
+        final String sortOrder;
+
+        Query(CompiledQuery compiled, String[] selectionArgs) {
+            this.selection = compiled.selection;
+            this.selectionArgs = selectionArgs;
+            this.sortOrder = compiled.sortOrder;
+        }
+    }
+
+    /**
+     * One filter of a query, "column:operator" and its value
+     */
+    private static final class Filter implements Comparable<Filter> {
+        final String where;
+        final String arg;
+
+        Filter(String where, String arg) {
+            this.where = where;
+            this.arg = arg;
+        }
+
+        @Override
+        public int compareTo(Filter other) {
+            return where.compareTo(other.where);
+        }
+    }
+
+    // Compiled shapes in least recently used order, guarded by this
+    private final LinkedHashMap<String, CompiledQuery> mCache =
+            new LinkedHashMap<String, CompiledQuery>(MAX_CACHED_QUERIES * 2, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CompiledQuery> eldest) {
+                    return size() > MAX_CACHED_QUERIES;
+                }
+            };
+
+    /**
+     * Returns whether the URI was built by {@link PetQuery}.
+     */
+    static boolean isTypedQuery(Uri uri) {
+        return uri.getQueryParameter(PetQuery.QUERY_PARAM_WHERE) != null
+                || uri.getQueryParameter(PetQuery.QUERY_PARAM_ORDER) != null;
+    }
+
+    /**
+     * Reads the typed query of the URI and compiles it, or takes it from the cache.
+     *
+     * @throws IllegalArgumentException if the URI has an unknown column or operator
+     */
+    Query compile(Uri uri) {
+        List<String> wheres = uri.getQueryParameters(PetQuery.QUERY_PARAM_WHERE);
+        List<String> args = uri.getQueryParameters(PetQuery.QUERY_PARAM_ARG);
+        List<String> orders = uri.getQueryParameters(PetQuery.QUERY_PARAM_ORDER);
+        if (wheres.size() != args.size()) {
+            throw new IllegalArgumentException("Every filter needs one value " + uri);
+        }
+
+        // The filters are all ANDed, so their order doesn't matter and is made canonical.
+        // The sort columns keep theirs.
+        List<Filter> filters = new ArrayList<>(wheres.size());
+        for (int i = 0; i < wheres.size(); i++) {
+            filters.add(new Filter(wheres.get(i), args.get(i)));
+        }
+        Collections.sort(filters);
+
+        StringBuilder key = new StringBuilder("where");
+        String[] selectionArgs = new String[filters.size()];
+        for (int i = 0; i < selectionArgs.length; i++) {
+            key.append(' ').append(filters.get(i).where);
+            selectionArgs[i] = filters.get(i).arg;
+        }
+        key.append(" order");
+        for (String order : orders) {
+            key.append(' ').append(order);
+        }
+
+        String shape = key.toString();
+        CompiledQuery compiled;
+        synchronized (this) {
+            compiled = mCache.get(shape);
+        }
+        if (compiled == null) {
+            compiled = compile(filters, orders);
+            synchronized (this) {
+                mCache.put(shape, compiled);
+            }
+        }
+        return new Query(compiled, selectionArgs);
+    }
+
+    private static CompiledQuery compile(List<Filter> filters, List<String> orders) {
+        StringBuilder selection = new StringBuilder();
+        for (Filter filter : filters) {
+            String[] parts = filter.where.split(":", -1);
+            String operator = (parts.length == 2) ? OPERATORS.get(parts[1]) : null;
+            if (operator == null) {
+                throw new IllegalArgumentException("Invalid pet filter " + filter.where);
+            }
+            if (selection.length() > 0) selection.append(" AND ");
+            selection.append(checkColumn(parts[0])).append(operator);
+        }
+
+        StringBuilder sortOrder = new StringBuilder();
+        for (String order : orders) {
+            String[] parts = order.split(":", -1);
+            if (parts.length != 2 || !(PetQuery.ASCENDING.equals(parts[1])
+                    || PetQuery.DESCENDING.equals(parts[1]))) {
+                throw new IllegalArgumentException("Invalid pet sort order " + order);
+            }
+            if (sortOrder.length() > 0) sortOrder.append(", ");
+            sortOrder.append(checkColumn(parts[0]))
+                    .append(PetQuery.DESCENDING.equals(parts[1]) ? " DESC" : " ASC");
+        }
+
+        return new CompiledQuery((selection.length() > 0) ? selection.toString() : null,
+                (sortOrder.length() > 0) ? sortOrder.toString() : null);
+    }
+
+    private static String checkColumn(String column) {
+        if (!COLUMNS.contains(column)) {
+            throw new IllegalArgumentException("Pets can't be queried by " + column);
+        }
+        return column;
+    }
+}
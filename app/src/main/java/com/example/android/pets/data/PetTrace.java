@@ -0,0 +1,78 @@
+package com.example.android.pets.data;
+
+import android.net.Uri;
+import android.os.Build;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.Trace;
+
+/**
+ * A named {@link Trace} section around a piece of data layer work, so it shows up in
+ * systrace and Perfetto captures.
+ * <p>
+ * Section names carry the operation and URI. When the work is done, the number of rows it
+ * touched is added as a nested section. If the {@link MainThreadAccessDetector} is enabled,
+ * work that ran on the main thread is reported to it.
+ */
+final class PetTrace {
+
+    /**
+     * Trace section names are cut off by the platform at this length
+     */
+    private static final int MAX_SECTION_NAME_LENGTH = 127;
+
+    /**
+     * Row count passed to {@link #end(int)} when the number of rows isn't known
+     */
+    static final int UNKNOWN_ROWS = -1;
+
+    private final String mName;
+    private final Uri mUri;
+    private final long mStartTime;
+
+    private PetTrace(String name, Uri uri) {
+        mName = name;
+        mUri = uri;
+        mStartTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Starts a section for the given operation on the given URI, which may be null.
+     */
+    static PetTrace begin(String name, Uri uri) {
+        beginSection((uri == null) ? name : name + " " + uri);
+        return new PetTrace(name, uri);
+    }
+
+    /**
+     * Ends the section, recording how many rows were touched.
+     */
+    void end(int rows) {
+        if (rows != UNKNOWN_ROWS) {
+            beginSection("rows=" + rows);
+            endSection();
+        }
+        endSection();
+
+        if (MainThreadAccessDetector.isEnabled()
+                && Looper.myLooper() == Looper.getMainLooper()) {
+            MainThreadAccessDetector.record(mName, mUri, rows,
+                    SystemClock.uptimeMillis() - mStartTime);
+        }
+    }
+
+    private static void beginSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            if (name.length() > MAX_SECTION_NAME_LENGTH) {
+                name = name.substring(0, MAX_SECTION_NAME_LENGTH);
+            }
+            Trace.beginSection(name);
+        }
+    }
+
+    private static void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.WeightStatsEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes weight statistics (percentiles, histograms and z-score outliers) for the pets table.
+ * <p>
+ * The weight, gender and breed columns are read once into primitive int arrays, with breeds
+ * dictionary-encoded to small ints, so no value is boxed on the way. The work is then split
+ * into independent chunks that run on a small shared thread pool.
+ */
+final class PetWeightAnalytics {
+
+    /**
+     * Percentiles reported for every breed and gender group, in ascending order
+     */
+    static final int[] PERCENTILES = {25, 50, 75, 90, 99};
+
+    /**
+     * Number of distinct gender values, used to build the breed and gender group key
+     */
+    private static final int GENDER_COUNT = 3;
+
+    /**
+     * Below this many rows the work is done on the calling thread
+     */
+    private static final int PARALLEL_THRESHOLD = 10000;
+
+    private static final int THREAD_COUNT =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Shared pool for the analytics work. Threads are daemons so they never keep
+     * the process alive.
+     */
+    private static final ExecutorService sExecutor = Executors.newFixedThreadPool(THREAD_COUNT,
+            runnable -> {
+                Thread thread = new Thread(runnable, "pet-weight-analytics");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * A unit of work over one chunk of the input.
+     */
+    private interface ChunkTask {
+        void run(int chunk);
+    }
+
+    // Columnar copy of the pets table
+    private final long[] mIds;
+    private final int[] mWeights;
+    private final int[] mGroups;
+    private final String[] mBreeds;
+    private final int mSize;
+
+    // Rows grouped by breed and gender: weights of group g live in
+    // mGroupedWeights[mGroupStart[g] .. mGroupStart[g + 1])
+    private final int[] mGroupStart;
+    private final int[] mGroupedWeights;
+
+    // Per group statistics
+    private final double[] mMean;
+    private final double[] mStdDev;
+    private final int[] mMin;
+    private final int[] mMax;
+    private final int[][] mPercentiles;
+
+    private PetWeightAnalytics(long[] ids, int[] weights, int[] groups, String[] breeds,
+                               int size) {
+        mIds = ids;
+        mWeights = weights;
+        mGroups = groups;
+        mBreeds = breeds;
+        mSize = size;
+
+        int groupCount = breeds.length * GENDER_COUNT;
+        mGroupStart = new int[groupCount + 1];
+        mGroupedWeights = new int[size];
+        mMean = new double[groupCount];
+        mStdDev = new double[groupCount];
+        mMin = new int[groupCount];
+        mMax = new int[groupCount];
+        mPercentiles = new int[groupCount][PERCENTILES.length];
+
+        groupRows();
+        computeGroupStats();
+    }
+
+    /**
+     * Reads the weight, gender and breed columns of every pet into primitive arrays.
+     * The read stops if the cancellation signal, which may be null, is cancelled.
+     */
+    static PetWeightAnalytics load(SQLiteDatabase database,
+                                   CancellationSignal cancellationSignal) {
+        String[] projection = {
+                PetEntry._ID,
+                PetEntry.COLUMN_PET_WEIGHT,
+                PetEntry.COLUMN_PET_GENDER,
+                PetEntry.COLUMN_PET_BREED
+        };
+        Cursor cursor = PetProvider.queryTable(database, projection, null, null, null, null,
+                cancellationSignal);
+        try {
+            int size = cursor.getCount();
+            long[] ids = new long[size];
+            int[] weights = new int[size];
+            int[] groups = new int[size];
+
+            // Breeds are dictionary-encoded so every row only stores a small int
+            HashMap<String, Integer> breedIds = new HashMap<>();
+            List<String> breeds = new ArrayList<>();
+
+            int row = 0;
+            while (cursor.moveToNext() && row < size) {
+                String breed = cursor.getString(3);
+                if (breed == null) breed = "";
+                Integer breedId = breedIds.get(breed);
+                if (breedId == null) {
+                    breedId = breeds.size();
+                    breedIds.put(breed, breedId);
+                    breeds.add(breed);
+                }
+                int gender = cursor.getInt(2);
+                if (!PetEntry.isValidGender(gender)) gender = PetEntry.GENDER_UNKNOWN;
+
+                ids[row] = cursor.getLong(0);
+                weights[row] = cursor.getInt(1);
+                groups[row] = breedId * GENDER_COUNT + gender;
+                row++;
+            }
+            return new PetWeightAnalytics(ids, weights, groups,
+                    breeds.toArray(new String[0]), row);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns one row per breed and gender group with count, min, max, mean,
+     * standard deviation and the {@link #PERCENTILES}.
+     */
+    Cursor statsCursor() {
+        MatrixCursor cursor = new MatrixCursor(WeightStatsEntry.STATS_COLUMNS);
+        for (int group = 0; group < mMean.length; group++) {
+            int count = mGroupStart[group + 1] - mGroupStart[group];
+            if (count == 0) continue;
+            MatrixCursor.RowBuilder row = cursor.newRow()
+                    .add(group)
+                    .add(mBreeds[group / GENDER_COUNT])
+                    .add(group % GENDER_COUNT)
+                    .add(count)
+                    .add(mMin[group])
+                    .add(mMax[group])
+                    .add(mMean[group])
+                    .add(mStdDev[group]);
+            for (int value : mPercentiles[group]) {
+                row.add(value);
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns one row per non-empty weight bucket of the given width, in ascending order.
+     * Buckets start at 0, negative weights count into the first one.
+     * <p>
+     * Only the buckets that hold a pet are materialized, so a single very heavy pet or a
+     * width of 1 over a wide range of weights costs no more than the pets themselves.
+     * Bucket bounds are computed in long arithmetic, as they can pass Integer.MAX_VALUE.
+     */
+    Cursor histogramCursor(final int bucketWidth) {
+        MatrixCursor cursor = new MatrixCursor(WeightStatsEntry.HISTOGRAM_COLUMNS);
+        if (mSize == 0) return cursor;
+
+        // Every chunk sorts the bucket indexes of its rows and counts the runs into its own
+        // sparse histogram of ascending buckets, the partial results are merged below
+        final int chunkCount = chunkCount(mSize);
+        final int[] buckets = new int[mSize];
+        final int[][] partialBuckets = new int[chunkCount][];
+        final int[][] partialCounts = new int[chunkCount][];
+        final int[] partialSizes = new int[chunkCount];
+        runChunks(chunkCount, chunk -> {
+            int start = chunkStart(chunk, chunkCount, mSize);
+            int end = chunkEnd(chunk, chunkCount, mSize);
+            for (int i = start; i < end; i++) {
+                buckets[i] = Math.max(0, mWeights[i]) / bucketWidth;
+            }
+            Arrays.sort(buckets, start, end);
+
+            int runs = 0;
+            for (int i = start; i < end; i++) {
+                if (i == start || buckets[i] != buckets[i - 1]) runs++;
+            }
+            int[] keys = new int[runs];
+            int[] counts = new int[runs];
+            int run = -1;
+            for (int i = start; i < end; i++) {
+                if (i == start || buckets[i] != buckets[i - 1]) keys[++run] = buckets[i];
+                counts[run]++;
+            }
+            partialBuckets[chunk] = keys;
+            partialCounts[chunk] = counts;
+            partialSizes[chunk] = runs;
+        });
+
+        // k-way merge of the ascending partial histograms, there are only a few chunks
+        int[] next = new int[chunkCount];
+        while (true) {
+            int bucket = Integer.MAX_VALUE;
+            boolean found = false;
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                if (next[chunk] < partialSizes[chunk]) {
+                    bucket = Math.min(bucket, partialBuckets[chunk][next[chunk]]);
+                    found = true;
+                }
+            }
+            if (!found) break;
+
+            int count = 0;
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                if (next[chunk] < partialSizes[chunk]
+                        && partialBuckets[chunk][next[chunk]] == bucket) {
+                    count += partialCounts[chunk][next[chunk]++];
+                }
+            }
+            long bucketStart = (long) bucket * bucketWidth;
+            cursor.newRow()
+                    .add(bucket)
+                    .add(bucketStart)
+                    .add(bucketStart + bucketWidth)
+                    .add(count);
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns the pets whose weight is more than {@code threshold} standard deviations
+     * away from the mean of their breed and gender group.
+     */
+    Cursor outliersCursor(final double threshold) {
+        MatrixCursor cursor = new MatrixCursor(WeightStatsEntry.OUTLIER_COLUMNS);
+        if (mSize == 0) return cursor;
+
+        // Every chunk collects the matching row indexes, kept in row order when merged
+        final int chunkCount = chunkCount(mSize);
+        final int[][] matches = new int[chunkCount][];
+        final int[] matchCounts = new int[chunkCount];
+        runChunks(chunkCount, chunk -> {
+            int end = chunkEnd(chunk, chunkCount, mSize);
+            int[] found = new int[16];
+            int count = 0;
+            for (int i = chunkStart(chunk, chunkCount, mSize); i < end; i++) {
+                if (Math.abs(zScore(i)) > threshold) {
+                    if (count == found.length) {
+                        int[] grown = new int[count * 2];
+                        System.arraycopy(found, 0, grown, 0, count);
+                        found = grown;
+                    }
+                    found[count++] = i;
+                }
+            }
+            matches[chunk] = found;
+            matchCounts[chunk] = count;
+        });
+
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            for (int j = 0; j < matchCounts[chunk]; j++) {
+                int i = matches[chunk][j];
+                cursor.newRow()
+                        .add(mIds[i])
+                        .add(mBreeds[mGroups[i] / GENDER_COUNT])
+                        .add(mGroups[i] % GENDER_COUNT)
+                        .add(mWeights[i])
+                        .add(zScore(i));
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Z-score of the given row within its breed and gender group, 0 when the group
+     * has no spread.
+     */
+    private double zScore(int row) {
+        int group = mGroups[row];
+        double stdDev = mStdDev[group];
+        if (stdDev == 0) return 0;
+        return (mWeights[row] - mMean[group]) / stdDev;
+    }
+
+    /**
+     * Lays the weights out contiguously by group with a counting sort, O(n).
+     */
+    private void groupRows() {
+        int[] counts = new int[mMean.length];
+        for (int i = 0; i < mSize; i++) {
+            counts[mGroups[i]]++;
+        }
+        for (int group = 0; group < counts.length; group++) {
+            mGroupStart[group + 1] = mGroupStart[group] + counts[group];
+        }
+        int[] next = new int[counts.length];
+        System.arraycopy(mGroupStart, 0, next, 0, counts.length);
+        for (int i = 0; i < mSize; i++) {
+            mGroupedWeights[next[mGroups[i]]++] = mWeights[i];
+        }
+    }
+
+    /**
+     * Computes mean, standard deviation, min, max and percentiles of every group.
+     * Groups are independent, so they are spread over the thread pool.
+     */
+    private void computeGroupStats() {
+        final int groupCount = mMean.length;
+        final int chunkCount = chunkCount(mSize);
+        runChunks(chunkCount, chunk -> {
+            int end = chunkEnd(chunk, chunkCount, groupCount);
+            for (int group = chunkStart(chunk, chunkCount, groupCount); group < end; group++) {
+                computeGroupStats(group);
+            }
+        });
+    }
+
+    private void computeGroupStats(int group) {
+        int from = mGroupStart[group];
+        int to = mGroupStart[group + 1];
+        int count = to - from;
+        if (count == 0) return;
+
+        long sum = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = from; i < to; i++) {
+            int weight = mGroupedWeights[i];
+            sum += weight;
+            if (weight < min) min = weight;
+            if (weight > max) max = weight;
+        }
+        double mean = (double) sum / count;
+        double squares = 0;
+        for (int i = from; i < to; i++) {
+            double delta = mGroupedWeights[i] - mean;
+            squares += delta * delta;
+        }
+        mMean[group] = mean;
+        mStdDev[group] = Math.sqrt(squares / count);
+        mMin[group] = min;
+        mMax[group] = max;
+
+        // Nearest-rank percentiles by selection. Each selection leaves everything before
+        // the selected rank smaller or equal, so the next (higher) percentile only has to
+        // search the remaining part of the group.
+        int searchFrom = from;
+        for (int p = 0; p < PERCENTILES.length; p++) {
+            int rank = (int) Math.ceil(PERCENTILES[p] / 100.0 * count) - 1;
+            int k = from + Math.max(0, rank);
+            mPercentiles[group][p] = select(mGroupedWeights, searchFrom, to - 1, k);
+            searchFrom = k;
+        }
+    }
+
+    /**
+     * Returns the value that would be at index {@code k} if {@code values[left..right]}
+     * were sorted, partially reordering the range (quickselect with median of three pivot).
+     */
+    static int select(int[] values, int left, int right, int k) {
+        while (right > left) {
+            int mid = (left + right) >>> 1;
+            if (values[mid] < values[left]) swap(values, mid, left);
+            if (values[right] < values[left]) swap(values, right, left);
+            if (values[right] < values[mid]) swap(values, right, mid);
+            int pivot = values[mid];
+
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[i] < pivot) i++;
+                while (values[j] > pivot) j--;
+                if (i <= j) {
+                    swap(values, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return values[k];
+            }
+        }
+        return values[k];
+    }
+
+    private static void swap(int[] values, int i, int j) {
+        int tmp = values[i];
+        values[i] = values[j];
+        values[j] = tmp;
+    }
+
+    private static int chunkCount(int size) {
+        return size < PARALLEL_THRESHOLD ? 1 : THREAD_COUNT;
+    }
+
+    private static int chunkStart(int chunk, int chunkCount, int size) {
+        return (int) ((long) size * chunk / chunkCount);
+    }
+
+    private static int chunkEnd(int chunk, int chunkCount, int size) {
+        return chunkStart(chunk + 1, chunkCount, size);
+    }
+
+    /**
+     * Runs the task for every chunk and waits for all of them to finish.
+     */
+    private static void runChunks(int chunkCount, final ChunkTask task) {
+        if (chunkCount == 1) {
+            task.run(0);
+            return;
+        }
+        List<Callable<Void>> callables = new ArrayList<>(chunkCount);
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            final int current = chunk;
+            callables.add(() -> {
+                task.run(current);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : sExecutor.invokeAll(callables)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Weight analytics interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Weight analytics failed", e.getCause());
+        }
+    }
+}
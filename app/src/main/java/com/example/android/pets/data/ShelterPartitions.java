@@ -0,0 +1,489 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.ShelterEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The per-shelter databases. The default shelter is the original shelter.db and always
+ * stays open, every other shelter has its own database file, opened on first use.
+ * <p>
+ * At most {@link #MAX_OPEN_SHELTERS} other shelters are kept open. When more are used,
+ * the least recently used shelter that nobody is using is closed. A shelter is in use from
+ * {@link #acquire(long)} to {@link #release(long)}, and for query results as long as their
+ * cursor is open, so no open cursor ever loses its database.
+ */
+final class ShelterPartitions {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = ShelterPartitions.class.getSimpleName();
+
+    /**
+     * Number of shelters other than the default one kept open when not in use
+     */
+    private static final int MAX_OPEN_SHELTERS = 4;
+
+    private static final String DATABASE_PREFIX = "shelter_";
+    private static final String DATABASE_SUFFIX = ".db";
+
+    private static final int THREAD_COUNT =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Shared pool for cross-shelter queries. Threads are daemons so they never keep
+     * the process alive.
+     */
+    private static final ExecutorService sExecutor = Executors.newFixedThreadPool(THREAD_COUNT,
+            runnable -> {
+                Thread thread = new Thread(runnable, "shelter-query");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * An open shelter database and the number of its current users.
+     */
+    private static final class Partition {
+        final PetDbHelper dbHelper;
+        int users;
+
+        Partition(PetDbHelper dbHelper) {
+            this.dbHelper = dbHelper;
+        }
+    }
+
+    private final Context mContext;
+    private final PetDbHelper mDefaultHelper;
+
+    // Open shelters in least recently used order, guarded by this
+    private final LinkedHashMap<Long, Partition> mPartitions =
+            new LinkedHashMap<>(MAX_OPEN_SHELTERS * 2, 0.75f, true);
+
+    ShelterPartitions(Context context, PetDbHelper defaultHelper) {
+        mContext = context;
+        mDefaultHelper = defaultHelper;
+    }
+
+    /**
+     * Returns the database name of the given shelter.
+     */
+    static String databaseName(long shelterId) {
+        if (shelterId == ShelterEntry.DEFAULT_SHELTER_ID) return PetDbHelper.DATABASE_NAME;
+        return DATABASE_PREFIX + shelterId + DATABASE_SUFFIX;
+    }
+
+    /**
+     * Returns the database of the given shelter, opening it if needed, and marks it in use
+     * until {@link #release(long)} is called.
+     */
+    synchronized PetDbHelper acquire(long shelterId) {
+        if (shelterId == ShelterEntry.DEFAULT_SHELTER_ID) return mDefaultHelper;
+        if (shelterId < 0) {
+            throw new IllegalArgumentException("Invalid shelter id " + shelterId);
+        }
+
+        Partition partition = mPartitions.get(shelterId);
+        if (partition == null) {
+            final boolean created = !mContext.getDatabasePath(databaseName(shelterId)).exists();
+            partition = new Partition(new PetDbHelper(mContext, databaseName(shelterId),
+                    mDefaultHelper.getStorageProfile()));
+            mPartitions.put(shelterId, partition);
+            // Shelters are created at the current schema version, so there is no backfill
+            // to run, but a new file still needs its one-time rebuild. A new shelter is
+            // empty, so the rebuild is quick and runs right away; an existing one may be
+            // large and in use, so its file is left as it is. The runner uses the shelter
+            // until it is done, so it isn't closed meanwhile.
+            partition.users++;
+            final PetMigrationRunner migrationRunner =
+                    new PetMigrationRunner(partition.dbHelper, mContext.getContentResolver());
+            migrationRunner.start(() -> {
+                try {
+                    if (created) migrationRunner.rebuildIfNeeded();
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to rebuild shelter " + shelterId, e);
+                } finally {
+                    release(shelterId);
+                }
+            });
+        }
+        partition.users++;
+        closeIdlePartitions();
+        return partition.dbHelper;
+    }
+
+    /**
+     * Marks the given shelter as no longer in use by one caller of {@link #acquire(long)}.
+     */
+    synchronized void release(long shelterId) {
+        if (shelterId == ShelterEntry.DEFAULT_SHELTER_ID) return;
+        Partition partition = mPartitions.get(shelterId);
+        if (partition == null || partition.users == 0) {
+            throw new IllegalStateException("Shelter " + shelterId + " is not in use");
+        }
+        partition.users--;
+        closeIdlePartitions();
+    }
+
+    /**
+     * Returns a cursor that releases the given shelter once it is closed.
+     */
+    Cursor releaseOnClose(Cursor cursor, final long shelterId) {
+        if (shelterId == ShelterEntry.DEFAULT_SHELTER_ID || cursor == null) {
+            release(shelterId);
+            return cursor;
+        }
+        return new CursorWrapper(cursor) {
+            private boolean mReleased;
+
+            @Override
+            public void close() {
+                super.close();
+                if (!mReleased) {
+                    mReleased = true;
+                    release(shelterId);
+                }
+            }
+        };
+    }
+
+    /**
+     * Closes the least recently used shelters that aren't in use, until no more than
+     * {@link #MAX_OPEN_SHELTERS} are open.
+     */
+    private void closeIdlePartitions() {
+        int excess = mPartitions.size() - MAX_OPEN_SHELTERS;
+        Iterator<Partition> iterator = mPartitions.values().iterator();
+        while (excess > 0 && iterator.hasNext()) {
+            Partition partition = iterator.next();
+            if (partition.users == 0) {
+                partition.dbHelper.close();
+                iterator.remove();
+                excess--;
+            }
+        }
+    }
+
+    /**
+     * Closes the databases of all shelters other than the default one, in use or not.
+     */
+    synchronized void close() {
+        for (Partition partition : mPartitions.values()) {
+            partition.dbHelper.close();
+        }
+        mPartitions.clear();
+    }
+
+    /**
+     * Returns the ids of all shelters that have a database, the default shelter first.
+     */
+    long[] listShelters() {
+        String[] databases = mContext.databaseList();
+        long[] shelterIds = new long[databases.length + 1];
+        int count = 0;
+        shelterIds[count++] = ShelterEntry.DEFAULT_SHELTER_ID;
+        for (String database : databases) {
+            if (!database.startsWith(DATABASE_PREFIX) || !database.endsWith(DATABASE_SUFFIX)) {
+                continue;
+            }
+            long shelterId;
+            try {
+                shelterId = Long.parseLong(database.substring(
+                        DATABASE_PREFIX.length(), database.length() - DATABASE_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                // Some other database whose name happens to look alike
+                continue;
+            }
+            if (shelterId > ShelterEntry.DEFAULT_SHELTER_ID) shelterIds[count++] = shelterId;
+        }
+        long[] result = Arrays.copyOf(shelterIds, count);
+        Arrays.sort(result, 1, count);
+        return result;
+    }
+
+    /**
+     * Queries the pets of every shelter in parallel. Every row gets an extra
+     * {@link ShelterEntry#COLUMN_SHELTER_ID} column, since pet ids are only unique within
+     * a shelter. With a sort order the sorted results of the shelters are merged, otherwise
+     * they are concatenated.
+     */
+    Cursor queryAll(String[] projection, final String selection, final String[] selectionArgs,
+                    final String sortOrder, final CancellationSignal cancellationSignal) {
+        final long[] shelterIds = listShelters();
+        final List<SortKey> sortKeys = SortKey.parse(sortOrder);
+
+        List<Future<Cursor>> futures = new ArrayList<>(shelterIds.length);
+        for (final long shelterId : shelterIds) {
+            final String[] shelterProjection = withShelterId(projection, shelterId);
+            futures.add(sExecutor.submit(() -> {
+                PetDbHelper dbHelper = acquire(shelterId);
+                Cursor cursor;
+                try {
+                    cursor = PetProvider.queryTable(dbHelper.getReadableDatabase(),
+                            shelterProjection, selection, selectionArgs, null, sortOrder,
+                            cancellationSignal);
+                    // Fill the cursor window here, in parallel with the other shelters
+                    cursor.getCount();
+                } catch (RuntimeException e) {
+                    release(shelterId);
+                    throw e;
+                }
+                return releaseOnClose(cursor, shelterId);
+            }));
+        }
+
+        Cursor[] cursors = new Cursor[shelterIds.length];
+        try {
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = futures.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeAll(cursors, futures);
+            throw new IllegalStateException("Interrupted while querying the shelters", e);
+        } catch (ExecutionException e) {
+            closeAll(cursors, futures);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IllegalStateException("Failed to query the shelters", cause);
+        }
+
+        if (sortKeys.isEmpty()) return new MergeCursor(cursors);
+        try {
+            return mergeSorted(cursors, sortKeys);
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the cursors already collected and those of the queries still running.
+     */
+    private static void closeAll(Cursor[] cursors, List<Future<Cursor>> futures) {
+        for (int i = 0; i < cursors.length; i++) {
+            if (cursors[i] != null) {
+                cursors[i].close();
+                continue;
+            }
+            try {
+                futures.get(i).get().close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // That query failed, there is no cursor to close
+            }
+        }
+    }
+
+    private static String[] withShelterId(String[] projection, long shelterId) {
+        String shelterColumn = shelterId + " AS " + ShelterEntry.COLUMN_SHELTER_ID;
+        if (projection == null) return new String[]{"*", shelterColumn};
+        String[] result = Arrays.copyOf(projection, projection.length + 1);
+        result[projection.length] = shelterColumn;
+        return result;
+    }
+
+    /**
+     * Merges cursors that are each sorted by the given keys into one sorted cursor.
+     */
+    private static Cursor mergeSorted(Cursor[] cursors, List<SortKey> sortKeys) {
+        String[] columns = cursors[0].getColumnNames();
+        int[] keyColumns = new int[sortKeys.size()];
+        for (int i = 0; i < keyColumns.length; i++) {
+            keyColumns[i] = cursors[0].getColumnIndex(sortKeys.get(i).column);
+            if (keyColumns[i] == -1) {
+                throw new IllegalArgumentException("Sort column " + sortKeys.get(i).column
+                        + " must be in the projection to query all shelters");
+            }
+        }
+
+        int total = 0;
+        for (Cursor cursor : cursors) {
+            total += cursor.getCount();
+            cursor.moveToFirst();
+        }
+        MatrixCursor merged = new MatrixCursor(columns, total);
+        Object[] row = new Object[columns.length];
+        while (true) {
+            Cursor next = null;
+            for (Cursor cursor : cursors) {
+                if (cursor.isAfterLast()) continue;
+                if (next == null || compare(cursor, next, keyColumns, sortKeys) < 0) {
+                    next = cursor;
+                }
+            }
+            if (next == null) return merged;
+            for (int column = 0; column < row.length; column++) {
+                row[column] = value(next, column);
+            }
+            merged.addRow(row);
+            next.moveToNext();
+        }
+    }
+
+    private static int compare(Cursor a, Cursor b, int[] keyColumns, List<SortKey> sortKeys) {
+        for (int i = 0; i < keyColumns.length; i++) {
+            SortKey key = sortKeys.get(i);
+            int result = compareValues(a, b, keyColumns[i], key.noCase);
+            if (result != 0) return key.descending ? -result : result;
+        }
+        return 0;
+    }
+
+    /**
+     * Compares two values the way SQLite does: NULL, then numbers, then text, then blobs.
+     */
+    private static int compareValues(Cursor a, Cursor b, int column, boolean noCase) {
+        int typeA = typeOrder(a.getType(column));
+        int typeB = typeOrder(b.getType(column));
+        if (typeA != typeB) return Integer.compare(typeA, typeB);
+        switch (a.getType(column)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return 0;
+            case Cursor.FIELD_TYPE_INTEGER:
+            case Cursor.FIELD_TYPE_FLOAT:
+                return compareNumbers(a, b, column);
+            case Cursor.FIELD_TYPE_STRING:
+                return compareText(a.getString(column), b.getString(column), noCase);
+            default:
+                byte[] blobA = a.getBlob(column);
+                byte[] blobB = b.getBlob(column);
+                for (int i = 0; i < Math.min(blobA.length, blobB.length); i++) {
+                    int result = Integer.compare(blobA[i] & 0xff, blobB[i] & 0xff);
+                    if (result != 0) return result;
+                }
+                return Integer.compare(blobA.length, blobB.length);
+        }
+    }
+
+    /**
+     * Integers are compared as longs, a double has no room for the low bits of large ids.
+     * An integer and a real are compared exactly, as SQLite does.
+     */
+    private static int compareNumbers(Cursor a, Cursor b, int column) {
+        boolean integerA = a.getType(column) == Cursor.FIELD_TYPE_INTEGER;
+        boolean integerB = b.getType(column) == Cursor.FIELD_TYPE_INTEGER;
+        if (integerA && integerB) return Long.compare(a.getLong(column), b.getLong(column));
+        if (integerA) return compareIntegerToReal(a.getLong(column), b.getDouble(column));
+        if (integerB) return -compareIntegerToReal(b.getLong(column), a.getDouble(column));
+        return Double.compare(a.getDouble(column), b.getDouble(column));
+    }
+
+    private static int compareIntegerToReal(long integer, double real) {
+        // -2^63 and 2^63, the first reals out of the range of a long
+        if (real < -9.223372036854775808E18) return 1;
+        if (real >= 9.223372036854775808E18) return -1;
+        long whole = (long) real;
+        if (integer != whole) return Long.compare(integer, whole);
+        double fraction = real - whole;
+        return (fraction > 0) ? -1 : (fraction < 0) ? 1 : 0;
+    }
+
+    /**
+     * Compares text like SQLite's BINARY collation, by code point (the order of the UTF-8
+     * bytes), or like NOCASE, which only folds the ASCII letters A to Z.
+     */
+    static int compareText(String a, String b, boolean noCase) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int codePointA = a.codePointAt(i);
+            int codePointB = b.codePointAt(j);
+            if (noCase) {
+                codePointA = foldAscii(codePointA);
+                codePointB = foldAscii(codePointB);
+            }
+            if (codePointA != codePointB) return Integer.compare(codePointA, codePointB);
+            i += Character.charCount(codePointA);
+            j += Character.charCount(codePointB);
+        }
+        return Boolean.compare(i < a.length(), j < b.length());
+    }
+
+    private static int foldAscii(int codePoint) {
+        return (codePoint >= 'A' && codePoint <= 'Z') ? codePoint + ('a' - 'A') : codePoint;
+    }
+
+    private static int typeOrder(int type) {
+        return (type == Cursor.FIELD_TYPE_FLOAT) ? Cursor.FIELD_TYPE_INTEGER : type;
+    }
+
+    private static Object value(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return cursor.getString(column);
+        }
+    }
+
+    /**
+     * One term of a sort order, a column name optionally followed by COLLATE NOCASE
+     * and ASC or DESC.
+     */
+    private static final class SortKey {
+        final String column;
+        final boolean noCase;
+        final boolean descending;
+
+        private SortKey(String column, boolean noCase, boolean descending) {
+            this.column = column;
+            this.noCase = noCase;
+            this.descending = descending;
+        }
+
+        static List<SortKey> parse(String sortOrder) {
+            List<SortKey> keys = new ArrayList<>();
+            if (sortOrder == null || sortOrder.trim().isEmpty()) return keys;
+            for (String term : sortOrder.split(",")) {
+                String[] words = term.trim().split("\\s+");
+                int end = words.length;
+                boolean descending = false;
+                String last = words[end - 1].toUpperCase(Locale.ROOT);
+                if (end > 1 && (last.equals("ASC") || last.equals("DESC"))) {
+                    descending = last.equals("DESC");
+                    end--;
+                }
+                boolean noCase = false;
+                if (end == 3 && words[1].equalsIgnoreCase("COLLATE")
+                        && words[2].equalsIgnoreCase("NOCASE")) {
+                    noCase = true;
+                    end = 1;
+                }
+                if (end != 1) {
+                    throw new IllegalArgumentException("Only column names can be sorted by"
+                            + " when querying all shelters: " + sortOrder);
+                }
+                keys.add(new SortKey(words[0], noCase, descending));
+            }
+            return keys;
+        }
+    }
+}
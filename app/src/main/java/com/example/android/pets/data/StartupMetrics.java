@@ -0,0 +1,114 @@
+package com.example.android.pets.data;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Measures the time from process start to the first frame of the catalog list, to the
+ * list being fully drawn from the database, and to the database being warm, and logs them
+ * once per process. When the first frame shows the catalog snapshot, the gap between the
+ * first frame and the fully drawn list is the time the snapshot saved.
+ */
+public final class StartupMetrics {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = StartupMetrics.class.getSimpleName();
+
+    /**
+     * First frame of the list later than this after process start is logged as a warning
+     */
+    public static final long FIRST_LIST_FRAME_BUDGET_MILLIS = 800;
+
+    private static final long NOT_YET = -1;
+
+    private static volatile long sProcessStart = NOT_YET;
+    private static volatile long sDatabaseWarm = NOT_YET;
+    private static volatile long sFirstListFrame = NOT_YET;
+    private static volatile long sFullyDrawn = NOT_YET;
+
+    private StartupMetrics() {
+    }
+
+    /**
+     * Records the start of the process. From API 24 the platform knows the actual fork
+     * time, before that the caller's time is used, so call this as early as possible.
+     */
+    static void onProcessStart() {
+        if (sProcessStart != NOT_YET) return;
+        sProcessStart = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) ?
+                Process.getStartUptimeMillis() : SystemClock.uptimeMillis();
+    }
+
+    static void onDatabaseWarm() {
+        if (sDatabaseWarm == NOT_YET && sProcessStart != NOT_YET) {
+            sDatabaseWarm = SystemClock.uptimeMillis() - sProcessStart;
+        }
+    }
+
+    /**
+     * Records the first frame of the catalog list with rows in it. Only the first call
+     * per process counts. Must be called on the main thread.
+     */
+    public static void onFirstListFrame() {
+        if (sFirstListFrame != NOT_YET || sProcessStart == NOT_YET) return;
+        long firstListFrame = SystemClock.uptimeMillis() - sProcessStart;
+        sFirstListFrame = firstListFrame;
+
+        String message = "First list frame " + firstListFrame + " ms after process start, "
+                + "database warm after " + sDatabaseWarm + " ms";
+        if (firstListFrame > FIRST_LIST_FRAME_BUDGET_MILLIS) {
+            Log.w(LOG_TAG, message + ", over the budget of "
+                    + FIRST_LIST_FRAME_BUDGET_MILLIS + " ms");
+        } else {
+            Log.i(LOG_TAG, message);
+        }
+    }
+
+    /**
+     * Records the first frame of the catalog list drawn from a live query result. Only the
+     * first call per process counts. Must be called on the main thread, after
+     * {@link #onFirstListFrame()} for the same frame.
+     */
+    public static void onFullyDrawn() {
+        if (sFullyDrawn != NOT_YET || sProcessStart == NOT_YET) return;
+        sFullyDrawn = SystemClock.uptimeMillis() - sProcessStart;
+        Log.i(LOG_TAG, "Catalog fully drawn " + sFullyDrawn + " ms after process start, "
+                + (sFullyDrawn - sFirstListFrame) + " ms after its first list frame");
+    }
+
+    /**
+     * Returns the time from process start to the first list frame, or -1 if there was none.
+     */
+    public static long getFirstListFrameMillis() {
+        return sFirstListFrame;
+    }
+
+    /**
+     * Returns the time from process start to the list drawn from the database, or -1 if it
+     * wasn't yet.
+     */
+    public static long getFullyDrawnMillis() {
+        return sFullyDrawn;
+    }
+
+    /**
+     * Returns the time from process start until the database was warm, or -1 if it isn't.
+     */
+    public static long getDatabaseWarmMillis() {
+        return sDatabaseWarm;
+    }
+
+    /**
+     * Forgets the recorded times, so tests can measure more than one start per process.
+     */
+    static void reset() {
+        sProcessStart = NOT_YET;
+        sDatabaseWarm = NOT_YET;
+        sFirstListFrame = NOT_YET;
+        sFullyDrawn = NOT_YET;
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.android.pets.data;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.StorageEntry;
+
+/**
+ * How a shelter database uses memory and storage: the size of SQLite's page cache, how much
+ * of the file is memory-mapped, and the page size of the file.
+ * <p>
+ * The profile is selected once, when the provider is created, and handed to every
+ * {@link PetDbHelper}. Cache and mmap sizes are connection settings, set by
+ * {@link PetDbHelper#onConfigure} every time a database is opened, and take effect right
+ * away. The page size belongs to the file: when it differs from the profile's,
+ * {@link PetMaintenance} rebuilds the file once with VACUUM while the device is idle, so
+ * neither opening the database nor the writes of the user wait for a copy of the whole
+ * file.
+ * <p>
+ * The platform only lets the primary connection be configured. In write-ahead log mode it
+ * runs the writes and transactions, and the reads outside a transaction go to extra read
+ * connections with SQLite's default cache and no memory map. So only {@link #READ_HEAVY},
+ * whose cache and mmap sizes are there for the reads, turns the read connections off and
+ * runs every statement on the configured connection; reads then wait for a write in
+ * progress, such as a batch of a migration backfill. The other profiles keep the read
+ * connections, and their sizes only apply to the writes.
+ */
+final class StorageProfile {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = StorageProfile.class.getSimpleName();
+
+    /**
+     * The selected profile, missing for the automatic choice
+     */
+    private static final String PREFERENCES_NAME = "storage";
+    private static final String KEY_PROFILE = "profile";
+
+    private static final long MIB = 1024 * 1024;
+
+    /**
+     * A small cache and no memory mapping for the writes, for devices short on memory
+     */
+    static final StorageProfile LOW_MEMORY =
+            new StorageProfile(StorageEntry.PROFILE_LOW_MEMORY, 4096, 512, 0, true);
+
+    /**
+     * SQLite's default cache, with the start of the file memory-mapped for the writes
+     */
+    static final StorageProfile BALANCED =
+            new StorageProfile(StorageEntry.PROFILE_BALANCED, 4096, 2048, 16 * MIB, true);
+
+    /**
+     * Larger pages, which halve the b-tree pages a catalog scan steps through, a large cache
+     * and most of the file memory-mapped on the one connection that runs the reads as well,
+     * for large shelters that are mostly browsed
+     */
+    static final StorageProfile READ_HEAVY =
+            new StorageProfile(StorageEntry.PROFILE_READ_HEAVY, 8192, 8192, 64 * MIB, false);
+
+    private static final StorageProfile[] PROFILES = {LOW_MEMORY, BALANCED, READ_HEAVY};
+
+    final String name;
+    final int pageSize;
+    // Page cache size in KiB, per connection
+    final int cacheKib;
+    // Bytes of the file accessed through a memory map instead of read calls
+    final long mmapBytes;
+    // Whether reads outside a transaction use the read connections of write-ahead log mode,
+    // which keep SQLite's defaults instead of the sizes above
+    final boolean readConnections;
+
+    private StorageProfile(String name, int pageSize, int cacheKib, long mmapBytes,
+                           boolean readConnections) {
+        this.name = name;
+        this.pageSize = pageSize;
+        this.cacheKib = cacheKib;
+        this.mmapBytes = mmapBytes;
+        this.readConnections = readConnections;
+    }
+
+    /**
+     * Returns the selected profile, or without a selection {@link #LOW_MEMORY} on low-RAM
+     * devices and {@link #BALANCED} on the others. Reads the preferences, so it is only
+     * called once per process, by {@link PetProvider#onCreate}.
+     */
+    static StorageProfile select(Context context) {
+        String selected = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+                .getString(KEY_PROFILE, null);
+        if (selected != null) {
+            StorageProfile profile = forName(selected);
+            if (profile != null) return profile;
+            Log.e(LOG_TAG, "Unknown storage profile " + selected + ", choosing one");
+        }
+
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && activityManager.isLowRamDevice()) {
+            return LOW_MEMORY;
+        }
+        return BALANCED;
+    }
+
+    /**
+     * Selects the named profile, or the automatic choice for null. Used from the next start
+     * of the process.
+     *
+     * @throws IllegalArgumentException if there is no profile with the name
+     */
+    static void setSelected(Context context, String name) {
+        if (name != null && forName(name) == null) {
+            throw new IllegalArgumentException("Unknown storage profile " + name);
+        }
+        SharedPreferences.Editor editor =
+                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit();
+        if (name == null) {
+            editor.remove(KEY_PROFILE);
+        } else {
+            editor.putString(KEY_PROFILE, name);
+        }
+        editor.apply();
+    }
+
+    private static StorageProfile forName(String name) {
+        for (StorageProfile profile : PROFILES) {
+            if (profile.name.equals(name)) return profile;
+        }
+        return null;
+    }
+
+    /**
+     * Sets the page cache and memory-mapped sizes of the primary connection of the database.
+     * Without {@link #readConnections} that is the only connection.
+     */
+    void configure(SQLiteDatabase database) {
+        // A negative cache size is in KiB. Memory mapping needs SQLite 3.7.17 (API 21),
+        // older versions ignore the pragma.
+        pragma(database, "PRAGMA cache_size=-" + cacheKib);
+        pragma(database, "PRAGMA mmap_size=" + mmapBytes);
+    }
+
+    /**
+     * Runs a PRAGMA and returns the first column of its first row, or null. PRAGMAs are
+     * run as queries because some of them return a row.
+     */
+    private static String pragma(SQLiteDatabase database, String sql) {
+        Cursor cursor = database.rawQuery(sql, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+}
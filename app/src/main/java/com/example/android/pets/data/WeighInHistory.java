@@ -0,0 +1,210 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.CancellationSignal;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.WeighInEntry;
+
+/**
+ * The weigh-in history of the pets and its daily and weekly rollups.
+ * <p>
+ * Triggers on the pets table append a weigh-in whenever a pet is inserted or its weight
+ * changes, whichever path wrote it. The history is clustered by (pet_id, timestamp), so the
+ * weigh-ins of one pet over a time range are a single range read of the primary key.
+ * A trigger on the history then folds each new weigh-in into the count, sum, min and max of
+ * its day and week, so summaries are read from the rollups table instead of being computed
+ * from the history on every request.
+ * <p>
+ * The history is append-only: weigh-ins are never updated, and are only deleted with their
+ * pet. That keeps the incremental rollups exact.
+ */
+final class WeighInHistory {
+
+    /**
+     * One row per weigh-in
+     */
+    static final String TABLE_NAME = "weigh_ins";
+
+    /**
+     * One row per pet, period and day or week with at least one weigh-in
+     */
+    static final String ROLLUPS_TABLE_NAME = "weight_rollups";
+    static final String COLUMN_PERIOD = "period";
+    static final String COLUMN_TOTAL = "total";
+    static final String COLUMN_MIN_WEIGHT = "min_weight";
+    static final String COLUMN_MAX_WEIGHT = "max_weight";
+
+    // Values of the period column
+    static final int PERIOD_DAY = 0;
+    static final int PERIOD_WEEK = 1;
+
+    static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    static final long WEEK_MILLIS = 7 * DAY_MILLIS;
+    // The epoch was a Thursday, the first Monday came 4 days later
+    static final long FIRST_MONDAY_MILLIS = 4 * DAY_MILLIS;
+
+    // The current time in milliseconds, in SQL
+    static final String SQL_NOW =
+            "CAST((julianday('now') - 2440587.5) * " + DAY_MILLIS + " AS INTEGER)";
+
+    private static final String PET_ID = WeighInEntry.COLUMN_PET_ID;
+    private static final String TIMESTAMP = WeighInEntry.COLUMN_TIMESTAMP;
+    private static final String WEIGHT = WeighInEntry.COLUMN_WEIGHT;
+    private static final String BUCKET_START = WeighInEntry.COLUMN_BUCKET_START;
+
+    /**
+     * Clustered tables need SQLite 3.8.2, shipped from API 21 on. Before that the tables
+     * are ordinary rowid tables with a primary key index, which gives the same queries.
+     */
+    private static String withoutRowid() {
+        return (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) ? " WITHOUT ROWID" : "";
+    }
+
+    static String sqlCreateTable() {
+        return "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " ("
+                + PET_ID + " INTEGER NOT NULL, "
+                + TIMESTAMP + " INTEGER NOT NULL, "
+                + WEIGHT + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + PET_ID + ", " + TIMESTAMP + "))" + withoutRowid();
+    }
+
+    static String sqlCreateRollupsTable() {
+        return "CREATE TABLE IF NOT EXISTS " + ROLLUPS_TABLE_NAME + " ("
+                + PET_ID + " INTEGER NOT NULL, "
+                + COLUMN_PERIOD + " INTEGER NOT NULL, "
+                + BUCKET_START + " INTEGER NOT NULL, "
+                + WeighInEntry.COLUMN_COUNT + " INTEGER NOT NULL, "
+                + COLUMN_TOTAL + " INTEGER NOT NULL, "
+                + COLUMN_MIN_WEIGHT + " INTEGER NOT NULL, "
+                + COLUMN_MAX_WEIGHT + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + PET_ID + ", " + COLUMN_PERIOD + ", " + BUCKET_START + "))"
+                + withoutRowid();
+    }
+
+    /**
+     * Appends a weigh-in of the NEW pet at the current time. Conflict clauses aren't used in
+     * the triggers, the OR REPLACE of an outer statement like a restore would override them.
+     */
+    private static final String SQL_APPEND_WEIGH_IN =
+            "INSERT INTO " + TABLE_NAME + " (" + PET_ID + ", " + TIMESTAMP + ", " + WEIGHT + ")"
+                    + " SELECT NEW." + PetEntry._ID + ", now_millis, "
+                    + "NEW." + PetEntry.COLUMN_PET_WEIGHT
+                    + " FROM (SELECT " + SQL_NOW + " AS now_millis)"
+                    + " WHERE NOT EXISTS (SELECT 1 FROM " + TABLE_NAME
+                    + " WHERE " + PET_ID + " = NEW." + PetEntry._ID
+                    + " AND " + TIMESTAMP + " = now_millis); ";
+
+    private static final String SQL_DAY_START =
+            "(NEW." + TIMESTAMP + " / " + DAY_MILLIS + ") * " + DAY_MILLIS;
+
+    private static final String SQL_WEEK_START =
+            "((NEW." + TIMESTAMP + " - " + FIRST_MONDAY_MILLIS + ") / " + WEEK_MILLIS + ") * "
+                    + WEEK_MILLIS + " + " + FIRST_MONDAY_MILLIS;
+
+    /**
+     * Adds the NEW weigh-in to the rollup of its day or week, creating the rollup if needed
+     */
+    private static String sqlRollUp(int period, String bucketStart) {
+        String rollup = " WHERE " + PET_ID + " = NEW." + PET_ID
+                + " AND " + COLUMN_PERIOD + " = " + period
+                + " AND " + BUCKET_START + " = " + bucketStart;
+        return "INSERT INTO " + ROLLUPS_TABLE_NAME + " SELECT NEW." + PET_ID + ", " + period
+                + ", " + bucketStart + ", 0, 0, NEW." + WEIGHT + ", NEW." + WEIGHT
+                + " WHERE NOT EXISTS (SELECT 1 FROM " + ROLLUPS_TABLE_NAME + rollup + "); "
+                + "UPDATE " + ROLLUPS_TABLE_NAME + " SET "
+                + WeighInEntry.COLUMN_COUNT + " = " + WeighInEntry.COLUMN_COUNT + " + 1, "
+                + COLUMN_TOTAL + " = " + COLUMN_TOTAL + " + NEW." + WEIGHT + ", "
+                + COLUMN_MIN_WEIGHT + " = MIN(" + COLUMN_MIN_WEIGHT + ", NEW." + WEIGHT + "), "
+                + COLUMN_MAX_WEIGHT + " = MAX(" + COLUMN_MAX_WEIGHT + ", NEW." + WEIGHT + ")"
+                + rollup + "; ";
+    }
+
+    static final String[] SQL_CREATE_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS " + PetEntry.TABLE_NAME + "_weigh_in_insert"
+                    + " AFTER INSERT ON " + PetEntry.TABLE_NAME + " BEGIN "
+                    + SQL_APPEND_WEIGH_IN + "END",
+            "CREATE TRIGGER IF NOT EXISTS " + PetEntry.TABLE_NAME + "_weigh_in_update"
+                    + " AFTER UPDATE OF " + PetEntry.COLUMN_PET_WEIGHT
+                    + " ON " + PetEntry.TABLE_NAME
+                    + " WHEN NEW." + PetEntry.COLUMN_PET_WEIGHT
+                    + " != OLD." + PetEntry.COLUMN_PET_WEIGHT + " BEGIN "
+                    + SQL_APPEND_WEIGH_IN + "END",
+            "CREATE TRIGGER IF NOT EXISTS " + PetEntry.TABLE_NAME + "_weigh_in_delete"
+                    + " AFTER DELETE ON " + PetEntry.TABLE_NAME + " BEGIN "
+                    + "DELETE FROM " + TABLE_NAME
+                    + " WHERE " + PET_ID + " = OLD." + PetEntry._ID + "; "
+                    + "DELETE FROM " + ROLLUPS_TABLE_NAME
+                    + " WHERE " + PET_ID + " = OLD." + PetEntry._ID + "; END",
+            "CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_roll_up"
+                    + " AFTER INSERT ON " + TABLE_NAME + " BEGIN "
+                    + sqlRollUp(PERIOD_DAY, SQL_DAY_START)
+                    + sqlRollUp(PERIOD_WEEK, SQL_WEEK_START) + "END"
+    };
+
+    private WeighInHistory() {
+    }
+
+    /**
+     * Returns the weigh-ins of the pet with from <= timestamp < to, oldest first.
+     */
+    static Cursor queryHistory(SQLiteDatabase database, long petId, long from, long to,
+                               String[] projection, CancellationSignal cancellationSignal) {
+        String selection = PET_ID + " = ? AND " + TIMESTAMP + " >= ? AND " + TIMESTAMP + " < ?";
+        String[] selectionArgs = {
+                String.valueOf(petId), String.valueOf(from), String.valueOf(to)};
+        if (cancellationSignal == null
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return database.query(TABLE_NAME, projection, selection, selectionArgs,
+                    null, null, TIMESTAMP);
+        }
+        return database.query(false, TABLE_NAME, projection, selection, selectionArgs,
+                null, null, TIMESTAMP, null, cancellationSignal);
+    }
+
+    /**
+     * Returns the daily or weekly summaries of the pet for the days or weeks that overlap
+     * from <= timestamp < to, oldest first.
+     */
+    static Cursor querySummary(SQLiteDatabase database, long petId, boolean weekly,
+                               long from, long to, CancellationSignal cancellationSignal) {
+        // Rollups are keyed by the start of their bucket, so the range starts at the
+        // bucket that contains from
+        long firstBucket = weekly ? weekStart(from) : dayStart(from);
+        String sql = "SELECT " + BUCKET_START + ", "
+                + WeighInEntry.COLUMN_COUNT + ", "
+                + COLUMN_MIN_WEIGHT + " AS " + WeighInEntry.COLUMN_MIN + ", "
+                + "CAST(" + COLUMN_TOTAL + " AS REAL) / " + WeighInEntry.COLUMN_COUNT
+                + " AS " + WeighInEntry.COLUMN_AVG + ", "
+                + COLUMN_MAX_WEIGHT + " AS " + WeighInEntry.COLUMN_MAX
+                + " FROM " + ROLLUPS_TABLE_NAME
+                + " WHERE " + PET_ID + " = ? AND " + COLUMN_PERIOD + " = ?"
+                + " AND " + BUCKET_START + " >= ? AND " + BUCKET_START + " < ?"
+                + " ORDER BY " + BUCKET_START;
+        String[] selectionArgs = {String.valueOf(petId),
+                String.valueOf(weekly ? PERIOD_WEEK : PERIOD_DAY),
+                String.valueOf(firstBucket), String.valueOf(to)};
+        if (cancellationSignal == null
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return database.rawQuery(sql, selectionArgs);
+        }
+        return database.rawQuery(sql, selectionArgs, cancellationSignal);
+    }
+
+    /**
+     * Returns the start of the UTC day of the time, computed like the rollup triggers.
+     */
+    static long dayStart(long millis) {
+        return (millis / DAY_MILLIS) * DAY_MILLIS;
+    }
+
+    /**
+     * Returns the start of the week, Monday in UTC, of the time, computed like the rollup
+     * triggers.
+     */
+    static long weekStart(long millis) {
+        return ((millis - FIRST_MONDAY_MILLIS) / WEEK_MILLIS) * WEEK_MILLIS + FIRST_MONDAY_MILLIS;
+    }
+}
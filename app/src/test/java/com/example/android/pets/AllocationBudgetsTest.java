@@ -0,0 +1,296 @@
+package com.example.android.pets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.view.View;
+import android.widget.FrameLayout;
+
+import com.example.android.pets.data.MainThreadAccessDetector;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Checks the heap allocated by the hot paths of the catalog and the editor against a
+ * recorded baseline, so allocation growth fails like any other test.
+ * <p>
+ * Allocations are counted per thread by the JVM ({@code com.sun.management.ThreadMXBean})
+ * after a warm-up. Each path runs the code of the app under Robolectric:
+ * <ul>
+ * <li>bind_row: one catalog row bound by {@link PetCursorAdapter#getView}, from a
+ * MatrixCursor so only the adapter is counted</li>
+ * <li>query_pet_id: the editor's single pet query through the provider, stepped and
+ * read</li>
+ * <li>save_pet: the editor's save, the values built and the update run through the
+ * provider</li>
+ * <li>open_catalog_cursor: heap retained while a catalog cursor over 100k pets is open and
+ * has been stepped to the end</li>
+ * </ul>
+ * A path fails when it allocates more than {@link #TOLERANCE} over its baseline in
+ * {@link #BASELINE_FILE}, and fails while it has no baseline. Record the baseline with
+ * "gradlew :app:testDebugUnitTest -PrecordAllocations --tests '*AllocationBudgetsTest'"
+ * after an intended change. The numbers include the overhead of Robolectric, so they only
+ * compare to a baseline recorded the same way, not to the cost on a device.
+ */
+@RunWith(RobolectricTestRunner.class)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class AllocationBudgetsTest {
+
+    // Measured paths
+    private static final String BIND_ROW = "bind_row";
+    private static final String QUERY_PET_ID = "query_pet_id";
+    private static final String SAVE_PET = "save_pet";
+    private static final String OPEN_CATALOG_CURSOR = "open_catalog_cursor";
+
+    /**
+     * Baseline in bytes per path, read from the test resources
+     */
+    private static final String BASELINE_FILE = "allocation-budgets.properties";
+    private static final String BASELINE_SOURCE = "src/test/resources/" + BASELINE_FILE;
+
+    /**
+     * Allowed growth over the baseline
+     */
+    private static final double TOLERANCE = 0.10;
+
+    private static final int PET_COUNT = 100000;
+    private static final int BULK_INSERT_CHUNK = 10000;
+    private static final int WARMUP_OPERATIONS = 5000;
+    private static final int SAMPLE_OPERATIONS = 2000;
+
+    private final Random mRandom = new Random(7);
+    private Context mContext;
+    private ContentResolver mResolver;
+    private com.sun.management.ThreadMXBean mThreads;
+
+    @Before
+    public void setUp() {
+        mThreads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue("This JVM doesn't count allocated bytes",
+                mThreads.isThreadAllocatedMemorySupported());
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+
+        Robolectric.buildContentProvider(PetProvider.class).create(PetContract.CONTENT_AUTHORITY);
+        // Reports of the test thread's queries would be counted with them
+        MainThreadAccessDetector.setEnabled(false);
+        mContext = RuntimeEnvironment.getApplication();
+        mResolver = mContext.getContentResolver();
+    }
+
+    @Test
+    public void bindRowIsWithinBudget() throws IOException {
+        MatrixCursor cursor = new MatrixCursor(PetEntry.CATALOG_PROJECTION);
+        for (int i = 0; i < WARMUP_OPERATIONS; i++) {
+            cursor.addRow(new Object[]{i + 1, "Pet " + i, (i % 8 == 0) ? "" : "Breed " + i % 50});
+        }
+        PetCursorAdapter adapter = new PetCursorAdapter(mContext, cursor);
+        FrameLayout parent = new FrameLayout(mContext);
+        View view = adapter.getView(0, null, parent);
+
+        bindRows(adapter, view, parent, WARMUP_OPERATIONS);
+        long before = allocatedBytes();
+        bindRows(adapter, view, parent, SAMPLE_OPERATIONS);
+        checkBudget(BIND_ROW, (allocatedBytes() - before) / SAMPLE_OPERATIONS);
+    }
+
+    private static void bindRows(PetCursorAdapter adapter, View view, FrameLayout parent,
+                                 int rows) {
+        for (int i = 0; i < rows; i++) {
+            // Recycled like the list does once the screen is full
+            adapter.getView(i % adapter.getCount(), view, parent);
+        }
+    }
+
+    @Test
+    public void queryPetIdIsWithinBudget() throws IOException {
+        populate();
+        queryById(WARMUP_OPERATIONS);
+        long before = allocatedBytes();
+        queryById(SAMPLE_OPERATIONS);
+        checkBudget(QUERY_PET_ID, (allocatedBytes() - before) / SAMPLE_OPERATIONS);
+    }
+
+    private void queryById(int queries) {
+        // The projection of the editor
+        String[] projection = {
+                PetEntry._ID,
+                PetEntry.COLUMN_PET_NAME,
+                PetEntry.COLUMN_PET_BREED,
+                PetEntry.COLUMN_PET_GENDER,
+                PetEntry.COLUMN_PET_WEIGHT
+        };
+        long weights = 0;
+        for (int i = 0; i < queries; i++) {
+            Cursor cursor = mResolver.query(petUri(), projection, null, null, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    cursor.getString(1);
+                    cursor.getString(2);
+                    weights += cursor.getInt(3) + cursor.getInt(4);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        if (weights < 0) throw new AssertionError();
+    }
+
+    @Test
+    public void savePetIsWithinBudget() throws IOException {
+        populate();
+        save(WARMUP_OPERATIONS / 10);
+        int saves = SAMPLE_OPERATIONS / 10;
+        long before = allocatedBytes();
+        save(saves);
+        checkBudget(SAVE_PET, (allocatedBytes() - before) / saves);
+    }
+
+    private void save(int saves) {
+        for (int i = 0; i < saves; i++) {
+            // The values of EditorActivity.savePet
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, "Pet");
+            values.put(PetEntry.COLUMN_PET_BREED, "Tabby");
+            values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, mRandom.nextInt(50));
+            mResolver.update(petUri(), values, null, null);
+        }
+    }
+
+    @Test
+    public void openCatalogCursorIsWithinBudget() throws IOException {
+        populate();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long before = usedHeapAfterGc(memory);
+        Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, PetEntry.CATALOG_PROJECTION,
+                null, null, null);
+        try {
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                rows++;
+            }
+            long retained = usedHeapAfterGc(memory) - before;
+            assertEquals(PET_COUNT, rows);
+            checkBudget(OPEN_CATALOG_CURSOR, Math.max(0, retained));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long usedHeapAfterGc(MemoryMXBean memory) {
+        // A few rounds, a single request may leave garbage behind
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private void populate() {
+        for (int first = 0; first < PET_COUNT; first += BULK_INSERT_CHUNK) {
+            ContentValues[] pets = new ContentValues[Math.min(BULK_INSERT_CHUNK,
+                    PET_COUNT - first)];
+            for (int i = 0; i < pets.length; i++) {
+                int pet = first + i;
+                pets[i] = new ContentValues();
+                pets[i].put(PetEntry.COLUMN_PET_NAME, "Pet " + pet);
+                pets[i].put(PetEntry.COLUMN_PET_BREED,
+                        (pet % 8 == 0) ? "" : "Breed " + (pet % 50));
+                pets[i].put(PetEntry.COLUMN_PET_GENDER, pet % 3);
+                pets[i].put(PetEntry.COLUMN_PET_WEIGHT, mRandom.nextInt(50));
+            }
+            assertEquals(pets.length, mResolver.bulkInsert(PetEntry.CONTENT_URI, pets));
+        }
+    }
+
+    private Uri petUri() {
+        return ContentUris.withAppendedId(PetEntry.CONTENT_URI, 1 + mRandom.nextInt(PET_COUNT));
+    }
+
+    private long allocatedBytes() {
+        return mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Records the bytes of the path as its baseline with -PrecordAllocations, or checks them
+     * against the recorded baseline.
+     */
+    private static void checkBudget(String path, long bytes) throws IOException {
+        if (Boolean.getBoolean("recordAllocations")) {
+            record(path, bytes);
+            return;
+        }
+
+        Properties baseline = new Properties();
+        InputStream in = AllocationBudgetsTest.class.getResourceAsStream("/" + BASELINE_FILE);
+        if (in != null) {
+            try {
+                baseline.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        String recorded = baseline.getProperty(path);
+        assertNotNull("No baseline for " + path + " (" + bytes + " bytes), record it with "
+                + "-PrecordAllocations", recorded);
+        long budget = (long) (Long.parseLong(recorded) * (1 + TOLERANCE));
+        assertTrue(path + " allocated " + bytes + " bytes, over its budget of " + budget
+                + " (baseline " + recorded + ")", bytes <= budget);
+    }
+
+    /**
+     * Stores the bytes of the path in the baseline of the source tree, keeping the others.
+     * Gradle runs the tests from the module directory.
+     */
+    private static void record(String path, long bytes) throws IOException {
+        File file = new File(BASELINE_SOURCE);
+        Properties baseline = new Properties();
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                baseline.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        baseline.setProperty(path, String.valueOf(bytes));
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            baseline.store(out, "Bytes allocated per path, see AllocationBudgetsTest");
+        } finally {
+            out.close();
+        }
+    }
+}
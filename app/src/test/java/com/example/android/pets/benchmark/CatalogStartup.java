@@ -0,0 +1,183 @@
+package com.example.android.pets.benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Looper;
+
+import com.example.android.pets.CatalogActivity;
+import com.example.android.pets.data.CatalogSnapshot;
+import com.example.android.pets.data.MainThreadAccessDetector;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StorageEntry;
+import com.example.android.pets.data.PetFixtures;
+import com.example.android.pets.data.PetProvider;
+import com.example.android.pets.data.StartupMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Times cold starts of the catalog with and without the catalog snapshot: the first list
+ * frame, and the list fully drawn from the live query, as StartupMetrics reports them.
+ * <p>
+ * Every start creates the provider again on the same shelter of {@link #PET_COUNT} pets.
+ * The clock of Robolectric only moves when the test advances it, so the times are taken
+ * with System.nanoTime from the creation of the provider, and frames are run every
+ * {@link #FRAME}. Robolectric adds its own overhead, so the numbers compare the two kinds of
+ * start with each other rather than predict the times on a device.
+ * <p>
+ * Only runs with -Pbenchmark.
+ */
+@RunWith(RobolectricTestRunner.class)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class CatalogStartup {
+
+    private static final int PET_COUNT = 50000;
+    private static final int BULK_INSERT_CHUNK = 10000;
+    private static final int WARMUP_STARTS = 2;
+    private static final int SAMPLE_STARTS = 20;
+    private static final long TIMEOUT_MILLIS = 30000;
+    private static final Duration FRAME = Duration.ofMillis(16);
+
+    private Context mContext;
+    private PetProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        PetFixtures.createDatabase(mContext, StorageEntry.PROFILE_BALANCED);
+        startProvider();
+        for (int first = 0; first < PET_COUNT; first += BULK_INSERT_CHUNK) {
+            ContentValues[] pets =
+                    new ContentValues[Math.min(BULK_INSERT_CHUNK, PET_COUNT - first)];
+            for (int j = 0; j < pets.length; j++) {
+                int i = first + j;
+                pets[j] = new ContentValues();
+                pets[j].put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+                pets[j].put(PetEntry.COLUMN_PET_BREED, (i % 8 == 0) ? "" : "Breed " + i % 50);
+                pets[j].put(PetEntry.COLUMN_PET_GENDER, i % 3);
+                pets[j].put(PetEntry.COLUMN_PET_WEIGHT, 1 + i % 40);
+            }
+            assertEquals(pets.length,
+                    mContext.getContentResolver().bulkInsert(PetEntry.CONTENT_URI, pets));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (mProvider != null) mProvider.shutdown();
+        PetFixtures.resetStartupMetrics();
+    }
+
+    @Test
+    public void run() throws InterruptedException {
+        long[][] noSnapshot = new long[2][SAMPLE_STARTS];
+        long[][] snapshot = new long[2][SAMPLE_STARTS];
+        for (int i = -WARMUP_STARTS; i < SAMPLE_STARTS; i++) {
+            // The start without a snapshot saves one for the start after it
+            PetFixtures.deleteCatalogSnapshot(mContext);
+            long[] times = coldStart();
+            awaitSnapshot();
+            if (i >= 0) {
+                noSnapshot[0][i] = times[0];
+                noSnapshot[1][i] = times[1];
+            }
+
+            times = coldStart();
+            if (i >= 0) {
+                snapshot[0][i] = times[0];
+                snapshot[1][i] = times[1];
+            }
+        }
+
+        System.out.println("Cold starts of the catalog with " + PET_COUNT + " pets, "
+                + SAMPLE_STARTS + " each, p50 / p90 in ms");
+        print("no_snapshot", noSnapshot);
+        print("snapshot", snapshot);
+    }
+
+    /**
+     * Starts the provider and the catalog as a new process would and runs frames until the
+     * list was fully drawn.
+     *
+     * @return the nanoseconds to the first list frame and to the fully drawn list.
+     */
+    private long[] coldStart() throws InterruptedException {
+        PetFixtures.resetStartupMetrics();
+        long start = System.nanoTime();
+        startProvider();
+        ActivityController<CatalogActivity> activity =
+                Robolectric.buildActivity(CatalogActivity.class).setup();
+        long firstListFrame = -1;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (StartupMetrics.getFullyDrawnMillis() < 0
+                && System.currentTimeMillis() < deadline) {
+            if (firstListFrame < 0 && StartupMetrics.getFirstListFrameMillis() >= 0) {
+                firstListFrame = System.nanoTime() - start;
+            }
+            shadowOf(Looper.getMainLooper()).idleFor(FRAME);
+            Thread.sleep(1);
+        }
+        long fullyDrawn = System.nanoTime() - start;
+        assertTrue("The catalog was not drawn", StartupMetrics.getFullyDrawnMillis() >= 0);
+        // Both were recorded in the frame of the first live result
+        if (firstListFrame < 0) firstListFrame = fullyDrawn;
+        activity.pause().stop().destroy();
+        return new long[]{firstListFrame, fullyDrawn};
+    }
+
+    private void startProvider() {
+        if (mProvider != null) mProvider.shutdown();
+        mProvider = Robolectric.buildContentProvider(PetProvider.class)
+                .create(PetContract.CONTENT_AUTHORITY).get();
+        // The catalog queries on the main looper of the test on purpose
+        MainThreadAccessDetector.setEnabled(false);
+    }
+
+    /**
+     * Waits for the catalog snapshot, saved in the background, to be written.
+     */
+    private void awaitSnapshot() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            Cursor snapshot = new CatalogSnapshot(mContext).load();
+            if (snapshot != null) {
+                snapshot.close();
+                return;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("The catalog snapshot was not saved");
+    }
+
+    private static void print(String name, long[][] times) {
+        System.out.printf(Locale.ROOT,
+                "%s: first list frame %.1f / %.1f, fully drawn %.1f / %.1f%n", name,
+                percentile(times[0], 50), percentile(times[0], 90),
+                percentile(times[1], 50), percentile(times[1], 90));
+    }
+
+    private static double percentile(long[] nanos, int percentile) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, rank)] / 1e6;
+    }
+}
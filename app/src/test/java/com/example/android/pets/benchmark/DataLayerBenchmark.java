@@ -0,0 +1,768 @@
+package com.example.android.pets.benchmark;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.FrameLayout;
+
+import com.example.android.pets.PetCursorAdapter;
+import com.example.android.pets.data.MainThreadAccessDetector;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.ArchiveEntry;
+import com.example.android.pets.data.PetContract.BackupEntry;
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetQuery;
+import com.example.android.pets.data.PetContract.StorageEntry;
+import com.example.android.pets.data.PetContract.WeighInEntry;
+import com.example.android.pets.data.PetContract.WeightStatsEntry;
+import com.example.android.pets.data.PetFixtures;
+import com.example.android.pets.data.PetProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Runs the operations of the pets data layer through {@link PetProvider} and
+ * {@link PetCursorAdapter} under Robolectric, with 1k, 100k and 1M pets, and reports the
+ * timings as JSON, so runs can be compared.
+ * <p>
+ * Every table size starts from a new shelter database with the balanced storage profile.
+ * Robolectric runs the SQLite of the machine and adds its own overhead to every call, so
+ * the numbers are for comparing runs and changes, not for predicting latencies on a device.
+ * <p>
+ * Only runs with -Pbenchmark. -PbenchmarkRows=1000,100000 picks other table sizes. The
+ * report is printed and written to app/build/benchmark/results.json.
+ */
+@RunWith(RobolectricTestRunner.class)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class DataLayerBenchmark {
+
+    private static final String DEFAULT_ROWS = "1000,100000,1000000";
+
+    /**
+     * Number of timed operations for the single row operations
+     */
+    private static final int SAMPLE_OPERATIONS = 1000;
+
+    /**
+     * Number of untimed operations run first, so the JIT and the page cache are warm
+     */
+    private static final int WARMUP_OPERATIONS = 100;
+
+    /**
+     * Number of timed full table scans
+     */
+    private static final int SCAN_ITERATIONS = 3;
+
+    /**
+     * Pets per bulk insert, so a million pets don't have to be in memory at once
+     */
+    private static final int BULK_INSERT_CHUNK = 10000;
+
+    /**
+     * Share of the pets changed between a full and an incremental backup, in percent
+     */
+    private static final int BACKUP_CHURN_PERCENT = 1;
+
+    /**
+     * Number of pets changed by one batch edit, and the number of timed batch edits
+     */
+    private static final int BATCH_EDIT_PETS = 500;
+    private static final int BATCH_EDIT_ITERATIONS = 20;
+
+    /**
+     * Number of consecutive pets matched by the range of a filter query
+     */
+    private static final int FILTER_RANGE = 20;
+
+    /**
+     * Number of pets of the intake feed re-imported in upsert mode, and the share of them
+     * that changed since the last import, in percent
+     */
+    private static final int IMPORT_PETS = 50000;
+    private static final int IMPORT_CHURN_PERCENT = 1;
+
+    /**
+     * Number of pets with a weigh-in history, and the days of history each of them has
+     */
+    private static final int HISTORY_PETS = 10000;
+    private static final int HISTORY_DAYS = 365;
+
+    /**
+     * End of the generated history, a Monday at midnight UTC (2026-01-05)
+     */
+    private static final long HISTORY_END_MILLIS = 1767571200000L;
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Share of the pets adopted long ago in the tiering benchmark, every tenth pet is
+     * still available
+     */
+    private static final int TIERING_AVAILABLE_EVERY = 10;
+
+    private static final String[] BREEDS = {
+            "Terrier", "Labrador", "Poodle", "Beagle", "Siamese", "Persian", "Tabby", ""
+    };
+
+    // The projection of the editor
+    private static final String[] EDITOR_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    private Context mContext;
+    private ContentResolver mResolver;
+    private PetProvider mProvider;
+    private int mRows;
+    private Random mRandom;
+    private final List<Result> mResults = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mResolver = mContext.getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        if (mProvider != null) mProvider.shutdown();
+    }
+
+    @Test
+    public void run() throws IOException {
+        String sizes = System.getProperty("benchmarkRows", "");
+        for (String size : (sizes.isEmpty() ? DEFAULT_ROWS : sizes).split(",")) {
+            mRows = Integer.parseInt(size.trim());
+            mRandom = new Random(42);
+            startProvider();
+            runOperations();
+            startProvider();
+            benchmarkTiering();
+        }
+
+        SQLiteDatabase memory = SQLiteDatabase.create(null);
+        String sqliteVersion;
+        try {
+            sqliteVersion = DatabaseUtils.stringForQuery(memory, "SELECT sqlite_version()", null);
+        } finally {
+            memory.close();
+        }
+        String report = toJson(sqliteVersion, mResults);
+        System.out.println(report);
+        String output = System.getProperty("benchmarkOutput", "");
+        if (!output.isEmpty()) write(new File(output), report);
+    }
+
+    /**
+     * Starts the provider on a new, empty shelter database.
+     */
+    private void startProvider() {
+        if (mProvider != null) mProvider.shutdown();
+        PetFixtures.createDatabase(mContext, StorageEntry.PROFILE_BALANCED);
+        mProvider = Robolectric.buildContentProvider(PetProvider.class)
+                .create(PetContract.CONTENT_AUTHORITY).get();
+        // The benchmark runs on the main looper on purpose
+        MainThreadAccessDetector.setEnabled(false);
+    }
+
+    private void runOperations() throws IOException {
+        benchmarkBulkInsert();
+        benchmarkInsert();
+        benchmarkUpdate();
+        benchmarkBatchEdit();
+        benchmarkQueryById("query_pet_id_catalog", PetEntry.CATALOG_PROJECTION);
+        benchmarkQueryById("query_pet_id_editor", EDITOR_PROJECTION);
+        benchmarkQueryById("query_pet_id_all", null);
+        benchmarkQueryAll("query_pets_catalog", PetEntry.CATALOG_PROJECTION);
+        benchmarkQueryAll("query_pets_editor", EDITOR_PROJECTION);
+        benchmarkQueryAll("query_pets_all", null);
+        benchmarkFilterQuery();
+        benchmarkCatalogBinding();
+        benchmarkWeightAnalytics();
+        benchmarkBreedIndexRebuild();
+        benchmarkWeighIns();
+        benchmarkBackup();
+        benchmarkUpsertImport();
+        benchmarkDelete();
+    }
+
+    /**
+     * Fills the table with bulk inserts, each one transaction in PetProvider.bulkInsert.
+     */
+    private void benchmarkBulkInsert() {
+        long start = System.nanoTime();
+        bulkInsert(mRows, false);
+        mResults.add(Result.total("bulk_insert", mRows, mRows, System.nanoTime() - start));
+    }
+
+    /**
+     * Inserts the pets, of which all but every {@link #TIERING_AVAILABLE_EVERY}th one were
+     * adopted in id order over the year before they are due for the archive.
+     */
+    private void bulkInsert(int rows, boolean adopted) {
+        long yearStart = System.currentTimeMillis() - ArchiveEntry.ARCHIVE_AFTER_MILLIS
+                - HISTORY_DAYS * DAY_MILLIS;
+        for (int first = 0; first < rows; first += BULK_INSERT_CHUNK) {
+            ContentValues[] pets = new ContentValues[Math.min(BULK_INSERT_CHUNK, rows - first)];
+            for (int i = 0; i < pets.length; i++) {
+                int id = first + i + 1;
+                pets[i] = pet(id);
+                if (adopted && id % TIERING_AVAILABLE_EVERY != 0) {
+                    pets[i].put(PetEntry.COLUMN_PET_STATUS, PetEntry.STATUS_ADOPTED);
+                    pets[i].put(PetEntry.COLUMN_PET_ADOPTED_AT,
+                            yearStart + (long) id * HISTORY_DAYS * DAY_MILLIS / (rows + 1));
+                }
+            }
+            assertEquals(pets.length, mResolver.bulkInsert(PetEntry.CONTENT_URI, pets));
+        }
+    }
+
+    /**
+     * Single inserts, each in its own transaction.
+     */
+    private void benchmarkInsert() {
+        Timer timer = new Timer(SAMPLE_OPERATIONS);
+        for (int i = -WARMUP_OPERATIONS; i < SAMPLE_OPERATIONS; i++) {
+            ContentValues values = pet(mRows + i);
+            timer.start();
+            mResolver.insert(PetEntry.CONTENT_URI, values);
+            timer.stop(i);
+        }
+        mResults.add(timer.result("insert", mRows));
+    }
+
+    private void benchmarkUpdate() {
+        Timer timer = new Timer(SAMPLE_OPERATIONS);
+        for (int i = -WARMUP_OPERATIONS; i < SAMPLE_OPERATIONS; i++) {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, mRandom.nextInt(50));
+            Uri uri = randomPetUri();
+            timer.start();
+            mResolver.update(uri, values, null, null);
+            timer.stop(i);
+        }
+        mResults.add(timer.result("update", mRows));
+    }
+
+    /**
+     * Sets the weight of {@link #BATCH_EDIT_PETS} pets, once with an update per pet, each in
+     * its own transaction as EditorActivity did, and once with the batch update call.
+     */
+    private void benchmarkBatchEdit() {
+        int pets = Math.min(BATCH_EDIT_PETS, mRows);
+        Timer perRow = new Timer(BATCH_EDIT_ITERATIONS);
+        Timer setBased = new Timer(BATCH_EDIT_ITERATIONS);
+        for (int i = -2; i < BATCH_EDIT_ITERATIONS; i++) {
+            long[] ids = randomIds(pets);
+            int weight = mRandom.nextInt(50);
+
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+            perRow.start();
+            for (long id : ids) {
+                mResolver.update(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id), values,
+                        null, null);
+            }
+            perRow.stop(i);
+
+            Bundle extras = new Bundle();
+            extras.putLongArray(PetEntry.EXTRA_IDS, ids);
+            values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_WEIGHT, weight + 1);
+            extras.putParcelable(PetEntry.EXTRA_VALUES, values);
+            setBased.start();
+            mResolver.call(PetEntry.CONTENT_URI, PetEntry.METHOD_BATCH_UPDATE, null, extras);
+            setBased.stop(i);
+        }
+        mResults.add(perRow.result("batch_edit_" + pets + "_per_row", mRows));
+        mResults.add(setBased.result("batch_edit_" + pets + "_set_based", mRows));
+    }
+
+    private long[] randomIds(int count) {
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = randomId();
+        }
+        return ids;
+    }
+
+    /**
+     * Appends a year of daily weigh-ins for up to {@link #HISTORY_PETS} pets through the
+     * rollup trigger, then reads a year of one pet's history: the raw weigh-ins and the
+     * weekly summary.
+     */
+    private void benchmarkWeighIns() {
+        int pets = Math.min(HISTORY_PETS, mRows);
+        long historyStart = HISTORY_END_MILLIS - HISTORY_DAYS * DAY_MILLIS;
+
+        // One transaction per pet, like a pet whose weight changes daily
+        long start = System.nanoTime();
+        int weighIns = PetFixtures.appendWeighIns(mContext, pets, HISTORY_DAYS,
+                HISTORY_END_MILLIS, mRandom);
+        mResults.add(Result.total("weigh_in_append_rollup", mRows, weighIns,
+                System.nanoTime() - start));
+
+        benchmarkHistoryRead("history_year_weigh_ins", false, pets, historyStart);
+        benchmarkHistoryRead("history_year_weekly_rollups", true, pets, historyStart);
+    }
+
+    private void benchmarkHistoryRead(String name, boolean weekly, int pets, long from) {
+        Timer timer = new Timer(SAMPLE_OPERATIONS);
+        for (int i = -WARMUP_OPERATIONS; i < SAMPLE_OPERATIONS; i++) {
+            Uri petUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI,
+                    1 + mRandom.nextInt(pets));
+            Uri uri = (weekly ? WeighInEntry.buildSummaryUri(petUri, true)
+                    : WeighInEntry.buildWeighInsUri(petUri)).buildUpon()
+                    .appendQueryParameter(WeighInEntry.QUERY_PARAM_FROM, String.valueOf(from))
+                    .appendQueryParameter(WeighInEntry.QUERY_PARAM_TO,
+                            String.valueOf(HISTORY_END_MILLIS))
+                    .build();
+            timer.start();
+            readAll(mResolver.query(uri, null, null, null, null));
+            timer.stop(i);
+        }
+        mResults.add(timer.result(name, mRows));
+    }
+
+    /**
+     * Fills a new shelter database with pets of which all but every
+     * {@link #TIERING_AVAILABLE_EVERY}th were adopted over a year, then moves the adopted
+     * ones to the archive with the archive call. The queries of the available pets are timed
+     * before and after. The page cache counters of SQLite aren't exposed on Android, so the
+     * pages in use are reported with the size of the page cache instead: their ratio bounds
+     * the hit rate the queries of the available pets can reach.
+     */
+    private void benchmarkTiering() {
+        bulkInsert(mRows, true);
+        Result cache = Result.total("tier_page_cache", mRows, 0, 0);
+        cache.bytes = PetFixtures.pageCacheBytes(mContext);
+        mResults.add(cache);
+        benchmarkHotQueries("tier_before");
+
+        long start = System.nanoTime();
+        Bundle result = mResolver.call(PetEntry.CONTENT_URI, ArchiveEntry.METHOD_ARCHIVE,
+                null, null);
+        int moved = result.getInt(ArchiveEntry.EXTRA_ROWS);
+        Result move = Result.total("tier_move", mRows, moved, System.nanoTime() - start);
+        move.bytes = PetFixtures.archiveBytes(mContext);
+        mResults.add(move);
+        assertEquals("Pets moved to the archive",
+                mRows - mRows / TIERING_AVAILABLE_EVERY, moved);
+
+        benchmarkHotQueries("tier_after");
+    }
+
+    /**
+     * Times the queries of the available pets, single pets and the catalog list, and
+     * records the pages in use by the shelter database.
+     */
+    private void benchmarkHotQueries(String prefix) {
+        int available = mRows / TIERING_AVAILABLE_EVERY;
+        if (available == 0) return;
+        Timer byId = new Timer(SAMPLE_OPERATIONS);
+        for (int i = -WARMUP_OPERATIONS; i < SAMPLE_OPERATIONS; i++) {
+            Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI,
+                    (1 + mRandom.nextInt(available)) * (long) TIERING_AVAILABLE_EVERY);
+            byId.start();
+            readAll(mResolver.query(uri, EDITOR_PROJECTION, null, null, null));
+            byId.stop(i);
+        }
+        mResults.add(byId.result(prefix + "_query_pet_id", mRows));
+
+        Timer list = new Timer(SCAN_ITERATIONS);
+        for (int i = -1; i < SCAN_ITERATIONS; i++) {
+            list.start();
+            readAll(mResolver.query(PetEntry.CONTENT_URI, PetEntry.CATALOG_PROJECTION,
+                    PetEntry.COLUMN_PET_STATUS + "=?",
+                    new String[]{String.valueOf(PetEntry.STATUS_AVAILABLE)}, null));
+            list.stop(i);
+        }
+        mResults.add(list.result(prefix + "_query_available", mRows));
+
+        Result used = Result.total(prefix + "_pages", mRows, 0, 0);
+        used.bytes = PetFixtures.usedBytes(mContext);
+        mResults.add(used);
+    }
+
+    /**
+     * Deletes from the end of the table, so the earlier operations always find their rows.
+     */
+    private void benchmarkDelete() {
+        Timer timer = new Timer(SAMPLE_OPERATIONS);
+        long id = mRows;
+        for (int i = -WARMUP_OPERATIONS; i < SAMPLE_OPERATIONS && id > 0; i++) {
+            Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id--);
+            timer.start();
+            mResolver.delete(uri, null, null);
+            timer.stop(i);
+        }
+        mResults.add(timer.result("delete", mRows));
+    }
+
+    /**
+     * Looks up single pets by _id and reads every projected column.
+     */
+    private void benchmarkQueryById(String name, String[] projection) {
+        Timer timer = new Timer(SAMPLE_OPERATIONS);
+        for (int i = -WARMUP_OPERATIONS; i < SAMPLE_OPERATIONS; i++) {
+            Uri uri = randomPetUri();
+            timer.start();
+            readAll(mResolver.query(uri, projection, null, null, null));
+            timer.stop(i);
+        }
+        mResults.add(timer.result(name, mRows));
+    }
+
+    /**
+     * Reads all pets, without a selection.
+     */
+    private void benchmarkQueryAll(String name, String[] projection) {
+        Timer timer = new Timer(SCAN_ITERATIONS);
+        for (int i = -1; i < SCAN_ITERATIONS; i++) {
+            timer.start();
+            readAll(mResolver.query(PetEntry.CONTENT_URI, projection, null, null, null));
+            timer.stop(i);
+        }
+        mResults.add(timer.result(name, mRows));
+    }
+
+    /**
+     * Runs a small filter query with varying values, once with the values inlined in the
+     * selection as clients did, so every query is parsed and planned again, and once as a
+     * typed PetQuery, which the provider compiles once per query shape.
+     */
+    private void benchmarkFilterQuery() {
+        Timer inlined = new Timer(SAMPLE_OPERATIONS);
+        for (int i = -WARMUP_OPERATIONS; i < SAMPLE_OPERATIONS; i++) {
+            long fromId = randomId();
+            int gender = mRandom.nextInt(3);
+            String selection = PetEntry._ID + ">=" + fromId
+                    + " AND " + PetEntry._ID + "<" + (fromId + FILTER_RANGE)
+                    + " AND " + PetEntry.COLUMN_PET_GENDER + "=" + gender;
+            inlined.start();
+            readAll(mResolver.query(PetEntry.CONTENT_URI, PetEntry.CATALOG_PROJECTION,
+                    selection, null, PetEntry._ID));
+            inlined.stop(i);
+        }
+        mResults.add(inlined.result("query_filter_inlined", mRows));
+
+        Timer typed = new Timer(SAMPLE_OPERATIONS);
+        for (int i = -WARMUP_OPERATIONS; i < SAMPLE_OPERATIONS; i++) {
+            long fromId = randomId();
+            int gender = mRandom.nextInt(3);
+            typed.start();
+            Uri uri = new PetQuery(PetEntry.CONTENT_URI)
+                    .where(PetEntry._ID, PetQuery.AT_LEAST, fromId)
+                    .where(PetEntry._ID, PetQuery.LESS_THAN, fromId + FILTER_RANGE)
+                    .where(PetEntry.COLUMN_PET_GENDER, PetQuery.EQUALS, gender)
+                    .orderBy(PetEntry._ID, false)
+                    .build();
+            readAll(mResolver.query(uri, PetEntry.CATALOG_PROJECTION, null, null, null));
+            typed.stop(i);
+        }
+        mResults.add(typed.result("query_filter_compiled", mRows));
+    }
+
+    /**
+     * Reads the weight analytics of all pets: the statistics per breed and gender, the
+     * histogram with the default and a wider bucket, and the outliers. Every query reads
+     * the whole table again, so at 1M pets this is the cost of one refresh of an analytics
+     * screen after a pet changed.
+     */
+    private void benchmarkWeightAnalytics() {
+        benchmarkAnalyticsQuery("weight_stats", WeightStatsEntry.CONTENT_URI);
+        benchmarkAnalyticsQuery("weight_histogram", WeightStatsEntry.HISTOGRAM_URI);
+        benchmarkAnalyticsQuery("weight_histogram_width_10",
+                WeightStatsEntry.HISTOGRAM_URI.buildUpon()
+                        .appendQueryParameter(WeightStatsEntry.QUERY_PARAM_BUCKET_WIDTH, "10")
+                        .build());
+        benchmarkAnalyticsQuery("weight_outliers", WeightStatsEntry.OUTLIERS_URI);
+    }
+
+    private void benchmarkAnalyticsQuery(String name, Uri uri) {
+        Timer timer = new Timer(SCAN_ITERATIONS);
+        for (int i = -1; i < SCAN_ITERATIONS; i++) {
+            timer.start();
+            readAll(mResolver.query(uri, null, null, null, null));
+            timer.stop(i);
+        }
+        mResults.add(timer.result(name, mRows));
+    }
+
+    /**
+     * Reads the breeds with their counts as BreedIndex does on every change of the pets
+     * table. They come from the counts kept by triggers, one row per breed, so this should
+     * stay flat as the table grows.
+     */
+    private void benchmarkBreedIndexRebuild() {
+        String[] projection = {BreedEntry.COLUMN_BREED, BreedEntry.COLUMN_COUNT};
+        Timer timer = new Timer(SCAN_ITERATIONS);
+        for (int i = -1; i < SCAN_ITERATIONS; i++) {
+            timer.start();
+            readAll(mResolver.query(BreedEntry.CONTENT_URI, projection, null, null, null));
+            timer.stop(i);
+        }
+        mResults.add(timer.result("breed_index_rebuild", mRows));
+    }
+
+    /**
+     * Binds every row of the catalog query with PetCursorAdapter, into one recycled view
+     * like a scrolling list.
+     */
+    private void benchmarkCatalogBinding() {
+        Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, PetEntry.CATALOG_PROJECTION,
+                null, null, null);
+        try {
+            PetCursorAdapter adapter = new PetCursorAdapter(mContext, cursor);
+            FrameLayout parent = new FrameLayout(mContext);
+            long start = System.nanoTime();
+            View view = null;
+            int rows = adapter.getCount();
+            for (int i = 0; i < rows; i++) {
+                view = adapter.getView(i, view, parent);
+            }
+            mResults.add(Result.total("adapter_bind_catalog", mRows, rows,
+                    System.nanoTime() - start));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * A full backup into a new file, then an incremental one after
+     * {@link #BACKUP_CHURN_PERCENT}% of the pets were updated.
+     */
+    private void benchmarkBackup() throws IOException {
+        File backupFile = File.createTempFile("shelter-backup", ".db");
+        if (!backupFile.delete()) throw new IOException("Can't delete " + backupFile);
+        try {
+            mResults.add(backup("backup_full", backupFile));
+            for (int i = 0; i < mRows / 100 * BACKUP_CHURN_PERCENT; i++) {
+                ContentValues values = new ContentValues();
+                values.put(PetEntry.COLUMN_PET_NAME, "Churned " + i);
+                values.put(PetEntry.COLUMN_PET_WEIGHT, mRandom.nextInt(50));
+                mResolver.update(randomPetUri(), values, null, null);
+            }
+            mResults.add(backup("backup_incremental_" + BACKUP_CHURN_PERCENT + "pct",
+                    backupFile));
+        } finally {
+            for (String suffix : new String[]{"", "-journal", "-wal", "-shm"}) {
+                File file = new File(backupFile.getPath() + suffix);
+                if (file.exists() && !file.delete()) file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Imports a feed of {@link #IMPORT_PETS} pets with intake ids through the upsert URI,
+     * then imports it again unchanged, and again after {@link #IMPORT_CHURN_PERCENT}% of
+     * the pets changed their weight. The pets already in the table have no intake id, so
+     * the first import inserts every pet of the feed.
+     */
+    private void benchmarkUpsertImport() {
+        int[] weights = new int[IMPORT_PETS];
+        for (int i = 0; i < IMPORT_PETS; i++) {
+            weights[i] = mRandom.nextInt(50);
+        }
+        mResults.add(upsertImport("upsert_import_" + IMPORT_PETS, weights));
+        mResults.add(upsertImport("upsert_reimport_unchanged", weights));
+        for (int i = 0; i < IMPORT_PETS / 100 * IMPORT_CHURN_PERCENT; i++) {
+            int pet = mRandom.nextInt(IMPORT_PETS);
+            weights[pet] = weights[pet] + 1;
+        }
+        mResults.add(upsertImport("upsert_reimport_" + IMPORT_CHURN_PERCENT + "pct_changed",
+                weights));
+    }
+
+    private Result upsertImport(String name, int[] weights) {
+        long start = System.nanoTime();
+        for (int first = 0; first < weights.length; first += BULK_INSERT_CHUNK) {
+            ContentValues[] pets =
+                    new ContentValues[Math.min(BULK_INSERT_CHUNK, weights.length - first)];
+            for (int i = 0; i < pets.length; i++) {
+                int pet = first + i;
+                pets[i] = new ContentValues();
+                pets[i].put(PetEntry.COLUMN_PET_INTAKE_ID, "intake-" + pet);
+                pets[i].put(PetEntry.COLUMN_PET_NAME, "Imported " + pet);
+                pets[i].put(PetEntry.COLUMN_PET_BREED, BREEDS[pet % BREEDS.length]);
+                pets[i].put(PetEntry.COLUMN_PET_GENDER, pet % 3);
+                pets[i].put(PetEntry.COLUMN_PET_WEIGHT, weights[pet]);
+            }
+            assertEquals(pets.length, mResolver.bulkInsert(PetEntry.UPSERT_URI, pets));
+        }
+        return Result.total(name, mRows, weights.length, System.nanoTime() - start);
+    }
+
+    private Result backup(String name, File backupFile) {
+        long start = System.nanoTime();
+        Bundle backup = mResolver.call(PetEntry.CONTENT_URI, BackupEntry.METHOD_BACKUP,
+                backupFile.getPath(), null);
+        Result result = Result.total(name, mRows, backup.getInt(BackupEntry.EXTRA_ROWS),
+                System.nanoTime() - start);
+        result.bytes = backup.getLong(BackupEntry.EXTRA_BYTES);
+        return result;
+    }
+
+    private ContentValues pet(int i) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+        values.put(PetEntry.COLUMN_PET_BREED, BREEDS[i % BREEDS.length]);
+        values.put(PetEntry.COLUMN_PET_GENDER, i % 3);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, mRandom.nextInt(50));
+        return values;
+    }
+
+    private long randomId() {
+        return 1 + mRandom.nextInt(mRows);
+    }
+
+    private Uri randomPetUri() {
+        return ContentUris.withAppendedId(PetEntry.CONTENT_URI, randomId());
+    }
+
+    private static void readAll(Cursor cursor) {
+        try {
+            int columns = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                for (int column = 0; column < columns; column++) {
+                    cursor.getString(column);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void write(File output, String report) throws IOException {
+        File parent = output.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Can't create " + parent);
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(output),
+                StandardCharsets.UTF_8)) {
+            writer.write(report);
+        }
+    }
+
+    /**
+     * Records the latency of every timed operation. Negative operation indexes
+     * are warm-up runs and aren't recorded.
+     */
+    private static final class Timer {
+        private final long[] mLatencies;
+        private long mStart;
+        private long mTotal;
+        private int mCount;
+
+        Timer(int operations) {
+            mLatencies = new long[operations];
+        }
+
+        void start() {
+            mStart = System.nanoTime();
+        }
+
+        void stop(int operation) {
+            long latency = System.nanoTime() - mStart;
+            if (operation < 0) return;
+            mLatencies[mCount++] = latency;
+            mTotal += latency;
+        }
+
+        Result result(String operation, int rows) {
+            long[] latencies = Arrays.copyOf(mLatencies, mCount);
+            Arrays.sort(latencies);
+            Result result = Result.total(operation, rows, mCount, mTotal);
+            result.p50Nanos = percentile(latencies, 50);
+            result.p99Nanos = percentile(latencies, 99);
+            return result;
+        }
+
+        private static long percentile(long[] sorted, int percentile) {
+            if (sorted.length == 0) return -1;
+            int rank = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, rank)];
+        }
+    }
+
+    /**
+     * Timings of one operation at one table size.
+     */
+    private static final class Result {
+        String operation;
+        int rows;
+        int operations;
+        long totalNanos;
+        long p50Nanos = -1;
+        long p99Nanos = -1;
+        long bytes = -1;
+
+        static Result total(String operation, int rows, int operations, long totalNanos) {
+            Result result = new Result();
+            result.operation = operation;
+            result.rows = rows;
+            result.operations = operations;
+            result.totalNanos = totalNanos;
+            return result;
+        }
+    }
+
+    private static String toJson(String sqliteVersion, List<Result> results) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"sqlite_version\": \"").append(sqliteVersion).append("\",\n");
+        json.append("  \"results\": [");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            double seconds = result.totalNanos / 1e9;
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append(String.format(Locale.ROOT,
+                    "    {\"operation\": \"%s\", \"rows\": %d, \"operations\": %d, "
+                            + "\"total_ms\": %.3f, \"ops_per_sec\": %.1f, "
+                            + "\"p50_us\": %s, \"p99_us\": %s, \"bytes\": %s}",
+                    result.operation, result.rows, result.operations,
+                    result.totalNanos / 1e6,
+                    (seconds > 0) ? result.operations / seconds : 0.0,
+                    micros(result.p50Nanos), micros(result.p99Nanos),
+                    (result.bytes < 0) ? "null" : String.valueOf(result.bytes)));
+        }
+        json.append("\n  ]\n}\n");
+        return json.toString();
+    }
+
+    private static String micros(long nanos) {
+        return (nanos < 0) ? "null" : String.format(Locale.ROOT, "%.1f", nanos / 1e3);
+    }
+}
@@ -0,0 +1,359 @@
+package com.example.android.pets.benchmark;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.data.MainThreadAccessDetector;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetQuery;
+import com.example.android.pets.data.PetContract.StorageEntry;
+import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetFixtures;
+import com.example.android.pets.data.PetProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Runs the standard provider workload under each storage profile of the app and recommends
+ * one for the number of pets.
+ * <p>
+ * Every profile gets a new shelter database created with its page size, and the provider
+ * opens it as it does on the device. The workload fills the table with bulk inserts, then
+ * times single inserts and updates, and, after the provider was started again so SQLite's
+ * page cache starts empty, single pet queries, catalog scans and filter queries. The file
+ * system cache of the machine stays warm and Robolectric adds its own overhead, so reads
+ * cost less than on a device and the numbers are for comparing profiles rather than
+ * predicting latencies.
+ * <p>
+ * Only the primary connection gets the cache and mmap sizes of a profile. The profiles that
+ * keep the read connections of write-ahead log mode read with SQLite's defaults, so between
+ * those their read times differ by page size only. The results name the connection the
+ * reads ran on.
+ * <p>
+ * The recommendation is the fastest profile, or one using less memory if it is within
+ * {@link #TOLERANCE_PERCENT}% of the fastest. Only runs with -Pbenchmark. Options go in
+ * -PprofileArgs, all optional:
+ * <pre>
+ * --rows=100000 --profiles=low_memory,balanced,read_heavy
+ * </pre>
+ */
+@RunWith(RobolectricTestRunner.class)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class StorageProfiles {
+
+    private static final List<String> PROFILES = Arrays.asList(
+            StorageEntry.PROFILE_LOW_MEMORY,
+            StorageEntry.PROFILE_BALANCED,
+            StorageEntry.PROFILE_READ_HEAVY);
+
+    /**
+     * A profile using less memory is recommended when it is this close to the fastest
+     */
+    private static final int TOLERANCE_PERCENT = 5;
+
+    private static final int WARMUP_OPERATIONS = 100;
+    private static final int SAMPLE_OPERATIONS = 1000;
+    private static final int SCAN_ITERATIONS = 3;
+    private static final int BULK_INSERT_CHUNK = 10000;
+
+    /**
+     * Width of the id range of the filter query, like the data layer benchmark
+     */
+    private static final int FILTER_RANGE = 20;
+
+    private static final String[] BREEDS = {
+            "Tabby", "Siamese", "Labrador", "Beagle", "Persian", "Poodle", "", "Husky"
+    };
+
+    // Workload phases, in the order they run
+    private static final String BULK_INSERT = "bulk_insert";
+    private static final String INSERT = "insert";
+    private static final String UPDATE = "update";
+    private static final String QUERY_PET_ID = "query_pet_id";
+    private static final String QUERY_PETS_CATALOG = "query_pets_catalog";
+    private static final String QUERY_FILTER = "query_filter";
+
+    // The projection of the editor
+    private static final String[] EDITOR_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    private Context mContext;
+    private ContentResolver mResolver;
+    private PetProvider mProvider;
+    private int mRows;
+    private Random mRandom;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mResolver = mContext.getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        if (mProvider != null) mProvider.shutdown();
+    }
+
+    @Test
+    public void recommendProfile() {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : System.getProperty("profileArgs", "").trim().split("\\s+")) {
+            if (arg.isEmpty()) continue;
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            int split = arg.indexOf('=');
+            options.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+        String rowsOption = options.get("rows");
+        mRows = (rowsOption == null) ? 100000 : Integer.parseInt(rowsOption);
+        String profilesOption = options.get("profiles");
+        List<String> profiles = (profilesOption == null)
+                ? PROFILES : Arrays.asList(profilesOption.split(","));
+
+        Map<String, Map<String, Long>> results = new LinkedHashMap<>();
+        Map<String, Long> memoryBytes = new HashMap<>();
+        Map<String, Boolean> readConnections = new HashMap<>();
+        for (String profile : profiles) {
+            profile = profile.trim();
+            if (!PROFILES.contains(profile)) {
+                throw new IllegalArgumentException("Unknown profile " + profile);
+            }
+            results.put(profile, run(profile));
+            memoryBytes.put(profile, PetFixtures.storageMemoryBytes(mContext));
+            readConnections.put(profile, PetFixtures.readsOnReadConnections(mContext));
+        }
+
+        printResults(results, memoryBytes, readConnections);
+        System.out.printf(Locale.ROOT, "Recommended profile for %d pets: %s%n",
+                mRows, recommend(results, memoryBytes));
+    }
+
+    /**
+     * Runs the workload under the profile and returns the total time of each phase in
+     * nanoseconds, and the page size and size of the file.
+     */
+    private Map<String, Long> run(String profile) {
+        // The same workload for every profile
+        mRandom = new Random(42);
+        Map<String, Long> nanos = new LinkedHashMap<>();
+        if (mProvider != null) mProvider.shutdown();
+        long pageSize = PetFixtures.createDatabase(mContext, profile);
+        startProvider();
+        nanos.put(BULK_INSERT, bulkInsert());
+        nanos.put(INSERT, insert());
+        nanos.put(UPDATE, update());
+
+        mProvider.shutdown();
+        startProvider();
+        nanos.put(QUERY_PET_ID, queryById());
+        nanos.put(QUERY_PETS_CATALOG, queryCatalog());
+        nanos.put(QUERY_FILTER, queryFilter());
+
+        nanos.put("page_size", pageSize);
+        nanos.put("file_bytes", mContext.getDatabasePath(PetDbHelper.DATABASE_NAME).length());
+        return nanos;
+    }
+
+    private void startProvider() {
+        mProvider = Robolectric.buildContentProvider(PetProvider.class)
+                .create(PetContract.CONTENT_AUTHORITY).get();
+        // The workload runs on the main looper on purpose
+        MainThreadAccessDetector.setEnabled(false);
+    }
+
+    private long bulkInsert() {
+        long start = System.nanoTime();
+        for (int first = 0; first < mRows; first += BULK_INSERT_CHUNK) {
+            ContentValues[] pets = new ContentValues[Math.min(BULK_INSERT_CHUNK, mRows - first)];
+            for (int i = 0; i < pets.length; i++) {
+                pets[i] = pet(first + i);
+            }
+            assertEquals(pets.length, mResolver.bulkInsert(PetEntry.CONTENT_URI, pets));
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Single inserts, each in its own transaction like PetProvider.insert
+     */
+    private long insert() {
+        long total = 0;
+        for (int i = -WARMUP_OPERATIONS; i < SAMPLE_OPERATIONS; i++) {
+            ContentValues values = pet(mRows + i);
+            long start = System.nanoTime();
+            mResolver.insert(PetEntry.CONTENT_URI, values);
+            if (i >= 0) total += System.nanoTime() - start;
+        }
+        return total;
+    }
+
+    private long update() {
+        long total = 0;
+        for (int i = -WARMUP_OPERATIONS; i < SAMPLE_OPERATIONS; i++) {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, mRandom.nextInt(50));
+            Uri uri = randomPetUri();
+            long start = System.nanoTime();
+            mResolver.update(uri, values, null, null);
+            if (i >= 0) total += System.nanoTime() - start;
+        }
+        return total;
+    }
+
+    /**
+     * Single pet queries of the editor. Not warmed up, the first reads fill the cache.
+     */
+    private long queryById() {
+        long start = System.nanoTime();
+        for (int i = 0; i < SAMPLE_OPERATIONS; i++) {
+            readAll(mResolver.query(randomPetUri(), EDITOR_PROJECTION, null, null, null));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long queryCatalog() {
+        long start = System.nanoTime();
+        for (int i = 0; i < SCAN_ITERATIONS; i++) {
+            readAll(mResolver.query(PetEntry.CONTENT_URI, PetEntry.CATALOG_PROJECTION,
+                    null, null, null));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long queryFilter() {
+        long start = System.nanoTime();
+        for (int i = 0; i < SAMPLE_OPERATIONS; i++) {
+            long fromId = randomId();
+            Uri uri = new PetQuery(PetEntry.CONTENT_URI)
+                    .where(PetEntry._ID, PetQuery.AT_LEAST, fromId)
+                    .where(PetEntry._ID, PetQuery.LESS_THAN, fromId + FILTER_RANGE)
+                    .where(PetEntry.COLUMN_PET_GENDER, PetQuery.EQUALS, mRandom.nextInt(3))
+                    .orderBy(PetEntry._ID, false)
+                    .build();
+            readAll(mResolver.query(uri, PetEntry.CATALOG_PROJECTION, null, null, null));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private ContentValues pet(int i) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+        values.put(PetEntry.COLUMN_PET_BREED, BREEDS[i % BREEDS.length]);
+        values.put(PetEntry.COLUMN_PET_GENDER, i % 3);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, mRandom.nextInt(50));
+        return values;
+    }
+
+    private long randomId() {
+        return 1 + mRandom.nextInt(mRows);
+    }
+
+    private Uri randomPetUri() {
+        return ContentUris.withAppendedId(PetEntry.CONTENT_URI, randomId());
+    }
+
+    private static void readAll(Cursor cursor) {
+        try {
+            int columns = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                for (int column = 0; column < columns; column++) {
+                    cursor.getString(column);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static boolean isPhase(String key) {
+        return !key.equals("page_size") && !key.equals("file_bytes");
+    }
+
+    /**
+     * Time of the whole workload, the bulk insert included.
+     */
+    private static long totalNanos(Map<String, Long> nanos) {
+        long total = 0;
+        for (Map.Entry<String, Long> phase : nanos.entrySet()) {
+            if (isPhase(phase.getKey())) total += phase.getValue();
+        }
+        return total;
+    }
+
+    private void printResults(Map<String, Map<String, Long>> results,
+                              Map<String, Long> memoryBytes,
+                              Map<String, Boolean> readConnections) {
+        System.out.printf(Locale.ROOT, "%d pets%n", mRows);
+        for (Map.Entry<String, Map<String, Long>> result : results.entrySet()) {
+            Map<String, Long> nanos = result.getValue();
+            boolean defaultReads = readConnections.get(result.getKey());
+            System.out.printf(Locale.ROOT,
+                    "%s: page_size %d, cache and mmap %d KiB for the %s, file %d KiB%n",
+                    result.getKey(), nanos.get("page_size"),
+                    memoryBytes.get(result.getKey()) / 1024,
+                    defaultReads ? "writes" : "reads and writes",
+                    nanos.get("file_bytes") / 1024);
+            System.out.printf(Locale.ROOT, "  reads on %s%n", defaultReads
+                    ? "the read connections, with SQLite's default cache and no mmap"
+                    : "the configured connection");
+            for (Map.Entry<String, Long> phase : nanos.entrySet()) {
+                if (!isPhase(phase.getKey())) continue;
+                System.out.printf(Locale.ROOT, "  %-20s %10.1f ms%n",
+                        phase.getKey(), phase.getValue() / 1e6);
+            }
+            System.out.printf(Locale.ROOT, "  %-20s %10.1f ms%n",
+                    "total", totalNanos(nanos) / 1e6);
+        }
+    }
+
+    /**
+     * The profile with the least memory among those within {@link #TOLERANCE_PERCENT}% of
+     * the fastest.
+     */
+    private static String recommend(Map<String, Map<String, Long>> results,
+                                    Map<String, Long> memoryBytes) {
+        long fastest = Long.MAX_VALUE;
+        for (Map<String, Long> nanos : results.values()) {
+            fastest = Math.min(fastest, totalNanos(nanos));
+        }
+        String recommended = null;
+        for (Map.Entry<String, Map<String, Long>> result : results.entrySet()) {
+            long total = totalNanos(result.getValue());
+            if (total * 100 > fastest * (100 + TOLERANCE_PERCENT)) continue;
+            if (recommended == null
+                    || memoryBytes.get(result.getKey()) < memoryBytes.get(recommended)) {
+                recommended = result.getKey();
+            }
+        }
+        return recommended;
+    }
+}
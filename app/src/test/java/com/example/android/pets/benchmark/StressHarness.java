@@ -0,0 +1,470 @@
+package com.example.android.pets.benchmark;
+
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.net.Uri;
+
+import com.example.android.pets.data.MainThreadAccessDetector;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives {@link PetProvider} with N reader and M writer threads at once through a
+ * ContentResolver, to reproduce contention off the device.
+ * <p>
+ * Reports throughput, p50/p99/p999 latency per operation, lock waits (writes and reads
+ * that failed with SQLiteDatabaseLockedException and were retried) and the change
+ * notifications a ContentObserver on the pets received. Fails when a service level
+ * objective is missed.
+ * <p>
+ * Only runs with -Pbenchmark. Options go in -PstressArgs, all optional:
+ * <pre>
+ * --readers=4 --writers=2 --duration-s=10 --rows=100000
+ * --read-mix=pet_id:95,pets:5 --write-mix=insert:20,update:70,delete:10
+ * --hot-fraction=0.1 --hot-share=0.8
+ * --slo=update.p99_ms&lt;=50,pet_id.p999_ms&lt;=20,throughput&gt;=1000
+ * </pre>
+ * Hot keys: a share of hot-share of the operations on existing pets go to the
+ * first hot-fraction of the ids.
+ */
+@RunWith(RobolectricTestRunner.class)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class StressHarness {
+
+    // Operations
+    private static final String PET_ID = "pet_id";
+    private static final String PETS = "pets";
+    private static final String INSERT = "insert";
+    private static final String UPDATE = "update";
+    private static final String DELETE = "delete";
+
+    /**
+     * Rows read by the list query, a screenful or two of the catalog
+     */
+    private static final int LIST_LIMIT = 50;
+
+    /**
+     * Pets per bulk insert while filling the table
+     */
+    private static final int POPULATE_CHUNK = 1000;
+
+    private Map<String, String> mOptions;
+    private int mRows;
+    private double mHotFraction;
+    private double mHotShare;
+    private ContentResolver mResolver;
+
+    private final AtomicLong mMaxId = new AtomicLong();
+    private final AtomicLong mLockWaits = new AtomicLong();
+    private final AtomicLong mNotifications = new AtomicLong();
+    private volatile boolean mRunning = true;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mNotifications.incrementAndGet();
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mOptions = new HashMap<>();
+        for (String arg : System.getProperty("stressArgs", "").trim().split("\\s+")) {
+            if (arg.isEmpty()) continue;
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            int split = arg.indexOf('=');
+            mOptions.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+        mRows = intOption("rows", 100000);
+        mHotFraction = Double.parseDouble(option("hot-fraction", "0.1"));
+        mHotShare = Double.parseDouble(option("hot-share", "0.8"));
+
+        Robolectric.buildContentProvider(PetProvider.class).create(PetContract.CONTENT_AUTHORITY);
+        // The load is meant to run on the test thread, it is not an access to report
+        MainThreadAccessDetector.setEnabled(false);
+        mResolver = RuntimeEnvironment.getApplication().getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.unregisterContentObserver(mObserver);
+    }
+
+    @Test
+    public void objectivesAreMet() throws Exception {
+        populate();
+        mResolver.registerContentObserver(PetEntry.CONTENT_URI, true, mObserver);
+
+        int readers = intOption("readers", 4);
+        int writers = intOption("writers", 2);
+        long durationMillis = intOption("duration-s", 10) * 1000L;
+        Mix readMix = new Mix(option("read-mix", PET_ID + ":95," + PETS + ":5"));
+        Mix writeMix = new Mix(option("write-mix",
+                INSERT + ":20," + UPDATE + ":70," + DELETE + ":10"));
+
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < readers; i++) workers.add(new Worker(readMix, i));
+        for (int i = 0; i < writers; i++) workers.add(new Worker(writeMix, readers + i));
+
+        CountDownLatch done = new CountDownLatch(workers.size());
+        for (Worker worker : workers) {
+            new Thread(() -> {
+                try {
+                    worker.run();
+                } finally {
+                    done.countDown();
+                }
+            }, "stress-" + worker.mSeed).start();
+        }
+        long start = System.nanoTime();
+        Thread.sleep(durationMillis);
+        mRunning = false;
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        // Merge the per thread samples
+        Map<String, Stats> stats = new LinkedHashMap<>();
+        long totalOperations = 0;
+        long changingWrites = 0;
+        for (Worker worker : workers) {
+            if (worker.mFailure != null) throw worker.mFailure;
+            for (Map.Entry<String, Samples> entry : worker.mSamples.entrySet()) {
+                Stats operationStats = stats.get(entry.getKey());
+                if (operationStats == null) {
+                    operationStats = new Stats();
+                    stats.put(entry.getKey(), operationStats);
+                }
+                operationStats.add(entry.getValue());
+                totalOperations += entry.getValue().mCount;
+                changingWrites += entry.getValue().mChanges;
+            }
+        }
+
+        double throughput = totalOperations / seconds;
+        System.out.printf(Locale.ROOT, "%d readers, %d writers, %.1f s, %d rows%n",
+                readers, writers, seconds, mRows);
+        System.out.printf(Locale.ROOT,
+                "throughput %.1f ops/s, lock waits %d, notifications %d for %d changing writes%n",
+                throughput, mLockWaits.get(), mNotifications.get(), changingWrites);
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            Stats operationStats = entry.getValue();
+            operationStats.sort();
+            System.out.printf(Locale.ROOT,
+                    "%-8s %8d ops %10.1f ops/s  p50 %8.3f ms  p99 %8.3f ms  p999 %8.3f ms%n",
+                    entry.getKey(), operationStats.mCount, operationStats.mCount / seconds,
+                    operationStats.percentileMillis(50), operationStats.percentileMillis(99),
+                    operationStats.percentileMillis(99.9));
+        }
+        List<String> missed = checkSlos(stats, throughput);
+        assertTrue("SLO missed: " + missed, missed.isEmpty());
+    }
+
+    /**
+     * Checks every objective of the --slo option, returning the ones that are missed.
+     */
+    private List<String> checkSlos(Map<String, Stats> stats, double throughput) {
+        List<String> missed = new ArrayList<>();
+        String slos = mOptions.get("slo");
+        if (slos == null || slos.isEmpty()) return missed;
+        for (String slo : slos.split(",")) {
+            boolean atMost = slo.contains("<=");
+            String[] parts = slo.split(atMost ? "<=" : ">=");
+            if (parts.length != 2) throw new IllegalArgumentException("Bad SLO " + slo);
+            String metric = parts[0].trim();
+            double limit = Double.parseDouble(parts[1].trim());
+
+            double value;
+            if (metric.equals("throughput")) {
+                value = throughput;
+            } else if (metric.equals("lock_waits")) {
+                value = mLockWaits.get();
+            } else {
+                // <operation>.p50_ms, .p99_ms or .p999_ms
+                int dot = metric.indexOf('.');
+                Stats operationStats = (dot < 0) ? null : stats.get(metric.substring(0, dot));
+                if (operationStats == null) {
+                    throw new IllegalArgumentException("Unknown SLO metric " + metric);
+                }
+                String percentile = metric.substring(dot + 2, metric.length() - 3);
+                value = operationStats.percentileMillis(
+                        percentile.equals("999") ? 99.9 : Double.parseDouble(percentile));
+            }
+            if (atMost ? value > limit : value < limit) {
+                missed.add(String.format(Locale.ROOT, "%s is %.3f", slo, value));
+            }
+        }
+        return missed;
+    }
+
+    private void populate() {
+        Random random = new Random(0);
+        for (int first = 0; first < mRows; first += POPULATE_CHUNK) {
+            ContentValues[] pets = new ContentValues[Math.min(POPULATE_CHUNK, mRows - first)];
+            for (int i = 0; i < pets.length; i++) {
+                pets[i] = pet(random, first + i);
+            }
+            mResolver.bulkInsert(PetEntry.CONTENT_URI, pets);
+        }
+        Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, new String[]{"MAX(_id)"},
+                null, null, null);
+        try {
+            cursor.moveToFirst();
+            mMaxId.set(cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContentValues pet(Random random, long i) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+        values.put(PetEntry.COLUMN_PET_BREED, "Breed " + (i % 40));
+        values.put(PetEntry.COLUMN_PET_GENDER, (int) (i % 3));
+        values.put(PetEntry.COLUMN_PET_WEIGHT, random.nextInt(50));
+        return values;
+    }
+
+    /**
+     * One thread running operations drawn from its mix until the harness stops.
+     */
+    private final class Worker {
+        private final Mix mMix;
+        private final int mSeed;
+        private final Random mRandom;
+        private final Map<String, Samples> mSamples = new HashMap<>();
+        private Exception mFailure;
+
+        Worker(Mix mix, int seed) {
+            mMix = mix;
+            mSeed = seed;
+            mRandom = new Random(seed);
+        }
+
+        void run() {
+            try {
+                while (mRunning) {
+                    String operation = mMix.next(mRandom);
+                    long start = System.nanoTime();
+                    int changed = 0;
+                    switch (operation) {
+                        case PET_ID:
+                            read(ContentUris.withAppendedId(PetEntry.CONTENT_URI, key()),
+                                    null, null, null);
+                            break;
+                        case PETS:
+                            read(PetEntry.CONTENT_URI, PetEntry._ID + ">=?",
+                                    new String[]{String.valueOf(key())},
+                                    PetEntry._ID + " LIMIT " + LIST_LIMIT);
+                            break;
+                        case INSERT:
+                            changed = insert(pet(mRandom, mMaxId.incrementAndGet()));
+                            break;
+                        case UPDATE:
+                            ContentValues values = new ContentValues();
+                            values.put(PetEntry.COLUMN_PET_NAME, "Pet " + mRandom.nextInt());
+                            values.put(PetEntry.COLUMN_PET_WEIGHT, mRandom.nextInt(50));
+                            changed = update(petUri(), values);
+                            break;
+                        case DELETE:
+                            changed = delete(petUri());
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown operation " + operation);
+                    }
+                    Samples samples = mSamples.get(operation);
+                    if (samples == null) {
+                        samples = new Samples();
+                        mSamples.put(operation, samples);
+                    }
+                    samples.add(System.nanoTime() - start, changed > 0);
+                }
+            } catch (Exception e) {
+                mFailure = e;
+                mRunning = false;
+            }
+        }
+
+        /**
+         * Picks an existing id, skewed towards the hot keys.
+         */
+        private long key() {
+            long maxId = mMaxId.get();
+            long hotKeys = Math.max(1, (long) (maxId * mHotFraction));
+            if (mRandom.nextDouble() < mHotShare) {
+                return 1 + (long) (mRandom.nextDouble() * hotKeys);
+            }
+            return 1 + (long) (mRandom.nextDouble() * maxId);
+        }
+
+        private Uri petUri() {
+            return ContentUris.withAppendedId(PetEntry.CONTENT_URI, key());
+        }
+
+        private void read(Uri uri, String selection, String[] selectionArgs, String sortOrder) {
+            while (true) {
+                try {
+                    Cursor cursor = mResolver.query(uri, null, selection, selectionArgs,
+                            sortOrder);
+                    try {
+                        int columns = cursor.getColumnCount();
+                        while (cursor.moveToNext()) {
+                            for (int column = 0; column < columns; column++) {
+                                cursor.getString(column);
+                            }
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    return;
+                } catch (SQLiteDatabaseLockedException e) {
+                    waitForLock();
+                }
+            }
+        }
+
+        private int insert(ContentValues values) {
+            while (true) {
+                try {
+                    return mResolver.insert(PetEntry.CONTENT_URI, values) == null ? 0 : 1;
+                } catch (SQLiteDatabaseLockedException e) {
+                    waitForLock();
+                }
+            }
+        }
+
+        private int update(Uri uri, ContentValues values) {
+            while (true) {
+                try {
+                    return mResolver.update(uri, values, null, null);
+                } catch (SQLiteDatabaseLockedException e) {
+                    waitForLock();
+                }
+            }
+        }
+
+        private int delete(Uri uri) {
+            while (true) {
+                try {
+                    return mResolver.delete(uri, null, null);
+                } catch (SQLiteDatabaseLockedException e) {
+                    waitForLock();
+                }
+            }
+        }
+
+        /**
+         * Counts a lock wait and backs off briefly.
+         */
+        private void waitForLock() {
+            mLockWaits.incrementAndGet();
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Weighted choice of operations, parsed from "name:weight,name:weight".
+     */
+    private static final class Mix {
+        private final String[] mOperations;
+        private final int[] mCumulativeWeights;
+
+        Mix(String spec) {
+            String[] entries = spec.split(",");
+            mOperations = new String[entries.length];
+            mCumulativeWeights = new int[entries.length];
+            int total = 0;
+            for (int i = 0; i < entries.length; i++) {
+                String[] parts = entries[i].split(":");
+                mOperations[i] = parts[0].trim();
+                total += Integer.parseInt(parts[1].trim());
+                mCumulativeWeights[i] = total;
+            }
+        }
+
+        String next(Random random) {
+            int value = random.nextInt(mCumulativeWeights[mCumulativeWeights.length - 1]);
+            int i = 0;
+            while (value >= mCumulativeWeights[i]) i++;
+            return mOperations[i];
+        }
+    }
+
+    /**
+     * Latencies of one operation on one thread.
+     */
+    private static final class Samples {
+        long[] mLatencies = new long[1024];
+        int mCount;
+        long mChanges;
+
+        void add(long latency, boolean changed) {
+            if (mCount == mLatencies.length) {
+                mLatencies = Arrays.copyOf(mLatencies, mCount * 2);
+            }
+            mLatencies[mCount++] = latency;
+            if (changed) mChanges++;
+        }
+    }
+
+    /**
+     * Latencies of one operation on all threads.
+     */
+    private static final class Stats {
+        long[] mLatencies = new long[0];
+        int mCount;
+
+        void add(Samples samples) {
+            mLatencies = Arrays.copyOf(mLatencies, mCount + samples.mCount);
+            System.arraycopy(samples.mLatencies, 0, mLatencies, mCount, samples.mCount);
+            mCount += samples.mCount;
+        }
+
+        void sort() {
+            Arrays.sort(mLatencies, 0, mCount);
+        }
+
+        double percentileMillis(double percentile) {
+            if (mCount == 0) return 0;
+            int rank = (int) Math.ceil(percentile / 100.0 * mCount) - 1;
+            return mLatencies[Math.max(0, rank)] / 1e6;
+        }
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = mOptions.get(name);
+        return (value == null) ? defaultValue : value;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, String.valueOf(defaultValue)));
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.android.pets.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Checks that the breed counts kept by triggers match a GROUP BY over the pets.
+ */
+@RunWith(RobolectricTestRunner.class)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class BreedCountsTest {
+
+    private static final String[] BREEDS = {"Tabby", "Siamese", "Beagle", ""};
+    private static final int PET_COUNT = 200;
+
+    private Context mContext;
+    private ContentResolver mResolver;
+    private PetDbHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        Robolectric.buildContentProvider(PetProvider.class).create(PetContract.CONTENT_AUTHORITY);
+        mResolver = mContext.getContentResolver();
+        mDbHelper = new PetDbHelper(mContext);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+    }
+
+    @Test
+    public void countsFollowInsertsUpdatesAndDeletes() {
+        ContentValues[] pets = new ContentValues[PET_COUNT];
+        for (int i = 0; i < PET_COUNT; i++) {
+            pets[i] = new ContentValues();
+            pets[i].put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+            pets[i].put(PetEntry.COLUMN_PET_BREED, BREEDS[i % BREEDS.length]);
+            pets[i].put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+            pets[i].put(PetEntry.COLUMN_PET_WEIGHT, 4);
+        }
+        assertEquals(PET_COUNT, mResolver.bulkInsert(PetEntry.CONTENT_URI, pets));
+        assertEquals(grouped(), breeds());
+
+        // Every Beagle becomes a Poodle, a new breed
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_BREED, "Poodle");
+        mResolver.update(PetEntry.CONTENT_URI, values, PetEntry.COLUMN_PET_BREED + "=?",
+                new String[]{"Beagle"});
+        // An update that keeps the breed
+        values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_BREED, "Tabby");
+        mResolver.update(ContentUris.withAppendedId(PetEntry.CONTENT_URI, 1), values,
+                null, null);
+        // Every Siamese is deleted, the breed goes with them
+        mResolver.delete(PetEntry.CONTENT_URI, PetEntry.COLUMN_PET_BREED + "=?",
+                new String[]{"Siamese"});
+
+        Map<String, Integer> breeds = breeds();
+        assertEquals(grouped(), breeds);
+        assertFalse(breeds.containsKey("Beagle"));
+        assertFalse(breeds.containsKey("Siamese"));
+        assertEquals(PET_COUNT / BREEDS.length, (int) breeds.get("Poodle"));
+    }
+
+    @Test
+    public void upgradedDatabaseIsCountedOnce() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        for (int i = 0; i < PET_COUNT; i++) {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+            values.put(PetEntry.COLUMN_PET_BREED, BREEDS[i % BREEDS.length]);
+            values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, 4);
+            database.insertOrThrow(PetEntry.TABLE_NAME, null, values);
+        }
+        // The state right after the upgrade to version 9 of a database with pets
+        database.execSQL("DELETE FROM " + BreedCounts.TABLE_NAME);
+        PetMigrationRunner.schedule(database, BreedCounts.SEED_MIGRATION);
+        assertFalse(BreedCounts.isSeeded(database));
+        // The provider groups the pets until they are counted
+        assertEquals(grouped(), breeds());
+
+        BreedCounts.seed(database);
+        assertTrue(BreedCounts.isSeeded(database));
+        assertEquals(grouped(), counts(database));
+        assertEquals(grouped(), breeds());
+    }
+
+    private Map<String, Integer> breeds() {
+        return read(mResolver.query(BreedEntry.CONTENT_URI, null, null, null, null));
+    }
+
+    private Map<String, Integer> counts(SQLiteDatabase database) {
+        return read(database.rawQuery("SELECT " + BreedEntry.COLUMN_BREED + ", "
+                + BreedEntry.COLUMN_COUNT + " FROM " + BreedCounts.TABLE_NAME, null));
+    }
+
+    private Map<String, Integer> grouped() {
+        return read(mDbHelper.getReadableDatabase().rawQuery("SELECT "
+                + PetEntry.COLUMN_PET_BREED + ", COUNT(*) FROM " + PetEntry.TABLE_NAME
+                + " GROUP BY " + PetEntry.COLUMN_PET_BREED, null));
+    }
+
+    private static Map<String, Integer> read(Cursor cursor) {
+        Map<String, Integer> counts = new TreeMap<>();
+        try {
+            while (cursor.moveToNext()) {
+                counts.put(cursor.getString(0), cursor.getInt(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return counts;
+    }
+}
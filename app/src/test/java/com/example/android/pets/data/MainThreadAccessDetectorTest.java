@@ -0,0 +1,104 @@
+package com.example.android.pets.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that provider work is reported on the main looper and only there.
+ */
+@RunWith(RobolectricTestRunner.class)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class MainThreadAccessDetectorTest {
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(PetProvider.class).create(PetContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.getApplication().getContentResolver();
+        MainThreadAccessDetector.setEnabled(true);
+        MainThreadAccessDetector.clear();
+    }
+
+    @After
+    public void tearDown() {
+        MainThreadAccessDetector.setEnabled(false);
+        MainThreadAccessDetector.clear();
+    }
+
+    @Test
+    public void queryOnMainLooperIsReported() {
+        query();
+
+        boolean reported = false;
+        for (MainThreadAccessDetector.Violation violation
+                : MainThreadAccessDetector.getViolations()) {
+            if ("query".equals(violation.operation)
+                    && PetEntry.CONTENT_URI.equals(violation.uri)) {
+                reported = true;
+            }
+        }
+        assertTrue("Query on the main looper not reported: "
+                + MainThreadAccessDetector.getViolations(), reported);
+    }
+
+    @Test
+    public void openDatabaseIsNotReportedAgain() {
+        query();
+        MainThreadAccessDetector.clear();
+        query();
+
+        for (MainThreadAccessDetector.Violation violation
+                : MainThreadAccessDetector.getViolations()) {
+            assertFalse("Open database reported: " + violation,
+                    violation.operation.startsWith("PetDbHelper.open"));
+        }
+    }
+
+    @Test
+    public void queryOnBackgroundThreadIsNotReported() throws InterruptedException {
+        final AtomicReference<RuntimeException> error = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                query();
+            } catch (RuntimeException e) {
+                error.set(e);
+            }
+        }, "test-query");
+        thread.start();
+        thread.join();
+        if (error.get() != null) throw error.get();
+
+        List<MainThreadAccessDetector.Violation> violations =
+                MainThreadAccessDetector.getViolations();
+        assertEquals("Reported " + violations, 0, violations.size());
+    }
+
+    private void query() {
+        Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, PetEntry.CATALOG_PROJECTION,
+                null, null, null);
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
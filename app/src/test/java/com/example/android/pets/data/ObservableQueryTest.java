@@ -0,0 +1,204 @@
+package com.example.android.pets.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that {@link ObservableQuery} conflates change notifications and cancels and drops
+ * the queries of a replaced selection.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ObservableQueryTest {
+
+    private static final String AUTHORITY = "com.example.android.pets.test";
+    private static final Uri URI = Uri.parse("content://" + AUTHORITY + "/items");
+
+    private static final int NOTIFICATIONS = 50;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Provider that counts its queries and returns the number and selection of each query
+     * as the only row, even when the query was cancelled. A query can be held until the
+     * test releases it.
+     */
+    public static class CountingProvider extends ContentProvider {
+
+        static final AtomicInteger sQueries = new AtomicInteger();
+        static final List<CancellationSignal> sSignals =
+                Collections.synchronizedList(new ArrayList<>());
+        static volatile CountDownLatch sEntered;
+        static volatile CountDownLatch sRelease;
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder) {
+            return query(uri, projection, selection, selectionArgs, sortOrder, null);
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder,
+                            CancellationSignal cancellationSignal) {
+            int query = sQueries.incrementAndGet();
+            sSignals.add(cancellationSignal);
+            CountDownLatch entered = sEntered;
+            CountDownLatch release = sRelease;
+            if (entered != null) entered.countDown();
+            if (release != null) {
+                try {
+                    release.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            MatrixCursor cursor = new MatrixCursor(new String[]{"query", "selection"});
+            cursor.addRow(new Object[]{query, selection});
+            return cursor;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            return null;
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                          String[] selectionArgs) {
+            return 0;
+        }
+    }
+
+    private ContentResolver mResolver;
+    private final List<Integer> mResults = new ArrayList<>();
+    private final List<String> mSelections = new ArrayList<>();
+    private ObservableQuery mQuery;
+
+    @Before
+    public void setUp() {
+        CountingProvider.sQueries.set(0);
+        CountingProvider.sSignals.clear();
+        CountingProvider.sEntered = null;
+        CountingProvider.sRelease = null;
+        Robolectric.buildContentProvider(CountingProvider.class).create(AUTHORITY);
+        mResolver = RuntimeEnvironment.getApplication().getContentResolver();
+        mQuery = new ObservableQuery(mResolver, URI, null, null, null, null, cursor -> {
+            if (cursor != null && cursor.moveToFirst()) {
+                mResults.add(cursor.getInt(0));
+                mSelections.add(cursor.getString(1));
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        CountDownLatch release = CountingProvider.sRelease;
+        if (release != null) release.countDown();
+        mQuery.stop();
+    }
+
+    @Test
+    public void notificationsDuringQueryAreConflated() throws InterruptedException {
+        CountingProvider.sEntered = new CountDownLatch(1);
+        CountingProvider.sRelease = new CountDownLatch(1);
+        mQuery.start();
+        assertTrue("First query did not start",
+                CountingProvider.sEntered.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        // The observer is called synchronously, while the first query is still held
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            mResolver.notifyChange(URI, null);
+        }
+        CountingProvider.sRelease.countDown();
+        awaitIdle();
+
+        int queries = CountingProvider.sQueries.get();
+        assertTrue("Ran " + queries + " queries for " + NOTIFICATIONS + " notifications",
+                queries <= 2);
+        assertTrue("No result delivered", !mResults.isEmpty());
+        assertEquals("The last result is not the last query",
+                queries, (int) mResults.get(mResults.size() - 1));
+    }
+
+    @Test
+    public void replacedSelectionIsCancelledAndDropped() throws InterruptedException {
+        mQuery.start();
+        awaitIdle();
+
+        CountingProvider.sEntered = new CountDownLatch(1);
+        CountingProvider.sRelease = new CountDownLatch(1);
+        mQuery.setSelection("first", null);
+        assertTrue("Query of the first selection did not start",
+                CountingProvider.sEntered.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        CancellationSignal firstSignal =
+                CountingProvider.sSignals.get(CountingProvider.sSignals.size() - 1);
+        mQuery.setSelection("second", null);
+        assertTrue("Query of the first selection was not cancelled",
+                firstSignal != null && firstSignal.isCanceled());
+
+        // The held query still returns its cursor, which must be dropped
+        CountingProvider.sRelease.countDown();
+        awaitIdle();
+
+        assertFalse("Result of the replaced selection was delivered",
+                mSelections.contains("first"));
+        assertEquals("second", mSelections.get(mSelections.size() - 1));
+    }
+
+    /**
+     * Runs the main looper until the last query's result was delivered and no other query
+     * started for a while.
+     */
+    private void awaitIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        int stableRounds = 0;
+        while (System.currentTimeMillis() < deadline && stableRounds < 20) {
+            Thread.sleep(10);
+            shadowOf(Looper.getMainLooper()).idle();
+            int queries = CountingProvider.sQueries.get();
+            boolean delivered = !mResults.isEmpty()
+                    && mResults.get(mResults.size() - 1) == queries;
+            stableRounds = delivered ? stableRounds + 1 : 0;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.android.pets.data;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.ArchiveEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.SQLiteMode;
+
+/**
+ * Checks that a move to the archive killed between its steps loses no pet and moves every
+ * pet exactly once when it is finished on the next run.
+ */
+@RunWith(RobolectricTestRunner.class)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class PetArchiveTest {
+
+    private static final String DATABASE_NAME = "archive-test.db";
+    private static final int PET_COUNT = 1200;
+    // Every tenth pet is still available, the others were adopted long ago
+    private static final int COLD_PET_COUNT = PET_COUNT - PET_COUNT / 10;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mContext.deleteDatabase(PetArchive.DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(DATABASE_NAME);
+        mContext.deleteDatabase(PetArchive.DATABASE_NAME);
+    }
+
+    @Test
+    public void moveKilledAfterTheCopyIsFinishedOnTheNextRun() {
+        PetDbHelper dbHelper = new PetDbHelper(mContext, DATABASE_NAME);
+        insertPets(dbHelper.getWritableDatabase());
+
+        // The process dies right after the copy of the first batch committed
+        assertEquals(PetArchive.BATCH_SIZE, new PetArchive(mContext, dbHelper).copyNextBatch());
+        assertEquals(PET_COUNT, count(dbHelper.getReadableDatabase(), null));
+        long firstId = firstId(dbHelper.getReadableDatabase());
+        dbHelper.close();
+
+        // A copied pet changes before the next run
+        dbHelper = new PetDbHelper(mContext, DATABASE_NAME);
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 99);
+        dbHelper.getWritableDatabase().update(PetEntry.TABLE_NAME, values,
+                PetEntry._ID + "=?", new String[]{String.valueOf(firstId)});
+
+        PetArchive archive = new PetArchive(mContext, dbHelper);
+        PetArchive.Result result = archive.archive(Long.MAX_VALUE);
+
+        assertEquals(COLD_PET_COUNT, result.rowsMoved);
+        SQLiteDatabase hot = dbHelper.getReadableDatabase();
+        SQLiteDatabase archived = archive.getReadableDatabase();
+        assertEquals(PET_COUNT - COLD_PET_COUNT, count(hot, null));
+        assertEquals(0, count(hot, PetEntry.COLUMN_PET_STATUS + "=" + PetEntry.STATUS_ADOPTED));
+        assertEquals(COLD_PET_COUNT, count(archived, null));
+        assertEquals("The changed pet was archived with a stale copy", 1,
+                count(archived, PetEntry._ID + "=" + firstId
+                        + " AND " + PetEntry.COLUMN_PET_WEIGHT + "=99"));
+        dbHelper.close();
+    }
+
+    private static void insertPets(SQLiteDatabase database) {
+        long adoptedAt = System.currentTimeMillis() - 2 * ArchiveEntry.ARCHIVE_AFTER_MILLIS;
+        database.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < PET_COUNT; i++) {
+                boolean available = (i % 10 == 0);
+                values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+                values.put(PetEntry.COLUMN_PET_BREED, "Tabby");
+                values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+                values.put(PetEntry.COLUMN_PET_WEIGHT, i % 40);
+                values.put(PetEntry.COLUMN_PET_STATUS,
+                        available ? PetEntry.STATUS_AVAILABLE : PetEntry.STATUS_ADOPTED);
+                if (available) {
+                    values.putNull(PetEntry.COLUMN_PET_ADOPTED_AT);
+                } else {
+                    values.put(PetEntry.COLUMN_PET_ADOPTED_AT, adoptedAt);
+                }
+                database.insertOrThrow(PetEntry.TABLE_NAME, null, values);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private static long firstId(SQLiteDatabase database) {
+        Cursor cursor = database.rawQuery("SELECT MIN(" + PetEntry._ID + ") FROM "
+                + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_STATUS + "="
+                + PetEntry.STATUS_ADOPTED, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static int count(SQLiteDatabase database, String selection) {
+        Cursor cursor = database.rawQuery("SELECT COUNT(*) FROM " + PetEntry.TABLE_NAME
+                + (selection == null ? "" : " WHERE " + selection), null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.WeighInEntry;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Shelter databases and app state in the states tests and benchmarks start from, set up
+ * through the package-private parts of the data layer that the provider doesn't expose.
+ * <p>
+ * Create the provider after {@link #createDatabase}, and shut it down first when it is
+ * already running.
+ */
+public final class PetFixtures {
+
+    private PetFixtures() {
+    }
+
+    /**
+     * Deletes the default shelter and its archive and creates an empty shelter database with
+     * the named storage profile, which the next provider selects. Its one-time rebuild has
+     * already run, so no idle maintenance window rebuilds it while something is measured.
+     *
+     * @return the page size of the new file.
+     */
+    public static long createDatabase(Context context, String storageProfile) {
+        context.deleteDatabase(PetDbHelper.DATABASE_NAME);
+        context.deleteDatabase(PetArchive.DATABASE_NAME);
+        StorageProfile.setSelected(context, storageProfile);
+        PetDbHelper dbHelper = new PetDbHelper(context, PetDbHelper.DATABASE_NAME,
+                StorageProfile.select(context));
+        try {
+            PetMigrationRunner migrationRunner =
+                    new PetMigrationRunner(dbHelper, context.getContentResolver());
+            migrationRunner.runPending();
+            migrationRunner.rebuildIfNeeded();
+            return dbHelper.getReadableDatabase().getPageSize();
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    /**
+     * Returns the bytes of page cache and memory map of the selected storage profile.
+     */
+    public static long storageMemoryBytes(Context context) {
+        StorageProfile profile = StorageProfile.select(context);
+        return profile.cacheKib * 1024L + profile.mmapBytes;
+    }
+
+    /**
+     * Returns whether the selected storage profile reads through the read connections of
+     * write-ahead log mode, which don't get its cache and mmap sizes.
+     */
+    public static boolean readsOnReadConnections(Context context) {
+        return StorageProfile.select(context).readConnections;
+    }
+
+    /**
+     * Returns the page cache size of the selected storage profile in bytes.
+     */
+    public static long pageCacheBytes(Context context) {
+        return StorageProfile.select(context).cacheKib * 1024L;
+    }
+
+    /**
+     * Appends a weigh-in per day for the pets with ids 1 to pets, over the days before
+     * endMillis, each pet in its own transaction. The weigh-ins of the provider are always
+     * taken now, so a history is only written directly. The rollup trigger keeps the
+     * summaries up to date as it would on the device.
+     *
+     * @return the number of weigh-ins appended.
+     */
+    public static int appendWeighIns(Context context, int pets, int days, long endMillis,
+                                     Random random) {
+        long start = endMillis - days * WeighInHistory.DAY_MILLIS;
+        PetDbHelper dbHelper = new PetDbHelper(context);
+        int weighIns = 0;
+        try {
+            SQLiteDatabase database = dbHelper.getWritableDatabase();
+            ContentValues values = new ContentValues();
+            for (int pet = 1; pet <= pets; pet++) {
+                int weight = 5 + random.nextInt(40);
+                database.beginTransaction();
+                try {
+                    for (int day = 0; day < days; day++) {
+                        weight = Math.max(1, weight + random.nextInt(3) - 1);
+                        values.put(WeighInEntry.COLUMN_PET_ID, pet);
+                        values.put(WeighInEntry.COLUMN_TIMESTAMP, start
+                                + day * WeighInHistory.DAY_MILLIS
+                                + random.nextInt((int) WeighInHistory.DAY_MILLIS));
+                        values.put(WeighInEntry.COLUMN_WEIGHT, weight);
+                        database.insertOrThrow(WeighInHistory.TABLE_NAME, null, values);
+                        weighIns++;
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+            }
+        } finally {
+            dbHelper.close();
+        }
+        return weighIns;
+    }
+
+    /**
+     * Returns the bytes of the pages of the default shelter that hold data, the free pages
+     * not counted.
+     */
+    public static long usedBytes(Context context) {
+        PetDbHelper dbHelper = new PetDbHelper(context);
+        try {
+            SQLiteDatabase database = dbHelper.getReadableDatabase();
+            return (pragma(database, "PRAGMA page_count")
+                    - pragma(database, "PRAGMA freelist_count")) * database.getPageSize();
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    /**
+     * Returns the size of the archive database file.
+     */
+    public static long archiveBytes(Context context) {
+        return context.getDatabasePath(PetArchive.DATABASE_NAME).length();
+    }
+
+    /**
+     * Deletes the catalog snapshot, so the next catalog starts like the first one after
+     * an install.
+     */
+    public static void deleteCatalogSnapshot(Context context) {
+        File file = new File(context.getFilesDir(), CatalogSnapshot.FILE_NAME);
+        if (file.exists() && !file.delete()) {
+            throw new IllegalStateException("Can't delete " + file);
+        }
+    }
+
+    /**
+     * Forgets the startup times, so the next start of the provider is measured as a new
+     * process.
+     */
+    public static void resetStartupMetrics() {
+        StartupMetrics.reset();
+    }
+
+    private static long pragma(SQLiteDatabase database, String sql) {
+        Cursor cursor = database.rawQuery(sql, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
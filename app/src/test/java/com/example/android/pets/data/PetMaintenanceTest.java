@@ -0,0 +1,122 @@
+package com.example.android.pets.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.SQLiteMode;
+
+/**
+ * Checks that the pages freed by deleted pets are handed back once the database was
+ * switched to incremental auto-vacuum, and that the maintenance thread stops on quit.
+ */
+@RunWith(RobolectricTestRunner.class)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class PetMaintenanceTest {
+
+    private static final String DATABASE_NAME = "maintenance-test.db";
+    private static final int PET_COUNT = 5000;
+
+    private Context mContext;
+    private PetDbHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new PetDbHelper(mContext, DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void vacuumIsSkippedUntilTheMigrationRan() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        assertEquals(-1, PetMaintenance.vacuum(database, SystemClock.uptimeMillis() + 1000));
+    }
+
+    @Test
+    public void freePagesGoDownAfterDeletes() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        new PetMigrationRunner(mDbHelper, mContext.getContentResolver()).rebuildIfNeeded();
+        assertEquals("2", pragma(database, "PRAGMA auto_vacuum"));
+
+        insertPets(database);
+        long pagesBefore = Long.parseLong(pragma(database, "PRAGMA page_count"));
+        database.delete(PetEntry.TABLE_NAME, null, null);
+        long freePages = Long.parseLong(pragma(database, "PRAGMA freelist_count"));
+        assertTrue("Deleting the pets freed no page", freePages > 0);
+
+        // SystemClock does not advance under Robolectric, so the deadline is never reached
+        long freePagesLeft = PetMaintenance.vacuum(database, SystemClock.uptimeMillis() + 1000);
+        assertEquals(0, freePagesLeft);
+        assertEquals(0, Long.parseLong(pragma(database, "PRAGMA freelist_count")));
+        assertTrue("The file did not shrink",
+                Long.parseLong(pragma(database, "PRAGMA page_count")) < pagesBefore);
+    }
+
+    @Test
+    public void quitStopsTheMaintenanceThread() {
+        int threadsBefore = maintenanceThreads();
+        PetArchive archive = new PetArchive(mContext, mDbHelper);
+        PetMaintenance maintenance = new PetMaintenance(mContext, mDbHelper, archive);
+        assertEquals(threadsBefore + 1, maintenanceThreads());
+
+        // Enough writes to schedule a check, which quit drops
+        maintenance.onRowsWritten(10000);
+        maintenance.quit();
+        archive.close();
+        assertEquals(threadsBefore, maintenanceThreads());
+    }
+
+    private static int maintenanceThreads() {
+        int threads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && "pet-maintenance".equals(thread.getName())) threads++;
+        }
+        return threads;
+    }
+
+    private static void insertPets(SQLiteDatabase database) {
+        database.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < PET_COUNT; i++) {
+                values.put(PetEntry.COLUMN_PET_NAME, "Pet with a rather long name " + i);
+                values.put(PetEntry.COLUMN_PET_BREED, "Tabby");
+                values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+                values.put(PetEntry.COLUMN_PET_WEIGHT, i % 40);
+                database.insertOrThrow(PetEntry.TABLE_NAME, null, values);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private static String pragma(SQLiteDatabase database, String sql) {
+        Cursor cursor = database.rawQuery(sql, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.android.pets.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that a backfill interrupted between batches resumes from its checkpoint on the
+ * next start, rewriting every row exactly once, and that the rebuild of the file is left
+ * to maintenance.
+ */
+@RunWith(RobolectricTestRunner.class)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class PetMigrationRunnerTest {
+
+    private static final String DATABASE_NAME = "migration-test.db";
+    private static final int PET_COUNT = 1200;
+
+    /**
+     * Adds 1 to the weight of every pet of a batch, so a pet rewritten twice ends up with
+     * a weight of 2. Can fail right after rewriting a given batch, like a killed process.
+     */
+    private static final class IncrementWeights implements PetMigrationRunner.Backfill {
+
+        final List<Long> mFromIds = new ArrayList<>();
+        private final int mFailingBatch;
+
+        IncrementWeights(int failingBatch) {
+            mFailingBatch = failingBatch;
+        }
+
+        @Override
+        public String getName() {
+            return "test_increment_weights";
+        }
+
+        @Override
+        public int apply(SQLiteDatabase database, long fromId, long toId) {
+            mFromIds.add(fromId);
+            SQLiteStatement statement = database.compileStatement("UPDATE "
+                    + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_WEIGHT + " = "
+                    + PetEntry.COLUMN_PET_WEIGHT + " + 1"
+                    + " WHERE " + PetEntry._ID + " > ? AND " + PetEntry._ID + " <= ?");
+            try {
+                statement.bindLong(1, fromId);
+                statement.bindLong(2, toId);
+                int rows = statement.executeUpdateDelete();
+                if (mFromIds.size() == mFailingBatch) {
+                    throw new IllegalStateException("Killed in batch " + mFailingBatch);
+                }
+                return rows;
+            } finally {
+                statement.close();
+            }
+        }
+    }
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void interruptedBackfillResumesFromCheckpoint() {
+        IncrementWeights backfill = new IncrementWeights(2);
+        PetDbHelper dbHelper = new PetDbHelper(mContext, DATABASE_NAME);
+        SQLiteDatabase database = dbHelper.getWritableDatabase();
+        insertPets(database);
+        PetMigrationRunner.schedule(database, backfill);
+
+        // The first batch commits, the second one fails and rolls back
+        new PetMigrationRunner(dbHelper, mContext.getContentResolver(), backfill)
+                .runPending();
+        long checkpoint = PetMigrationRunner.readCheckpoint(database, backfill);
+        assertEquals(firstId(database) - 1 + PetMigrationRunner.BATCH_SIZE, checkpoint);
+        dbHelper.close();
+
+        // Next start, on a new helper of the same file
+        IncrementWeights resumed = new IncrementWeights(0);
+        dbHelper = new PetDbHelper(mContext, DATABASE_NAME);
+        database = dbHelper.getWritableDatabase();
+        new PetMigrationRunner(dbHelper, mContext.getContentResolver(), resumed)
+                .runPending();
+
+        assertEquals(Long.valueOf(checkpoint), resumed.mFromIds.get(0));
+        assertEquals(-1, PetMigrationRunner.readCheckpoint(database, resumed));
+        Cursor cursor = database.rawQuery("SELECT " + PetEntry.COLUMN_PET_WEIGHT
+                + ", COUNT(*) FROM " + PetEntry.TABLE_NAME
+                + " GROUP BY " + PetEntry.COLUMN_PET_WEIGHT, null);
+        try {
+            assertEquals("Pets rewritten more or less than once", 1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(1, cursor.getInt(0));
+            assertEquals(PET_COUNT, cursor.getInt(1));
+        } finally {
+            cursor.close();
+            dbHelper.close();
+        }
+    }
+
+    @Test
+    public void runPendingLeavesTheRebuildToMaintenance() {
+        PetDbHelper dbHelper = new PetDbHelper(mContext, DATABASE_NAME);
+        try {
+            SQLiteDatabase database = dbHelper.getWritableDatabase();
+            insertPets(database);
+            PetMigrationRunner migrationRunner =
+                    new PetMigrationRunner(dbHelper, mContext.getContentResolver());
+
+            migrationRunner.runPending();
+            assertTrue(migrationRunner.needsRebuild());
+            assertEquals("0", pragma(database, "PRAGMA auto_vacuum"));
+
+            migrationRunner.rebuildIfNeeded();
+            assertFalse(migrationRunner.needsRebuild());
+            assertEquals("2", pragma(database, "PRAGMA auto_vacuum"));
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    private static String pragma(SQLiteDatabase database, String sql) {
+        Cursor cursor = database.rawQuery(sql, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void insertPets(SQLiteDatabase database) {
+        database.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < PET_COUNT; i++) {
+                values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+                values.put(PetEntry.COLUMN_PET_BREED, "Tabby");
+                values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+                values.put(PetEntry.COLUMN_PET_WEIGHT, 0);
+                database.insertOrThrow(PetEntry.TABLE_NAME, null, values);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private static long firstId(SQLiteDatabase database) {
+        Cursor cursor = database.rawQuery("SELECT MIN(" + PetEntry._ID + ") FROM "
+                + PetEntry.TABLE_NAME, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
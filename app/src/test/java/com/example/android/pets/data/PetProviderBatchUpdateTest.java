@@ -0,0 +1,105 @@
+package com.example.android.pets.data;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the set-based batch update of {@link PetEntry#METHOD_BATCH_UPDATE}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class PetProviderBatchUpdateTest {
+
+    private static final int PET_COUNT = 500;
+
+    private ContentResolver mResolver;
+    private final AtomicInteger mNotifications = new AtomicInteger();
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mNotifications.incrementAndGet();
+        }
+    };
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(PetProvider.class).create(PetContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.getApplication().getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.unregisterContentObserver(mObserver);
+    }
+
+    @Test
+    public void batchUpdateChangesEveryPetAndNotifiesOnce() {
+        // One more pet than updated, deleted again so its id is stale
+        ContentValues[] pets = new ContentValues[PET_COUNT + 1];
+        for (int i = 0; i < pets.length; i++) {
+            pets[i] = new ContentValues();
+            pets[i].put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+            pets[i].put(PetEntry.COLUMN_PET_BREED, "Tabby");
+            pets[i].put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+            pets[i].put(PetEntry.COLUMN_PET_WEIGHT, 4);
+        }
+        assertEquals(pets.length, mResolver.bulkInsert(PetEntry.CONTENT_URI, pets));
+        long[] ids = readIds();
+        assertEquals(pets.length, ids.length);
+        long staleId = ids[ids.length - 1];
+        assertEquals(1, mResolver.delete(
+                ContentUris.withAppendedId(PetEntry.CONTENT_URI, staleId), null, null));
+
+        mResolver.registerContentObserver(PetEntry.CONTENT_URI, true, mObserver);
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_BREED, "Siamese");
+        Bundle extras = new Bundle();
+        extras.putLongArray(PetEntry.EXTRA_IDS, ids);
+        extras.putParcelable(PetEntry.EXTRA_VALUES, values);
+        Bundle result = mResolver.call(PetEntry.CONTENT_URI, PetEntry.METHOD_BATCH_UPDATE,
+                null, extras);
+
+        assertEquals(PET_COUNT, result.getInt(PetEntry.EXTRA_ROWS));
+        assertEquals("Change notifications", 1, mNotifications.get());
+        Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, new String[]{PetEntry._ID},
+                PetEntry.COLUMN_PET_BREED + "=?", new String[]{"Siamese"}, null);
+        try {
+            assertEquals(PET_COUNT, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long[] readIds() {
+        Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, new String[]{PetEntry._ID},
+                null, null, PetEntry._ID);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.android.pets.data;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that the merge of the shelters sorts text in the order SQLite sorts it within
+ * each shelter.
+ */
+@RunWith(RobolectricTestRunner.class)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class ShelterPartitionsTest {
+
+    // ASCII and Latin-1 letters in both cases, the characters between 'Z' and 'a', and a
+    // character above the surrogates and one beyond them, which UTF-16 order swaps
+    private static final List<String> NAMES = Arrays.asList(
+            "abc", "ABD", "Zeta", "alpha", "\u00c9cole", "\u00e9cole", "_x", "[y",
+            "\ufffd", "\ud83d\ude00", "ab", "");
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDatabase = SQLiteDatabase.create(null);
+        mDatabase.execSQL("CREATE TABLE names (name TEXT)");
+        ContentValues values = new ContentValues();
+        for (String name : NAMES) {
+            values.put("name", name);
+            mDatabase.insert("names", null, values);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void binaryTextIsSortedLikeSqlite() {
+        List<String> sorted = new ArrayList<>(NAMES);
+        sorted.sort((a, b) -> ShelterPartitions.compareText(a, b, false));
+        assertEquals(sortedBySqlite("BINARY"), sorted);
+    }
+
+    @Test
+    public void noCaseTextIsSortedLikeSqlite() {
+        List<String> sorted = new ArrayList<>(NAMES);
+        sorted.sort((a, b) -> ShelterPartitions.compareText(a, b, true));
+        assertEquals(sortedBySqlite("NOCASE"), sorted);
+    }
+
+    private List<String> sortedBySqlite(String collation) {
+        // The rowid breaks ties like the stable sort of the list does
+        Cursor cursor = mDatabase.rawQuery(
+                "SELECT name FROM names ORDER BY name COLLATE " + collation + ", rowid", null);
+        try {
+            List<String> names = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+            return names;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.android.pets.data;
+
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Looper;
+
+import com.example.android.pets.CatalogActivity;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that a cold start of the catalog draws its first list frame within
+ * {@link StartupMetrics#FIRST_LIST_FRAME_BUDGET_MILLIS}.
+ * <p>
+ * The clock of Robolectric only moves when the test advances it, so the time is taken with
+ * System.nanoTime from the creation of the provider, which is where a real process starts
+ * measuring. The first start of the test process loads the resources and classes and is not
+ * measured. The catalog snapshot it saves is deleted before the measured start, so the first
+ * list frame of that start comes from the database, as after an install or an upgrade.
+ */
+@RunWith(RobolectricTestRunner.class)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class StartupMetricsTest {
+
+    private static final int PET_COUNT = 1000;
+    private static final long TIMEOUT_MILLIS = 10000;
+    private static final Duration FRAME = Duration.ofMillis(16);
+
+    private Context mContext;
+    private PetProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        StartupMetrics.reset();
+        mProvider = Robolectric.buildContentProvider(PetProvider.class)
+                .create(PetContract.CONTENT_AUTHORITY).get();
+        ContentValues[] pets = new ContentValues[PET_COUNT];
+        for (int i = 0; i < PET_COUNT; i++) {
+            pets[i] = new ContentValues();
+            pets[i].put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+            pets[i].put(PetEntry.COLUMN_PET_BREED, "Tabby");
+            pets[i].put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+            pets[i].put(PetEntry.COLUMN_PET_WEIGHT, 4);
+        }
+        mContext.getContentResolver().bulkInsert(PetEntry.CONTENT_URI, pets);
+    }
+
+    @After
+    public void tearDown() {
+        if (mProvider != null) mProvider.shutdown();
+        StartupMetrics.reset();
+    }
+
+    @Test
+    public void firstListFrameIsWithinBudget() throws InterruptedException {
+        // Warm-up start. It saves a snapshot in the background, which is awaited so it
+        // can't be written after it was deleted.
+        ActivityController<CatalogActivity> activity =
+                Robolectric.buildActivity(CatalogActivity.class).setup();
+        awaitFirstListFrame();
+        awaitSnapshot();
+        activity.pause().stop().destroy();
+        mProvider.shutdown();
+        PetFixtures.deleteCatalogSnapshot(mContext);
+
+        // Cold start of a new process, drawing the list from the database
+        StartupMetrics.reset();
+        long start = System.nanoTime();
+        mProvider = Robolectric.buildContentProvider(PetProvider.class)
+                .create(PetContract.CONTENT_AUTHORITY).get();
+        activity = Robolectric.buildActivity(CatalogActivity.class).setup();
+        awaitFirstListFrame();
+        long firstListFrameMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        activity.pause().stop().destroy();
+
+        assertTrue("First list frame after " + firstListFrameMillis + " ms, over the budget of "
+                        + StartupMetrics.FIRST_LIST_FRAME_BUDGET_MILLIS + " ms",
+                firstListFrameMillis <= StartupMetrics.FIRST_LIST_FRAME_BUDGET_MILLIS);
+    }
+
+    /**
+     * Runs frames of the main looper until the catalog reported its first list frame.
+     */
+    private static void awaitFirstListFrame() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (StartupMetrics.getFirstListFrameMillis() < 0
+                && System.currentTimeMillis() < deadline) {
+            shadowOf(Looper.getMainLooper()).idleFor(FRAME);
+            Thread.sleep(1);
+        }
+        assertTrue("No list frame was drawn", StartupMetrics.getFirstListFrameMillis() >= 0);
+    }
+
+    /**
+     * Waits for the catalog snapshot, saved in the background, to be readable.
+     */
+    private void awaitSnapshot() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            Cursor snapshot = new CatalogSnapshot(mContext).load();
+            if (snapshot != null) {
+                snapshot.close();
+                return;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("The catalog snapshot was not saved");
+    }
+}